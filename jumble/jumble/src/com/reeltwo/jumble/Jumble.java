@@ -1,5 +1,6 @@
 package com.reeltwo.jumble;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
@@ -32,7 +33,17 @@ public class Jumble {
    * @param args command line arguments. Use -h to see the expected arguments.
    */
   public static void main(String[] args) throws Exception {
-    final FastRunner jumble = new FastRunner();
+    run(new FastRunner(), args);
+  }
+
+  /**
+   * Configures the supplied runner from command line arguments and runs
+   * it. Lets a caller jumbling several classes share one runner.
+   *
+   * @param jumble the runner to use.
+   * @param args command line arguments, as for <code>main</code>.
+   */
+  public static void run(final FastRunner jumble, String[] args) throws Exception {
     final CLIFlags flags = new CLIFlags("Jumble");
     final Flag verboseFlag = flags.registerOptional('v', "verbose", "Provide extra output during run.");
     final Flag exFlag = flags.registerOptional('x', "exclude", String.class, "METHOD", "Comma-separated list of methods to exclude.");
@@ -54,6 +65,17 @@ public class Jumble {
     final Flag loadFlag = flags.registerOptional('l', "no-load-cache", "Do not load cache.");
     final Flag useFlag = flags.registerOptional('u', "no-use-cache", "Do not use cache.");
     final Flag lengthFlag = flags.registerOptional('m', "max-external-mutations", Integer.class, "MAX", "Maximum number of mutations to run in the external JVM.");
+    final Flag workersFlag = flags.registerOptional('n', "workers", Integer.class, "NUM", "Number of external JVMs to run mutations in concurrently.");
+    final Flag threadsFlag = flags.registerOptional('t', "threads", Integer.class, "NUM", "Number of mutations each external JVM runs concurrently.");
+    final Flag abandonFlag = flags.registerOptional("max-abandoned", Integer.class, "NUM", "Number of timed out mutations an external JVM abandons before it is replaced, 0 to replace it on every timeout.");
+    final Flag loopFlag = flags.registerOptional("loop-budget", Integer.class, "NUM", "Report a mutation as timed out once a test makes NUM times as many loop iterations in the mutated class as it did before mutation.");
+    final Flag standbyFlag = flags.registerOptional("standby", "Keep a spare external JVM started, ready to replace one that stops.");
+    final Flag mutantCacheFlag = flags.registerOptional("mutant-cache", File.class, "DIR", "Keep mutations in this directory so that unchanged classes are not mutated again.");
+    final Flag mutantCacheSizeFlag = flags.registerOptional("mutant-cache-size", Integer.class, "MB", "Size in megabytes the mutation cache may grow to before the oldest mutations are dropped.");
+    final Flag pregenerateFlag = flags.registerOptional("pregenerate", "Make mutations ahead of time on all processors in each external JVM.");
+    final Flag schemataFlag = flags.registerOptional("schemata", "Load a single meta-mutant of the class in each external JVM and switch it between mutations.");
+    final Flag equivalentFlag = flags.registerOptional("skip-equivalent", "Do not test mutations shown to behave the same as the original class.");
+    final Flag shareFlag = flags.registerOptional("share-classes", "Load classes that cannot reach the class being mutated once in each external JVM rather than for every mutation.");
     final Flag classFlag = flags.registerRequired(String.class, "CLASS", "Name of the class to mutate.");
     final Flag testClassFlag = flags.registerRequired(String.class, "TESTCLASS", "Name of the unit test classes for testing the supplied class.");
     testClassFlag.setMinCount(0);
@@ -70,6 +92,11 @@ public class Jumble {
     jumble.setLoadCache(!loadFlag.isSet());
     jumble.setSaveCache(!saveFlag.isSet());
     jumble.setUseCache(!useFlag.isSet());
+    jumble.setUseStandby(standbyFlag.isSet());
+    jumble.setSchemata(schemataFlag.isSet());
+    jumble.setPregenerate(pregenerateFlag.isSet());
+    jumble.setSkipEquivalent(equivalentFlag.isSet());
+    jumble.setShareClasses(shareFlag.isSet());
     jumble.setVerbose(verboseFlag.isSet());
     jumble.setClassPath((String) classpathFlag.getValue());
 
@@ -79,6 +106,39 @@ public class Jumble {
         jumble.setMaxExternalMutations(val);
       }
     }
+    if (workersFlag.isSet()) {
+      int val = ((Integer) workersFlag.getValue()).intValue();
+      if (val >= 1) {
+        jumble.setWorkerCount(val);
+      }
+    }
+    if (threadsFlag.isSet()) {
+      int val = ((Integer) threadsFlag.getValue()).intValue();
+      if (val >= 1) {
+        jumble.setThreadCount(val);
+      }
+    }
+    if (loopFlag.isSet()) {
+      int val = ((Integer) loopFlag.getValue()).intValue();
+      if (val >= 0) {
+        jumble.setLoopBudget(val);
+      }
+    }
+    if (mutantCacheFlag.isSet()) {
+      jumble.setMutantCacheDir((File) mutantCacheFlag.getValue());
+    }
+    if (mutantCacheSizeFlag.isSet()) {
+      int val = ((Integer) mutantCacheSizeFlag.getValue()).intValue();
+      if (val >= 1) {
+        jumble.setMutantCacheSize(val);
+      }
+    }
+    if (abandonFlag.isSet()) {
+      int val = ((Integer) abandonFlag.getValue()).intValue();
+      if (val >= 0) {
+        jumble.setMaxAbandoned(val);
+      }
+    }
     if (firstFlag.isSet()) {
       int val = ((Integer) firstFlag.getValue()).intValue();
       if (val >= -1) {
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.util.Set;
 
 import com.reeltwo.jumble.dependency.DependencyExtractor;
+import com.reeltwo.jumble.fast.FastRunner;
 import com.reeltwo.jumble.util.BCELRTSI;
 
 /**
@@ -72,9 +73,16 @@ public class JumbleAll {
     System.out.println("RESULTS:");
     System.out.println();
 
-    for (Iterator it = classNames.iterator(); it.hasNext();) {
-      String className = (String) it.next();
-      Jumble.main(new String[] {className});
+    // Share child JVMs between classes rather than starting new ones each time
+    final FastRunner runner = new FastRunner();
+    runner.setSessionMode(true);
+    try {
+      for (Iterator it = classNames.iterator(); it.hasNext();) {
+        String className = (String) it.next();
+        Jumble.run(runner, new String[] {className});
+      }
+    } finally {
+      runner.endSession();
     }
   }
 }
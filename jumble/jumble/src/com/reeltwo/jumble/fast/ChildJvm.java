@@ -0,0 +1,397 @@
+package com.reeltwo.jumble.fast;
+
+import com.reeltwo.jumble.util.IOThread;
+import com.reeltwo.jumble.util.JavaRunner;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Looks after a single <CODE>FastJumbler</CODE> child JVM on behalf of
+ * a <CODE>FastRunner</CODE>. Starts the process, hands it jobs and reads
+ * the results of its mutants from a <code>ControlChannel</code> in
+ * whatever order they arrive. The child is destroyed when a mutant times
+ * out, and noticed as soon as it exits by itself. A child can be reused
+ * for further jobs, or started ahead of time and taken over by another
+ * handle.
+ *
+ * @version $Revision$
+ */
+class ChildJvm {
+
+  /** Arguments passed to the JVM itself */
+  private final String[] mJvmArgs;
+
+  private final boolean mVerbose;
+
+  /**
+   * Longest time in milliseconds to wait for a message before looking
+   * at what the child has written to standard output and error.
+   */
+  private static final long OUTPUT_INTERVAL = 100;
+
+  /**
+   * Longest time in milliseconds to wait for the messages sent by a
+   * child to be read once it has exited.
+   */
+  private static final long EXIT_GRACE = 1000;
+
+  private Process mProcess = null;
+
+  /** Arguments the child was started with, if it is running as a session */
+  private String[] mSessionArgs = null;
+
+  /** True until the first job has been submitted to a new session */
+  private boolean mFreshSession = false;
+
+  /** Number of mutation results read since the child was started */
+  private int mMutationCount = 0;
+
+  /** Modifications reported by the child, by mutation point */
+  private final Map<Integer, String> mModifications = new HashMap<Integer, String>();
+
+  /** Identical mutants tested earlier, by mutation point */
+  private final Map<Integer, Integer> mDuplicates = new HashMap<Integer, Integer>();
+
+  /** Results that arrived before they were asked for, by mutation point */
+  private final Map<Integer, MutationResult> mResults = new HashMap<Integer, MutationResult>();
+
+  /**
+   * Last mutation point that was running when the child exited with no
+   * one mutant to blame, or -1.
+   */
+  private int mUnattributed = -1;
+
+  /** Messages from the child */
+  private ControlChannel.Reader mChannel = null;
+
+  private IOThread mIot = null;
+
+  private IOThread mEot = null;
+
+  /**
+   * Creates a new <code>ChildJvm</code>. No process is started until
+   * <code>startSession</code> is called.
+   *
+   * @param jvmArgs arguments passed to the child JVM.
+   * @param verbose true if child output should be echoed to stderr.
+   */
+  ChildJvm(final String[] jvmArgs, final boolean verbose) {
+    mJvmArgs = jvmArgs;
+    mVerbose = verbose;
+  }
+
+  /**
+   * Returns true if there is a child process we are still talking to.
+   *
+   * @return true if the child is running.
+   */
+  boolean isRunning() {
+    return mProcess != null && !mChannel.hasExited();
+  }
+
+  /**
+   * Starts a new child process running as a session. The child does
+   * nothing until a job is submitted.
+   *
+   * @param args arguments to pass to <code>FastJumbler</code>, including
+   * <code>--session</code>.
+   * @throws IOException if the process could not be started.
+   */
+  void startSession(String[] args) throws IOException {
+    launch(args);
+    mSessionArgs = args;
+    mFreshSession = true;
+  }
+
+  /**
+   * Takes over the process of another handle, which is left with no
+   * process. Any process this handle had is released first.
+   *
+   * @param other the handle whose process is taken.
+   */
+  void takeOver(ChildJvm other) {
+    release();
+    mProcess = other.mProcess;
+    mSessionArgs = other.mSessionArgs;
+    mFreshSession = other.mFreshSession;
+    mChannel = other.mChannel;
+    mIot = other.mIot;
+    mEot = other.mEot;
+    mMutationCount = 0;
+    mModifications.clear();
+    mDuplicates.clear();
+    mResults.clear();
+    other.mProcess = null;
+  }
+
+  private void launch(String[] args) throws IOException {
+    final ServerSocket server = ControlChannel.listen();
+    final String[] childArgs = new String[args.length + 2];
+    System.arraycopy(args, 0, childArgs, 0, args.length);
+    childArgs[args.length] = "--" + FastJumbler.FLAG_PORT;
+    childArgs[args.length + 1] = String.valueOf(server.getLocalPort());
+    JavaRunner runner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler", childArgs);
+    runner.setJvmArguments(mJvmArgs);
+    try {
+      mProcess = runner.start();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    mChannel = new ControlChannel.Reader(server);
+    mChannel.start();
+    watch(mProcess, mChannel);
+    mMutationCount = 0;
+    mModifications.clear();
+    mDuplicates.clear();
+    mResults.clear();
+    mIot = new IOThread(mProcess.getInputStream());
+    mIot.setDaemon(true);
+    mIot.start();
+    mEot = new IOThread(mProcess.getErrorStream());
+    mEot.setDaemon(true);
+    mEot.start();
+  }
+
+  /**
+   * Starts a thread that tells the channel when the process exits, once
+   * everything the child sent before exiting has been read.
+   */
+  private static void watch(final Process process, final ControlChannel.Reader channel) {
+    final Thread watcher = new Thread("Jumble child watcher") {
+        public void run() {
+          try {
+            final int exitValue = process.waitFor();
+            channel.join(EXIT_GRACE);
+            channel.close();
+            channel.exited(exitValue);
+          } catch (InterruptedException e) {
+            ; // Nobody will be waiting for the child then
+          }
+        }
+      };
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * Hands a job to a child running as a session and waits until the
+   * child is ready to run it.
+   *
+   * @param job the job, as created by <code>FastJumbler.createJob</code>.
+   * @throws IOException if the job could not be sent.
+   * @throws InterruptedException if interrupted while waiting for the child.
+   */
+  void submit(String job) throws IOException, InterruptedException {
+    OutputStream in = mProcess.getOutputStream();
+    in.write((job + "\n").getBytes());
+    in.flush();
+    // Anything on stderr from a session that has already done work is
+    // left over from the previous job rather than a startup failure
+    waitForStart(mFreshSession);
+    mFreshSession = false;
+  }
+
+  /**
+   * Returns true if this child is running as a session that was
+   * started with the given arguments, and so can be handed jobs on
+   * their behalf.
+   *
+   * @param jvmArgs arguments for the JVM itself.
+   * @param args arguments for <code>FastJumbler</code>.
+   * @return true if this child can be reused.
+   */
+  boolean isSessionFor(String[] jvmArgs, String[] args) {
+    return isRunning() && mSessionArgs != null && Arrays.equals(mJvmArgs, jvmArgs) && Arrays.equals(mSessionArgs, args);
+  }
+
+  /**
+   * Gets the number of mutation results read since the child was
+   * started.
+   *
+   * @return the number of mutations run by this child.
+   */
+  int getMutationCount() {
+    return mMutationCount;
+  }
+
+  /**
+   * Gets the last mutation point that was running when the child exited
+   * while running more than one mutant, so that they can be run again
+   * one at a time. Forgets the point once it has been asked for.
+   *
+   * @return the point, or -1 if the last exit was blamed on a mutant.
+   */
+  int takeUnattributed() {
+    final int point = mUnattributed;
+    mUnattributed = -1;
+    return point;
+  }
+
+  /**
+   * Stops talking to the child process. The child is expected to exit
+   * on its own accord, which a session does once its input is closed.
+   */
+  void release() {
+    Process process = mProcess;
+    if (process != null) {
+      try {
+        process.getOutputStream().close();
+      } catch (IOException e) {
+        ; // The child has already gone
+      }
+      mProcess = null;
+      // The channel closes when the child exits
+    }
+  }
+
+  /**
+   * Kills the child process if there is one.
+   */
+  void destroy() {
+    Process process = mProcess;
+    if (process != null) {
+      if (mVerbose) {
+        System.err.println("Shutting down child process");
+      }
+      process.destroy();
+      mProcess = null;
+      mChannel.close();
+    }
+  }
+
+  private boolean debugOutput(String out, String err) {
+    if (err != null) {
+      System.err.println("Child.err->" + err);
+    }
+    if (out != null) {
+      System.err.println("Child.out->" + out);
+    }
+    return true; // So we can be enabled/disabled via assertion mechanism.
+  }
+
+  /**
+   * Collects anything the child has written to standard output or
+   * error, echoing it if verbose.
+   *
+   * @return anything written to standard error, or null.
+   */
+  private String drainOutput() {
+    final String out = mIot.getAvailable();
+    final String err = mEot.getAvailable();
+    if (mVerbose) {
+      debugOutput(out, err);
+    }
+    return err;
+  }
+
+  private void waitForStart(boolean strict) throws InterruptedException {
+    // read the "START" to let us know the JVM has started
+    // we don't want to time this. A child that dies before getting that
+    // far (e.g. class loading issues) is seen as EXITED.
+    while (true) {
+      final ControlChannel.Message message = mChannel.poll(OUTPUT_INTERVAL);
+      final String err = drainOutput();
+      if (message != null) {
+        if (message.getType() == ControlChannel.START) {
+          break;
+        } else if (message.getType() == ControlChannel.EXITED) {
+          mProcess = null;
+          throw new RuntimeException("com.reeltwo.jumble.fast.FastJumbler exited with code " + message.getText() + " instead of sending START"
+                                     + (err != null ? ": " + err : ""));
+        } else if (strict) {
+          throw new RuntimeException("com.reeltwo.jumble.fast.FastJumbler sent " + message + " instead of START");
+        }
+      } else if (strict && err != null) {
+        throw new RuntimeException("com.reeltwo.jumble.fast.FastJumbler returned " + err + " on stderr instead of START");
+      }
+    }
+  }
+
+  /**
+   * Reads a mutation result from the child process. The child may
+   * report a timeout itself and carry on. If no result
+   * arrives within the timeout the child is destroyed and a
+   * <code>TIMEOUT</code> result is returned. If the child exits first
+   * while running only this mutant, the mutant is taken to have killed
+   * it, and a <code>TIMEOUT</code> result giving the exit value as its
+   * test description is returned straight away. If other mutants were
+   * running too, none of them is blamed and null is returned, see
+   * <code>takeUnattributed</code>.
+   *
+   * @param className the class being mutated.
+   * @param currentMutation the mutation point being run.
+   * @param timeout how long to wait for a result, in milliseconds.
+   * @return the result, or null if the child requested continuing in a
+   * new JVM or the mutants it was running have to be run again.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  MutationResult readMutation(String className, int currentMutation, long timeout) throws InterruptedException {
+    MutationResult result = mResults.remove(currentMutation);
+    if (result != null) {
+      mMutationCount++;
+      return result;
+    }
+    final long deadline = System.nanoTime() + timeout * 1000000L;
+    // Run until we have a result or time out
+    while (true) {
+      final long remaining = (deadline - System.nanoTime()) / 1000000L;
+      final ControlChannel.Message message = remaining > 0 ? mChannel.poll(Math.min(remaining, OUTPUT_INTERVAL)) : mChannel.getNext();
+      drainOutput();
+      if (message == null) {
+        if (remaining <= 0) {
+          destroy();
+          return new MutationResult(MutationResult.TIMEOUT, className, currentMutation, mModifications.get(currentMutation));
+        }
+      } else {
+        if (mVerbose) {
+          System.err.println("Child.channel->" + message);
+        }
+        final int type = message.getType();
+        final int point = message.getPoint();
+        result = null;
+        if (type == ControlChannel.MAX_REACHED) {
+          return null; // Child JVM requested continuing in a new JVM
+        } else if (type == ControlChannel.EXITED) {
+          mProcess = null;
+          // Mutants started but not finished
+          final Set<Integer> running = mModifications.keySet();
+          if (running.size() > 1 || (running.size() == 1 && !running.contains(currentMutation))) {
+            mUnattributed = Collections.max(running);
+            return null;
+          }
+          mMutationCount++;
+          return new MutationResult(MutationResult.TIMEOUT, className, currentMutation, mModifications.get(currentMutation),
+                                    "Child JVM exited with code " + message.getText());
+        } else if (type == ControlChannel.INIT) {
+          mModifications.put(point, message.getText());
+        } else if (type == ControlChannel.DUPLICATE) {
+          mDuplicates.put(point, Integer.valueOf(message.getText()));
+        } else if (type == ControlChannel.PASS) {
+          result = new MutationResult(MutationResult.PASS, className, point, mModifications.remove(point), message.getText());
+        } else if (type == ControlChannel.FAIL) {
+          result = new MutationResult(MutationResult.FAIL, className, point, mModifications.remove(point));
+        } else if (type == ControlChannel.TIMEOUT) {
+          result = new MutationResult(MutationResult.TIMEOUT, className, point, mModifications.remove(point), message.getText());
+        }
+        if (result != null) {
+          final Integer original = mDuplicates.remove(point);
+          if (original != null) {
+            result.setDuplicateOf(original.intValue());
+          }
+          if (point == currentMutation) {
+            mMutationCount++;
+            return result;
+          }
+          mResults.put(point, result);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package com.reeltwo.jumble.fast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A framed binary channel carrying typed messages from a
+ * <CODE>FastJumbler</CODE> to its parent over a loopback socket, so
+ * that the standard output and error of the child are left for
+ * diagnostics. Each frame is its length followed by the message type,
+ * mutation point, time taken and text.
+ *
+ * @version $Revision$
+ */
+class ControlChannel {
+
+  /** The child is ready to run mutations */
+  static final int START = 1;
+
+  /** A mutant is about to be tested, the text is the modification made */
+  static final int INIT = 2;
+
+  /** A test detected the mutant, the text describes the test */
+  static final int PASS = 3;
+
+  /** No test detected the mutant, the text is the modification made */
+  static final int FAIL = 4;
+
+  /** The child will not run any more mutants, the text is the reason */
+  static final int MAX_REACHED = 5;
+
+  /**
+   * Not sent by the child, added by the parent once the child process
+   * has exited. The text is the exit value.
+   */
+  static final int EXITED = 6;
+
+  /**
+   * The mutant did not finish in time or deadlocked and was abandoned,
+   * the text is the reason. The child carries on with the next mutant.
+   */
+  static final int TIMEOUT = 7;
+
+  /**
+   * The mutant is identical to one tested earlier, the outcome that
+   * follows is copied from it. The text is the mutation point of the
+   * earlier mutant.
+   */
+  static final int DUPLICATE = 8;
+
+  private static final String ENCODING = "UTF-8";
+
+  private final DataOutputStream mOut;
+
+  /**
+   * Creates a channel writing frames to a stream.
+   *
+   * @param out where the frames go.
+   */
+  ControlChannel(OutputStream out) {
+    mOut = new DataOutputStream(new BufferedOutputStream(out));
+  }
+
+  /**
+   * Connects to a parent listening on a loopback port.
+   *
+   * @param port the port the parent is listening on.
+   * @return the channel.
+   * @throws IOException if the parent could not be reached.
+   */
+  static ControlChannel connect(int port) throws IOException {
+    final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+    socket.setTcpNoDelay(true);
+    return new ControlChannel(socket.getOutputStream());
+  }
+
+  /**
+   * Creates a server socket on a free loopback port for a child to
+   * connect to.
+   *
+   * @return the server socket.
+   * @throws IOException if no socket could be created.
+   */
+  static ServerSocket listen() throws IOException {
+    return new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+  }
+
+  /**
+   * Sends a message, flushing it immediately.
+   *
+   * @param type the message type.
+   * @param point the mutation point the message is about.
+   * @param millis time taken testing the mutant, in milliseconds.
+   * @param text the text of the message, may be null.
+   * @throws IOException if the message could not be sent.
+   */
+  synchronized void send(int type, int point, long millis, String text) throws IOException {
+    final byte[] bytes = text == null ? new byte[0] : text.getBytes(ENCODING);
+    final ByteArrayOutputStream frame = new ByteArrayOutputStream(17 + bytes.length);
+    final DataOutputStream out = new DataOutputStream(frame);
+    out.writeByte(type);
+    out.writeInt(point);
+    out.writeLong(millis);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    mOut.writeInt(frame.size());
+    frame.writeTo(mOut);
+    mOut.flush();
+  }
+
+  /**
+   * Reads the next message from a stream of frames.
+   *
+   * @param in the stream.
+   * @return the message, or null at the end of the stream.
+   * @throws IOException if the stream could not be read or is corrupt.
+   */
+  static Message read(DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    final byte[] frame = new byte[length];
+    in.readFully(frame);
+    final DataInputStream fin = new DataInputStream(new ByteArrayInputStream(frame));
+    final int type = fin.readByte();
+    final int point = fin.readInt();
+    final long millis = fin.readLong();
+    final byte[] text = new byte[fin.readInt()];
+    fin.readFully(text);
+    return new Message(type, point, millis, new String(text, ENCODING));
+  }
+
+  /**
+   * A single message from the child.
+   */
+  static class Message {
+    private final int mType;
+    private final int mPoint;
+    private final long mMillis;
+    private final String mText;
+
+    Message(int type, int point, long millis, String text) {
+      mType = type;
+      mPoint = point;
+      mMillis = millis;
+      mText = text;
+    }
+
+    int getType() {
+      return mType;
+    }
+
+    int getPoint() {
+      return mPoint;
+    }
+
+    long getMillis() {
+      return mMillis;
+    }
+
+    String getText() {
+      return mText;
+    }
+
+    public String toString() {
+      return mType + " " + mPoint + " " + mMillis + "ms " + mText;
+    }
+  }
+
+  /**
+   * Accepts the connection from a child and collects its messages as
+   * they arrive, in the manner of <code>IOThread</code>.
+   */
+  static class Reader extends Thread {
+    private final ServerSocket mServer;
+    private final BlockingQueue<Message> mBuffer = new LinkedBlockingQueue<Message>();
+    private Socket mSocket = null;
+    private volatile boolean mExited = false;
+
+    /**
+     * @param server the socket the child will connect to.
+     */
+    Reader(ServerSocket server) {
+      super("Jumble control channel");
+      mServer = server;
+      setDaemon(true);
+    }
+
+    /** Reads messages until the child closes the channel. */
+    public void run() {
+      try {
+        final Socket socket = mServer.accept();
+        synchronized (this) {
+          mSocket = socket;
+        }
+        mServer.close();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Message message;
+        while ((message = read(in)) != null) {
+          mBuffer.add(message);
+        }
+      } catch (IOException e) {
+        return; // Closed, or the child has gone
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Returns the next message if available. Otherwise returns null.
+     *
+     * @return the next message or null.
+     */
+    Message getNext() {
+      return mBuffer.poll();
+    }
+
+    /**
+     * Returns the next message, waiting for it to arrive if necessary.
+     *
+     * @param timeout maximum time to wait, in milliseconds.
+     * @return the next message or null if none arrived in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    Message poll(long timeout) throws InterruptedException {
+      return mBuffer.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that the child process has exited, after any messages it
+     * sent.
+     *
+     * @param exitValue the exit value of the child.
+     */
+    void exited(int exitValue) {
+      mExited = true;
+      mBuffer.add(new Message(EXITED, -1, 0, String.valueOf(exitValue)));
+    }
+
+    /**
+     * Returns true if the child process has exited.
+     *
+     * @return true if the child has exited.
+     */
+    boolean hasExited() {
+      return mExited;
+    }
+
+    /** Closes the channel, ending this thread. */
+    void close() {
+      try {
+        mServer.close();
+        synchronized (this) {
+          if (mSocket != null) {
+            mSocket.close();
+          }
+        }
+      } catch (IOException e) {
+        ; // Already closed
+      }
+    }
+  }
+}
@@ -1,22 +1,42 @@
 package com.reeltwo.jumble.fast;
 
+import com.reeltwo.jumble.mutation.MutantCache;
+import com.reeltwo.jumble.mutation.MutationPlan;
+import com.reeltwo.jumble.mutation.MutationPoint;
 import com.reeltwo.jumble.mutation.Mutater;
 import com.reeltwo.jumble.mutation.MutatingClassLoader;
+import com.reeltwo.jumble.mutation.SharedClassLoader;
+import com.reeltwo.jumble.util.ClassPathIndex;
 import com.reeltwo.util.CLIFlags.Flag;
 import com.reeltwo.util.CLIFlags;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
+import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A class that gives process separation when running unit tests. A parent
  * virtual machine monitors the progress of the test runs and terminates this
  * process in the event of infinite loops etc. This class communicates to the
- * parent process via standard output.
+ * parent process via standard output, or over a <code>ControlChannel</code>
+ * when given a port to connect to. It runs the job on its command line and,
+ * as a session, further jobs read from standard input. Each job tests a
+ * range of mutants of one class, made from a <code>MutationPlan</code> and
+ * run on one or more threads, each under a watchdog that abandons a mutant
+ * which times out or deadlocks. Flags choose how mutants are made and
+ * loaded, and which are left out.
  * 
  * @author Tin Pavlinic
  * @version $Revision: 496 $
@@ -30,13 +50,113 @@ public class FastJumbler {
 
   public static final String FAIL_PREFIX = "FAIL: ";
 
+  public static final String TIMEOUT_PREFIX = "TIMEOUT: ";
+
+  public static final String DUPLICATE_PREFIX = "DUPLICATE: ";
+
   public static final String SIGNAL_START = "START";
 
   public static final String SIGNAL_MAX_REACHED = "MAX_REACHED";
 
+  /** Starts the mutation point tag on lines output when running with several threads */
+  public static final String POINT_PREFIX = "@";
+
+  /** Separates the fields of a job command read in session mode */
+  static final String JOB_SEPARATOR = "\t";
+
+  /** Classpath used to load test and source classes */
+  private final String mClassPath;
+
+  private final Set<String> mIgnoredMethods;
+
+  private final boolean mIncrements;
+
+  private final boolean mCPool;
+
+  private final boolean mSwitches;
+
+  private final boolean mInlineConstants;
+
+  private final boolean mReturnVals;
+
+  private final boolean mVerbose;
+
+  /** Maximum number of mutations to run in this JVM, or -1 for no limit */
+  private final int mLength;
+
+  /** Number of mutants tested at once */
+  private final int mThreads;
+
+  /** Should mutants be played by a meta-mutant where possible */
+  private final boolean mSchemata;
+
+  /** Should mutants be made ahead of time */
+  private final boolean mPregenerate;
+
+  /** Where mutants are kept between runs, or null */
+  private final MutantCache mCache;
+
+  /** Should points known to give equivalent mutants be left out */
+  private final boolean mSkipEquivalent;
+
+  /** Should classes that cannot reach the mutated class be loaded once per class */
+  private final boolean mShareClasses;
+
+  /** Loads the classes of the current class that need not be loaded for every mutant, or null */
+  private SharedClassLoader mShared = null;
+
+  /** Number of mutations run in this JVM so far */
+  private int mCount = 0;
+
+  /** Number of abandoned test threads after which this JVM stops */
+  private final int mMaxAbandoned;
+
+  /** Number of test threads abandoned so far */
+  private int mAbandoned = 0;
+
+  /** Why this JVM should stop after abandoning test threads, or null */
+  private String mAbandonedReason = null;
+
+  /** Outcomes of the mutants of the current class tested so far, by digest of the mutant */
+  private final Map<String, Outcome> mOutcomes = new HashMap<String, Outcome>();
+
+  /** Where reports to the parent JVM go, tests may redirect <code>System.out</code> */
+  private final PrintStream mOut = System.out;
+
+  /** Channel to the parent JVM, or null to report on standard output */
+  private final ControlChannel mChannel;
+
+  private final MemoryMXBean mMxBean = ManagementFactory.getMemoryMXBean();
+
+  private MemoryUsage mUsage = mMxBean.getNonHeapMemoryUsage();
+
+  private final ThreadMXBean mThreadBean = ManagementFactory.getThreadMXBean();
+
+  /** Milliseconds between checks for deadlocked test threads */
+  private static final long DEADLOCK_INTERVAL = 100;
 
   // Private c'tor
-  private FastJumbler() {
+  private FastJumbler(String classpath, Set<String> ignoredMethods, boolean increments, boolean cpool, boolean switches,
+                      boolean inlineConstants, boolean returnVals, boolean verbose, int length, int threads, int maxAbandoned,
+                      boolean schemata, boolean pregenerate, MutantCache cache, boolean skipEquivalent, boolean shareClasses,
+                      ControlChannel channel) {
+    mClassPath = classpath;
+    mIgnoredMethods = ignoredMethods;
+    mIncrements = increments;
+    mCPool = cpool;
+    mSwitches = switches;
+    mInlineConstants = inlineConstants;
+    mReturnVals = returnVals;
+    mVerbose = verbose;
+    mLength = length;
+    mThreads = threads;
+    mMaxAbandoned = maxAbandoned;
+    mSchemata = schemata;
+    mPregenerate = pregenerate;
+    mCache = cache;
+    mSkipEquivalent = skipEquivalent;
+    mShareClasses = shareClasses;
+    mChannel = channel;
   }
 
   static final String FLAG_EXCLUDE = "exclude";
@@ -49,6 +169,23 @@ public class FastJumbler {
   static final String FLAG_START = "start";
   static final String FLAG_LENGTH = "length";
   static final String FLAG_CLASSPATH = "classpath";
+  static final String FLAG_SESSION = "session";
+  static final String FLAG_THREADS = "threads";
+  static final String FLAG_PORT = "port";
+  static final String FLAG_TIMEOUT = "timeout";
+  static final String FLAG_MAX_ABANDONED = "max-abandoned";
+  static final String FLAG_SCHEMATA = "schemata";
+  static final String FLAG_PREGENERATE = "pregenerate";
+  static final String FLAG_MUTANT_CACHE = "mutant-cache";
+  static final String FLAG_MUTANT_CACHE_SIZE = "mutant-cache-size";
+  static final String FLAG_SKIP_EQUIVALENT = "skip-equivalent";
+  static final String FLAG_SHARE_CLASSES = "share-classes";
+
+  /** Abandoned mutants after which this JVM stops unless told otherwise */
+  static final int DEFAULT_MAX_ABANDONED = 3;
+
+  /** Megabytes the mutant cache may grow to unless told otherwise */
+  static final int DEFAULT_MUTANT_CACHE_SIZE = 256;
 
   /**
    * Main method. Supply --help to get help on the expected arguments.
@@ -66,17 +203,38 @@ public class FastJumbler {
     final Flag cpoolFlag = flags.registerOptional('w', FLAG_CPOOL, "Mutate constant pool entries.");
     final Flag switchFlag = flags.registerOptional('j', FLAG_SWITCHES, "Mutate switch instructions.");
     final Flag incFlag = flags.registerOptional('i', FLAG_INCREMENTS, "Mutate increments.");
-    final Flag startFlag = flags.registerRequired('s', FLAG_START, Integer.class, "NUM", "The mutation point to start at.");
+    final Flag startFlag = flags.registerOptional('s', FLAG_START, Integer.class, "NUM", "The mutation point to start at.");
     final Flag lengthFlag = flags.registerOptional('l', FLAG_LENGTH, Integer.class, "LEN", "The number of mutation points to execute");
     final Flag classpathFlag = flags.registerOptional('c', FLAG_CLASSPATH, String.class, "CLASSPATH", "The classpath to use for tests", System.getProperty("java.class.path"));
+    final Flag threadsFlag = flags.registerOptional('t', FLAG_THREADS, Integer.class, "NUM", "The number of mutants to test concurrently.");
+    final Flag timeoutFlag = flags.registerOptional(FLAG_TIMEOUT, Integer.class, "MILLIS", "Abandon testing a mutant of the class given on the command line after this long and report it as timed out.", new Integer(0));
+    final Flag maxAbandonedFlag = flags.registerOptional(FLAG_MAX_ABANDONED, Integer.class, "NUM", "Stop once this many timed out mutants have been abandoned. Deadlocked mutants always stop this JVM.", new Integer(DEFAULT_MAX_ABANDONED));
+    final Flag schemataFlag = flags.registerOptional(FLAG_SCHEMATA, "Load a single meta-mutant of the class and switch it between mutants.");
+    final Flag pregenerateFlag = flags.registerOptional(FLAG_PREGENERATE, "Make mutants ahead of time on all processors while earlier mutants are tested.");
+    final Flag mutantCacheFlag = flags.registerOptional(FLAG_MUTANT_CACHE, File.class, "DIR", "Keep mutants in this directory for later runs.");
+    final Flag mutantCacheSizeFlag = flags.registerOptional(FLAG_MUTANT_CACHE_SIZE, Integer.class, "MB", "Size the mutant cache may grow to.", new Integer(DEFAULT_MUTANT_CACHE_SIZE));
+    final Flag skipEquivalentFlag = flags.registerOptional(FLAG_SKIP_EQUIVALENT, "Do not test mutation points known to give equivalent mutants.");
+    final Flag shareClassesFlag = flags.registerOptional(FLAG_SHARE_CLASSES, "Load classes that cannot reach the class being mutated once for all of its mutants.");
+    final Flag portFlag = flags.registerOptional(FLAG_PORT, Integer.class, "PORT", "Report to the parent JVM over a connection to this loopback port rather than standard output.");
+    final Flag sessionFlag = flags.registerOptional(FLAG_SESSION, "After any class given on the command line, read further jobs from standard input until it is closed.");
     final Flag classFlag = flags.registerRequired(String.class, "CLASS", "Name of the class to mutate.");
     final Flag testSuiteFlag = flags.registerRequired(String.class, "TESTFILE", "Name the test suite file containing serialized TestOrder objects.");
     final Flag cacheFileFlag = flags.registerRequired(String.class, "CACHEFILE", "Name the cache file file.");
+    classFlag.setMinCount(0);
+    testSuiteFlag.setMinCount(0);
     cacheFileFlag.setMinCount(0);
+    flags.setValidator(new CLIFlags.Validator() {
+        public boolean isValid(CLIFlags f) {
+          if (!sessionFlag.isSet() && !(classFlag.isSet() && testSuiteFlag.isSet() && startFlag.isSet())) {
+            f.setParseMessage("CLASS, TESTFILE and --" + FLAG_START + " are required unless running a --" + FLAG_SESSION);
+            return false;
+          }
+          return true;
+        }
+      });
     flags.setFlags(args);
 
     // First, process all the command line options
-    final String className = ((String) classFlag.getValue()).replace('/', '.');
     // Process excludes
     Set<String> ignore = new HashSet<String>();
     if (exFlag.isSet()) {
@@ -86,98 +244,542 @@ public class FastJumbler {
       }
     }
 
-    final int startPoint = ((Integer) startFlag.getValue()).intValue();
     final int length = lengthFlag.isSet() ? ((Integer) lengthFlag.getValue()).intValue() : -1;
+    final int threads = threadsFlag.isSet() ? Math.max(1, ((Integer) threadsFlag.getValue()).intValue()) : 1;
+    final int maxAbandoned = Math.max(1, ((Integer) maxAbandonedFlag.getValue()).intValue());
+    final ControlChannel channel = portFlag.isSet() ? ControlChannel.connect(((Integer) portFlag.getValue()).intValue()) : null;
+    final MutantCache cache = mutantCacheFlag.isSet()
+      ? MutantCache.getInstance((File) mutantCacheFlag.getValue(), ((Integer) mutantCacheSizeFlag.getValue()).longValue() * 1024 * 1024) : null;
     final String classpath = (String) classpathFlag.getValue();
     System.setProperty("java.class.path", classpath);  // Make classpath available to code doing classpath scanning.
+    // This JVM exits once its jobs are done, before the class files would change
+    ClassPathIndex.getInstance(classpath).setCacheClasses(true);
+    final FastJumbler jumbler = new FastJumbler(classpath, ignore, incFlag.isSet(), cpoolFlag.isSet(), switchFlag.isSet(),
+                                                inlFlag.isSet(), retFlag.isSet(), verboseFlag.isSet(), length, threads, maxAbandoned,
+                                                schemataFlag.isSet(), pregenerateFlag.isSet(), cache, skipEquivalentFlag.isSet(),
+                                                shareClassesFlag.isSet(), channel);
+
+    if (classFlag.isSet()) {
+      final String className = ((String) classFlag.getValue()).replace('/', '.');
+      final int startPoint = ((Integer) startFlag.getValue()).intValue();
+      final String cacheFile = cacheFileFlag.isSet() ? (String) cacheFileFlag.getValue() : null;
+      final int timeout = ((Integer) timeoutFlag.getValue()).intValue();
+      if (!jumbler.runJob(className, (String) testSuiteFlag.getValue(), cacheFile, startPoint, -1, timeout)) {
+        return;
+      }
+    }
+
+    if (sessionFlag.isSet()) {
+      // Each line is a job created by createJob. The parent JVM closes our
+      // input when it no longer needs us.
+      final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] job = line.split(JOB_SEPARATOR, -1);
+        if (job.length != 6) {
+          throw new IllegalArgumentException("Malformed job: " + line);
+        }
+        final String cacheFile = job[2].length() == 0 ? null : job[2];
+        if (!jumbler.runJob(job[0].replace('/', '.'), job[1], cacheFile, Integer.parseInt(job[3]), Integer.parseInt(job[4]),
+                           Long.parseLong(job[5]))) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a job command for a <code>FastJumbler</code> running with
+   * <code>--session</code>.
+   *
+   * @param className name of the class to mutate.
+   * @param testSuiteFile name of the file containing the serialized <code>TestOrder</code>.
+   * @param cacheFile name of the serialized <code>FailedTestMap</code>, or null for none.
+   * @param start the first mutation point to run.
+   * @param end the mutation point to stop before, or -1 to run to the last point.
+   * @param timeout milliseconds after which a mutant is abandoned, or 0 to wait for ever.
+   * @return the job, as a single line.
+   */
+  static String createJob(String className, String testSuiteFile, String cacheFile, int start, int end, long timeout) {
+    return className + JOB_SEPARATOR + testSuiteFile + JOB_SEPARATOR + (cacheFile == null ? "" : cacheFile)
+      + JOB_SEPARATOR + start + JOB_SEPARATOR + end + JOB_SEPARATOR + timeout;
+  }
+
+  /**
+   * Gets the file holding the serialized <code>MutationPoint</code>
+   * table that goes with a test suite file.
+   *
+   * @param testSuiteFile name of the test suite file.
+   * @return the table file, which need not exist.
+   */
+  static File getPointsFile(String testSuiteFile) {
+    return new File(testSuiteFile + ".points");
+  }
+
+  private static MutationPoint[] readPoints(String testSuiteFile) throws Exception {
+    final File file = getPointsFile(testSuiteFile);
+    if (!file.exists()) {
+      return null;
+    }
+    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+    final MutationPoint[] points = (MutationPoint[]) ois.readObject();
+    ois.close();
+    return points;
+  }
+
+  private Mutater createMutater(boolean loopProbes, MutationPoint[] points) {
     final Mutater mutater = new Mutater(-1);
-    mutater.setIgnoredMethods(ignore);
-    mutater.setMutateIncrements(incFlag.isSet());
-    mutater.setMutateCPool(cpoolFlag.isSet());
-    mutater.setMutateSwitch(switchFlag.isSet());
-    mutater.setMutateInlineConstants(inlFlag.isSet());
-    mutater.setMutateReturnValues(retFlag.isSet());
-    MutatingClassLoader jumbler = new MutatingClassLoader(className, mutater, classpath);
-    final int mutationCount = jumbler.countMutationPoints(className);
-    ObjectInputStream ois = new ObjectInputStream(new FileInputStream((String) testSuiteFlag.getValue()));
+    mutater.setMutationPoints(points);
+    mutater.setLoopProbes(loopProbes);
+    mutater.setIgnoredMethods(mIgnoredMethods);
+    mutater.setMutateIncrements(mIncrements);
+    mutater.setMutateCPool(mCPool);
+    mutater.setMutateSwitch(mSwitches);
+    mutater.setMutateInlineConstants(mInlineConstants);
+    mutater.setMutateReturnValues(mReturnVals);
+    return mutater;
+  }
+
+  /** Plans the mutants of a class, or returns null if they have to be made by a <code>Mutater</code> */
+  private MutationPlan createPlan(String className, Mutater mutater) {
+    try {
+      return mutater.createPlan(ClassPathIndex.getInstance(mClassPath).getBytes(className));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** Tells whether a mutation point is left out because its mutant is known to be equivalent */
+  private boolean isSkipped(MutationPoint[] points, int i) {
+    return mSkipEquivalent && points != null && i >= 0 && points[i].isEquivalent();
+  }
+
+  /** Starts making the mutants of a job ahead of time, or returns null if they are made as needed */
+  private MutantStore createStore(MutationPlan plan, MutationPoint[] points, int startPoint, int end) {
+    // Meta-mutants need few mutants of their own
+    if (!mPregenerate || mSchemata || plan == null) {
+      return null;
+    }
+    boolean[] skipped = null;
+    if (mSkipEquivalent && points != null) {
+      skipped = new boolean[points.length];
+      for (int i = 0; i < points.length; i++) {
+        skipped[i] = isSkipped(points, i);
+      }
+    }
+    return new MutantStore(plan, startPoint, end, Runtime.getRuntime().availableProcessors(), mCache, skipped);
+  }
+
+  /** Creates the meta-mutant holder for a job, or returns null if schemata are not used */
+  private MutantSchemata createSchemata(String className, TestOrder order, MutationPoint[] points) {
+    return mSchemata ? new MutantSchemata(className, createMutater(order.hasLoopBudgets(), points), mClassPath) : null;
+  }
+
+  /**
+   * Runs the tests against each mutation point of a class in turn,
+   * reporting the outcomes to the parent JVM.
+   *
+   * @return false if this JVM should not be given any more work.
+   */
+  private boolean runJob(final String className, String testSuiteFile, final String cacheFile, int startPoint, int endPoint, long timeout) throws Exception {
+    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(testSuiteFile));
     final TestOrder order = (TestOrder) ois.readObject();
     ois.close();
+    final MutationPoint[] points = readPoints(testSuiteFile);
+    // A fresh Mutater for each class, it remembers things about the class it mutates
+    final Mutater mutater = createMutater(order.hasLoopBudgets(), points);
+    final MutatingClassLoader jumbler = new MutatingClassLoader(className, mutater, mClassPath);
+    final int mutationCount = points != null ? points.length : jumbler.countMutationPoints(className);
+    final int end = (endPoint < 0 || endPoint > mutationCount) ? mutationCount : endPoint;
+    final MutationPlan plan = createPlan(className, mutater);
+    synchronized (mOutcomes) {
+      mOutcomes.clear();
+    }
+    mShared = mShareClasses ? new SharedClassLoader(className, mClassPath) : null;
+    final MutantStore store = createStore(plan, points, startPoint, end);
+    try {
+      // Let the parent JVM know that we are ready to start
+      sendStart();
+      if (mThreads > 1) {
+        return runConcurrently(className, order, points, plan, store, cacheFile, startPoint, end, timeout);
+      }
+
+      final FailedTestMap cache = readCache(cacheFile);
+      final MutantSchemata schemata = createSchemata(className, order, points);
+      // Now run all the tests for each mutation point
+      for (int i = startPoint; i < end; i++) {
+        if (isSkipped(points, i)) {
+          continue;
+        }
+        if (mCount++ >= mLength && mLength >= 0) {
+          sendMaxReached("");
+          return false;
+        }
+//         if (mVerbose) {
+//           System.err.println("Attempting mutation point: " + i);
+//         }
+        final String reason = runMutation(mutater, plan, store, schemata, className, order, cache, i, timeout);
+        if (reason != null) {
+          sendMaxReached(reason);
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      if (store != null) {
+        store.close();
+      }
+      if (mVerbose) {
+        final ClassPathIndex index = ClassPathIndex.getInstance(mClassPath);
+        System.err.println("Class file cache hits:" + index.getHits() + " misses:" + index.getMisses());
+      }
+    }
+  }
+
+  /**
+   * Runs the mutation points from <code>startPoint</code> up to
+   * <code>end</code> on <code>mThreads</code> threads. The threads share
+   * the plan, each has its own test cache. Stops taking new
+   * mutation points once the limit on mutations, abandoned threads or
+   * non-heap memory is reached, and reports that after the running
+   * mutants have finished.
+   *
+   * @return false if this JVM should not be given any more work.
+   */
+  private boolean runConcurrently(final String className, final TestOrder order, final MutationPoint[] points, final MutationPlan plan,
+                                  final MutantStore store, final String cacheFile, final int startPoint, final int end, final long timeout) throws Exception {
+    final int[] next = new int[] {startPoint};
+    final String[] stopped = new String[1];
+    final Exception[] failure = new Exception[1];
+    final Thread[] threads = new Thread[mThreads];
+    for (int t = 0; t < threads.length; t++) {
+      final Mutater mutater = createMutater(order.hasLoopBudgets(), points);
+      // Each thread switches its own meta-mutant
+      final MutantSchemata schemata = createSchemata(className, order, points);
+      threads[t] = new Thread("Jumble mutant " + t) {
+          public void run() {
+            try {
+              final FailedTestMap cache = readCache(cacheFile);
+              while (true) {
+                final int point;
+                synchronized (next) {
+                  while (next[0] < end && isSkipped(points, next[0])) {
+                    next[0]++;
+                  }
+                  if (stopped[0] != null || next[0] >= end) {
+                    break;
+                  }
+                  if (mCount++ >= mLength && mLength >= 0) {
+                    stopped[0] = "";
+                    break;
+                  }
+                  point = next[0]++;
+                }
+                final String reason = runMutation(mutater, plan, store, schemata, className, order, cache, point, timeout);
+                if (reason != null) {
+                  synchronized (next) {
+                    if (stopped[0] == null) {
+                      stopped[0] = reason;
+                    }
+                  }
+                }
+              }
+            } catch (Exception e) {
+              synchronized (next) {
+                if (failure[0] == null) {
+                  failure[0] = e;
+                }
+                stopped[0] = "";
+              }
+            }
+          }
+        };
+      threads[t].setDaemon(true);
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    if (stopped[0] != null) {
+      sendMaxReached(stopped[0]);
+      return false;
+    }
+    return true;
+  }
+
+  private static FailedTestMap readCache(String cacheFile) throws Exception {
+    if (cacheFile == null) {
+      return null;
+    }
+    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cacheFile));
+    final FailedTestMap cache = (FailedTestMap) ois.readObject();
+    ois.close();
+    return cache;
+  }
 
-    FailedTestMap cache = null;
-    if (cacheFileFlag.isSet()) {
-      ois = new ObjectInputStream(new FileInputStream((String) cacheFileFlag.getValue()));
-      cache = (FailedTestMap) ois.readObject();
-      ois.close();
+  /** Lets the parent JVM know that we are ready to start */
+  private void sendStart() throws IOException {
+    if (mChannel != null) {
+      mChannel.send(ControlChannel.START, -1, 0, null);
+    } else {
+      mOut.println(SIGNAL_START);
     }
+  }
 
-    MemoryMXBean mxbean = ManagementFactory.getMemoryMXBean();
-    MemoryUsage usage = mxbean.getNonHeapMemoryUsage();
-    long nonheapDelta;
+  /** Lets the parent JVM know that we will not run any more mutants */
+  private void sendMaxReached(String reason) throws IOException {
+    if (mChannel != null) {
+      mChannel.send(ControlChannel.MAX_REACHED, -1, 0, reason);
+    } else {
+      mOut.println(SIGNAL_MAX_REACHED + reason);
+    }
+  }
 
-    // Let the parent JVM know that we are ready to start
-    System.out.println(SIGNAL_START);
-    // Now run all the tests for each mutation point
-    int count = 0;
-    for (int i = startPoint; i < mutationCount; i++) {
-      if (count++ >= length && lengthFlag.isSet()) {
-        System.out.println(SIGNAL_MAX_REACHED);
-        break;
+  /**
+   * Sends a report about a mutation point to the parent JVM. On standard
+   * output the report is tagged with the point if needed.
+   */
+  private void send(int type, String prefix, int point, long millis, String text) throws IOException {
+    if (mChannel != null) {
+      mChannel.send(type, point, millis, text);
+    } else {
+      mOut.println((mThreads > 1 ? POINT_PREFIX + point + " " : "") + prefix + text);
+    }
+  }
+
+  /**
+   * Tests a single mutant and reports the outcome to the parent JVM.
+   *
+   * @return null, or the reason this JVM should stop: too many
+   * abandoned threads, or a description of the non-heap memory usage if
+   * it is running out of it.
+   */
+  private String runMutation(Mutater mutater, MutationPlan plan, MutantStore store, MutantSchemata schemata, String className, TestOrder order, FailedTestMap cache,
+                             int i, long timeout) throws Exception {
+    mutater.setMutationPoint(i);
+    final String guarded = schemata != null && i >= 0 ? schemata.getModification(i) : null;
+    ClassLoader jumbler = null;
+    final String made;
+    String digest = null;
+    Outcome earlier = null;
+    if (guarded != null) {
+      jumbler = schemata.activate(i);
+      made = guarded;
+    } else {
+      final MutationPlan.Mutant mutant = store != null ? store.take(i) : plan != null ? plan.createMutant(i, mCache) : null;
+      if (mutant != null && i >= 0) {
+        digest = MutantCache.digest(mutant.getBytes());
+        synchronized (mOutcomes) {
+          earlier = mOutcomes.get(digest);
+        }
+      }
+      if (earlier != null) {
+        made = mutant.getModification();
+      } else {
+        final MutatingClassLoader loader = mutant != null ? new MutatingClassLoader(plan, mutant, mClassPath) : new MutatingClassLoader(className, mutater, mClassPath);
+        loader.setCache(mCache);
+        loader.setSharedLoader(mShared);
+        loader.loadClass(className);
+        jumbler = loader;
+        made = loader.getModification();
+      }
+    }
+    String methodName = mutater.getMutatedMethodName(className);
+    int mutPoint = mutater.getMethodRelativeMutationPoint(className);
+    assert (mutPoint != -1) : "Couldn't get method relative mutation point";
+    String modification = (i == -1) ? "No mutation made" : made;
+
+    // Communicate to parent the current mutation being attempted
+    send(ControlChannel.INIT, INIT_PREFIX, i, 0, modification);
+
+    // Do the run, unless an identical mutant has been tested
+    final long start = System.currentTimeMillis();
+    String out = null;
+    if (earlier != null) {
+      send(ControlChannel.DUPLICATE, DUPLICATE_PREFIX, i, 0, String.valueOf(earlier.mPoint));
+      out = earlier.mOut;
+    } else {
+      try {
+        out = runWatched(jumbler, order, cache, className, methodName, mutPoint, timeout);
+      } finally {
+        if (guarded != null) {
+          schemata.deactivate(out == null || out.startsWith(TIMEOUT_PREFIX));
+        }
       }
-//       if (verboseFlag.isSet()) {
-//         System.err.println("Attempting mutation point: " + i);
-//       }
-      mutater.setMutationPoint(i);
-      jumbler = new MutatingClassLoader(className, mutater, classpath);
-      jumbler.loadClass(className);
-      String methodName = mutater.getMutatedMethodName(className);
-      int mutPoint = mutater.getMethodRelativeMutationPoint(className);
-      assert (mutPoint != -1) : "Couldn't get method relative mutation point";
-      String modification = (i == -1) ? "No mutation made" : mutater.getModification();
-
-      // Communicate to parent the current mutation being attempted
-      System.out.println(INIT_PREFIX + modification); 
-
-      // Do the run
-      String out = JumbleTestSuite.run(jumbler,
-                                       order, 
-                                       cache,
-                                       className,
-                                       methodName, mutPoint, 
-                                       verboseFlag.isSet());
+      if (digest != null) {
+        synchronized (mOutcomes) {
+          if (!mOutcomes.containsKey(digest)) {
+            mOutcomes.put(digest, new Outcome(i, out));
+          }
+        }
+      }
+    }
+    final long millis = System.currentTimeMillis() - start;
       
-      // Communicate the outcome to the parent JVM.
-      if (out.startsWith("FAIL")) {
-        // This is the magic line that the parent JVM is looking for.
-        System.out.println(FAIL_PREFIX + modification); 
-      } else if (out.startsWith("PASS: ")) {
-        String testName = out.substring(6);
-        if (cache != null) {
-          cache.addFailure(className, methodName, mutPoint, testName);
+    // Communicate the outcome to the parent JVM.
+    if (out.startsWith(TIMEOUT_PREFIX)) {
+      send(ControlChannel.TIMEOUT, TIMEOUT_PREFIX, i, millis, out.substring(TIMEOUT_PREFIX.length()));
+      synchronized (this) {
+        if (mAbandonedReason != null) {
+          return mAbandonedReason;
         }
-        // This is the magic line that the parent JVM is looking for.
-        System.out.println(PASS_PREFIX + className + ":" + methodName + ":" + mutPoint + ":" + testName); 
-      } else {
-        throw new RuntimeException("Unexpected result from JumbleTestSuite: " + out);
-      }
-
-      long oldUsed = usage.getUsed() / 1024;
-      usage = mxbean.getNonHeapMemoryUsage();
-      nonheapDelta = usage.getUsed() / 1024 - oldUsed;
-      long available = (usage.getMax() - usage.getUsed()) / 1024;
-      if (verboseFlag.isSet()) {
-        System.err.println("Non-Heap used:" + usage.getUsed() + "KB delta:" + nonheapDelta + "KB avail:" + available + "KB");
-      }
-      // Check non-heap usage and possibly bail out.
-      if (nonheapDelta > 0 && available < ((nonheapDelta * 5) + 15000)) {
-        // Communicate to the parent JVM if there's not enough non-heap memory to continue.
-        System.out.println(SIGNAL_MAX_REACHED 
-                           + "  Non-Heap used:" + usage.getUsed() 
-                           + "KB delta:" + nonheapDelta
-                           + "KB avail:" + available + "KB");
+      }
+    } else if (out.startsWith("FAIL")) {
+      // This is the magic line that the parent JVM is looking for.
+      send(ControlChannel.FAIL, FAIL_PREFIX, i, millis, modification);
+    } else if (out.startsWith("PASS: ")) {
+      String testName = out.substring(6);
+      if (cache != null) {
+        cache.addFailure(className, methodName, mutPoint, testName);
+      }
+      // This is the magic line that the parent JVM is looking for.
+      send(ControlChannel.PASS, PASS_PREFIX, i, millis, className + ":" + methodName + ":" + mutPoint + ":" + testName);
+    } else {
+      throw new RuntimeException("Unexpected result from JumbleTestSuite: " + out);
+    }
+    return checkNonHeap();
+  }
+
+  /** What testing a mutant came to */
+  private static class Outcome {
+    private final int mPoint;
+    private final String mOut;
+
+    Outcome(int point, String out) {
+      mPoint = point;
+      mOut = out;
+    }
+  }
+
+  /**
+   * Runs the tests against a mutant on a new thread, waiting no longer
+   * than the timeout for them to finish, and checking regularly whether
+   * the thread or any thread it started is deadlocked. Threads that do
+   * not finish in time or are deadlocked are interrupted and abandoned,
+   * along with the class loader holding the mutant.
+   *
+   * @param timeout milliseconds to wait, or 0 to wait until the tests
+   * finish or deadlock.
+   * @return the outcome from <code>JumbleTestSuite</code>, or
+   * <code>TIMEOUT_PREFIX</code> followed by the reason the tests were
+   * abandoned.
+   */
+  private String runWatched(final ClassLoader jumbler, final TestOrder order, final FailedTestMap cache, final String className,
+                            final String methodName, final int mutPoint, long timeout) throws Exception {
+    final Object[] outcome = new Object[1];
+    // Threads started by the tests join the group, so deadlocks between them are found too
+    final ThreadGroup group = new ThreadGroup("Jumble tests");
+    group.setDaemon(true);
+    final Thread runner = new Thread(group, "Jumble test runner") {
+        public void run() {
+          try {
+            outcome[0] = JumbleTestSuite.run(jumbler, order, cache, className, methodName, mutPoint, mVerbose);
+          } catch (RuntimeException e) {
+            outcome[0] = e;
+          } catch (Error e) {
+            outcome[0] = e;
+          }
+        }
+      };
+    runner.setDaemon(true);
+    runner.start();
+    final long deadline = System.currentTimeMillis() + timeout;
+    while (true) {
+      final long remaining = deadline - System.currentTimeMillis();
+      if (timeout > 0 && remaining <= 0) {
+        abandon(group, false);
+        return TIMEOUT_PREFIX + "Timed out after " + timeout + "ms";
+      }
+      runner.join(timeout > 0 ? Math.min(remaining, DEADLOCK_INTERVAL) : DEADLOCK_INTERVAL);
+      if (!runner.isAlive()) {
         break;
       }
+      final String deadlocked = findDeadlocked(group);
+      if (deadlocked != null) {
+        abandon(group, true);
+        return TIMEOUT_PREFIX + "Deadlocked threads: " + deadlocked;
+      }
+    }
+    if (outcome[0] instanceof RuntimeException) {
+      throw (RuntimeException) outcome[0];
+    } else if (outcome[0] instanceof Error) {
+      throw (Error) outcome[0];
+    }
+    return (String) outcome[0];
+  }
+
+  /**
+   * Interrupts the threads testing a mutant and gives up on them. This
+   * JVM stops once it has abandoned too many, or any deadlocked threads,
+   * since those ignore interrupts and keep their locks for good.
+   */
+  private synchronized void abandon(ThreadGroup group, boolean deadlocked) {
+    group.interrupt();
+    mAbandoned++;
+    if (deadlocked) {
+      mAbandonedReason = "  Abandoned deadlocked test threads";
+    } else if (mAbandonedReason == null && mAbandoned >= mMaxAbandoned) {
+      mAbandonedReason = "  Abandoned " + mAbandoned + " test threads";
+    }
+  }
+
+  /**
+   * Looks for deadlocked threads in a thread group. Only deadlocks on
+   * object monitors are found, which are what <code>synchronized</code>
+   * code gets into.
+   *
+   * @return the names of the deadlocked threads, or null if there are none.
+   */
+  private String findDeadlocked(ThreadGroup group) {
+    final long[] ids = mThreadBean.findMonitorDeadlockedThreads();
+    if (ids == null) {
+      return null;
+    }
+    final Thread[] threads = new Thread[group.activeCount() + 10];
+    final int count = group.enumerate(threads);
+    final StringBuffer names = new StringBuffer();
+    for (int t = 0; t < count; t++) {
+      for (int j = 0; j < ids.length; j++) {
+        if (threads[t].getId() == ids[j]) {
+          final ThreadInfo info = mThreadBean.getThreadInfo(ids[j]);
+          if (names.length() > 0) {
+            names.append(", ");
+          }
+          names.append(threads[t].getName());
+          if (info != null) {
+            names.append(" waiting for ").append(info.getLockName()).append(" held by ").append(info.getLockOwnerName());
+          }
+        }
+      }
+    }
+    return names.length() > 0 ? names.toString() : null;
+  }
 
+  /**
+   * Checks non-heap usage since the last check.
+   *
+   * @return null, or a description of the usage if there is not enough
+   * non-heap memory to continue.
+   */
+  private synchronized String checkNonHeap() {
+    long oldUsed = mUsage.getUsed() / 1024;
+    mUsage = mMxBean.getNonHeapMemoryUsage();
+    long nonheapDelta = mUsage.getUsed() / 1024 - oldUsed;
+    long available = (mUsage.getMax() - mUsage.getUsed()) / 1024;
+    if (mVerbose) {
+      System.err.println("Non-Heap used:" + mUsage.getUsed() + "KB delta:" + nonheapDelta + "KB avail:" + available + "KB");
+    }
+    // Check non-heap usage and possibly bail out. A maximum of -1 means
+    // the JVM does not limit non-heap memory.
+    if (nonheapDelta > 0 && mUsage.getMax() >= 0 && available < ((nonheapDelta * 5) + 15000)) {
+      return "  Non-Heap used:" + mUsage.getUsed() 
+        + "KB delta:" + nonheapDelta
+        + "KB avail:" + available + "KB";
     }
+    return null;
   }
 
 }
@@ -2,12 +2,12 @@ package com.reeltwo.jumble.fast;
 
 
 
+import com.reeltwo.jumble.mutation.MutationPoint;
 import com.reeltwo.jumble.mutation.Mutater;
 import com.reeltwo.jumble.mutation.MutatingClassLoader;
 import com.reeltwo.jumble.ui.JumbleListener;
 import com.reeltwo.jumble.ui.NullListener;
-import com.reeltwo.jumble.util.IOThread;
-import com.reeltwo.jumble.util.JavaRunner;
+import com.reeltwo.jumble.util.ClassPathIndex;
 import com.reeltwo.jumble.util.JumbleUtils;
 import java.io.File;
 import java.io.FileInputStream;
@@ -16,11 +16,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A runner for the <CODE>FastJumbler</CODE>. Runs the FastJumbler in a new
@@ -34,6 +37,9 @@ public class FastRunner {
   /** Filename for the cache */
   public static final File CACHE_FILE = new File(System.getProperty("user.home"), ".com.reeltwo.jumble-cache.dat");
 
+  /** Number of mutation point ranges queued per worker when running child JVMs concurrently */
+  private static final int RANGES_PER_WORKER = 4;
+
   // Configuration properties
 
   /** Whether to mutate constants */
@@ -72,6 +78,36 @@ public class FastRunner {
    */
   private int mFirstMutation = 0;
 
+  /** Number of child JVMs to run mutations in concurrently */
+  private int mWorkerCount = 1;
+
+  /** Number of mutants each child JVM tests concurrently */
+  private int mThreadCount = 1;
+
+  /**
+   * Number of timed out mutants a child JVM abandons before it is
+   * replaced, or 0 to leave timeouts to the parent.
+   */
+  private int mMaxAbandoned = FastJumbler.DEFAULT_MAX_ABANDONED;
+
+  /**
+   * Extra time in milliseconds the parent waits for a result beyond the
+   * timeout given to the watchdog in the child JVM.
+   */
+  private static final long WATCHDOG_GRACE = 2000;
+
+  /**
+   * How many times the loop iterations a test made in the unmutated
+   * class it may make in a mutant, or 0 to not count loop iterations.
+   */
+  private int mLoopBudget = 0;
+
+  /** Loop iterations every test may make on top of its loop budget */
+  private static final long LOOP_SLACK = 10000;
+
+  /** Whether child JVMs are kept alive and reused across classes */
+  private boolean mSessionMode = false;
+
   private Set<String> mExcludeMethods = new HashSet<String>();
 
   private List<String> mJvmArgs = new ArrayList<String>();
@@ -85,13 +121,38 @@ public class FastRunner {
 
   private File mTestSuiteFile;
 
-  private JavaRunner mRunner = null;
+  /** Child JVMs that may still be running, destroyed if this JVM is interrupted */
+  private final Set<ChildJvm> mChildren = Collections.synchronizedSet(new HashSet<ChildJvm>());
+
+  /** Session child JVMs waiting for their next job */
+  private final List<ChildJvm> mIdleChildren = new ArrayList<ChildJvm>();
+
+  /** Whether to keep a spare child JVM started, ready to replace one that stops */
+  private boolean mUseStandby = false;
+
+  /** Whether child JVMs play mutants through a meta-mutant of the class */
+  private boolean mSchemata = false;
+
+  /** Whether child JVMs make mutants ahead of time */
+  private boolean mPregenerate = false;
 
-  private Process mChildProcess = null;
+  /** Directory mutants are kept in between runs, or null */
+  private File mMutantCacheDir = null;
 
-  private IOThread mIot = null;
+  /** Megabytes the mutant cache may grow to */
+  private int mMutantCacheSize = FastJumbler.DEFAULT_MUTANT_CACHE_SIZE;
 
-  private IOThread mEot = null;
+  /** Whether mutation points known to give equivalent mutants are left untested */
+  private boolean mSkipEquivalent = false;
+
+  /** Whether child JVMs load classes that cannot reach the mutated class only once */
+  private boolean mShareClasses = false;
+
+  /** Where each mutation point of the class is, or null before the initial tests */
+  private MutationPoint[] mPoints = null;
+
+  /** The spare child JVM, or null if there is none */
+  private ChildJvm mStandby = null;
 
   private int mMutationCount;
 
@@ -105,12 +166,12 @@ public class FastRunner {
     // child process will be destroyed.
     Runtime.getRuntime().addShutdownHook(new Thread() {
         public void run() {
-          Process childProcess = mChildProcess;
-          if (childProcess != null) {
-            if (mVerbose) {
-              System.err.println("Shutting down child process");
-            }
-            childProcess.destroy();
+          ChildJvm[] children;
+          synchronized (mChildren) {
+            children = mChildren.toArray(new ChildJvm[mChildren.size()]);
+          }
+          for (int i = 0; i < children.length; i++) {
+            children[i].destroy();
           }
         }
       });
@@ -122,12 +183,100 @@ public class FastRunner {
     mJvmArgs.add(System.getProperty("java.class.path"));
   }
 
-  private JavaRunner getJavaRunner() {
-    if (mRunner == null) {
-      mRunner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler");
-      mRunner.setJvmArguments(mJvmArgs.toArray(new String[mJvmArgs.size()]));
+  private String[] getJvmArgs() {
+    return mJvmArgs.toArray(new String[mJvmArgs.size()]);
+  }
+
+  /**
+   * Gets a child JVM handle, registered for cleanup at shutdown. This
+   * reuses an idle child if one was started with the current settings.
+   */
+  private ChildJvm createChild() {
+    final String[] jvmArgs = getJvmArgs();
+    final String[] sessionArgs = createSessionArgs(getMaxExternalMutations());
+    synchronized (mIdleChildren) {
+      while (!mIdleChildren.isEmpty()) {
+        ChildJvm child = mIdleChildren.remove(mIdleChildren.size() - 1);
+        if (child.isSessionFor(jvmArgs, sessionArgs)) {
+          return child;
+        }
+        child.release();
+        mChildren.remove(child);
+      }
+    }
+    ChildJvm child = new ChildJvm(jvmArgs, mVerbose);
+    mChildren.add(child);
+    return child;
+  }
+
+  /**
+   * Finishes with a child JVM. A child that is still running is kept
+   * for the next job, otherwise it is forgotten about.
+   */
+  private void disposeChild(ChildJvm child) {
+    if (child.isRunning()) {
+      synchronized (mIdleChildren) {
+        mIdleChildren.add(child);
+      }
+    } else {
+      mChildren.remove(child);
     }
-    return mRunner;
+  }
+
+  /**
+   * Starts a spare child JVM if there should be one and it is missing.
+   * The child is not waited for, it gets on with starting up while
+   * other children are running mutations.
+   */
+  private void startStandby() throws IOException {
+    synchronized (mChildren) {
+      if (mUseStandby && mStandby == null) {
+        final ChildJvm standby = new ChildJvm(getJvmArgs(), mVerbose);
+        standby.startSession(createSessionArgs(getMaxExternalMutations()));
+        mChildren.add(standby);
+        mStandby = standby;
+      }
+    }
+  }
+
+  /**
+   * Starts a child JVM, taking over the spare child if it was started
+   * with the current settings, and starting a new spare.
+   */
+  private void startChild(ChildJvm child) throws IOException {
+    final String[] sessionArgs = createSessionArgs(getMaxExternalMutations());
+    synchronized (mChildren) {
+      if (mStandby != null) {
+        if (mStandby.isSessionFor(getJvmArgs(), sessionArgs)) {
+          child.takeOver(mStandby);
+        } else {
+          mStandby.release();
+        }
+        mChildren.remove(mStandby);
+        mStandby = null;
+      }
+    }
+    if (!child.isRunning()) {
+      child.startSession(sessionArgs);
+    }
+    startStandby();
+  }
+
+  /**
+   * Hands a child JVM the job of running mutation points from
+   * <code>currentMutation</code> up to <code>end</code>, starting the
+   * child first if needed.
+   *
+   * @param timeout milliseconds after which the child abandons a mutant,
+   * or 0 to leave timeouts to the parent.
+   */
+  private void startJob(ChildJvm child, int currentMutation, int end, File cacheFile, long timeout) throws IOException, InterruptedException {
+    if (!child.isRunning()) {
+      startChild(child);
+    }
+    final String cache = mUseCache && writeCache(cacheFile) ? cacheFile.toString() : null;
+    child.submit(FastJumbler.createJob(mClassName, mTestSuiteFile.toString(), cache, currentMutation, end < mMutationCount ? end : -1,
+                                       mMaxAbandoned > 0 ? timeout : 0));
   }
 
   /**
@@ -383,7 +532,9 @@ public class FastRunner {
       String methodName = tokens.nextToken();
       int mutPoint = Integer.parseInt(tokens.nextToken());
       String testName = tokens.nextToken();
-      mCache.addFailure(clazzName, methodName, mutPoint, testName);
+      synchronized (mCache) {
+        mCache.addFailure(clazzName, methodName, mutPoint, testName);
+      }
     }
   }
 
@@ -393,7 +544,9 @@ public class FastRunner {
         f.delete();
       }
       ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(f));
-      o.writeObject(mCache);
+      synchronized (mCache) {
+        o.writeObject(mCache);
+      }
       o.close();
       return true;
     } catch (IOException e) {
@@ -425,28 +578,18 @@ public class FastRunner {
     mJvmArgs.add("-D" + property);
   }
 
-  /** Constructs arguments to the FastJumbler */
-  private String[] createArgs(int currentMutation, int max) {
+  /** Constructs arguments to a FastJumbler that will run as a session */
+  private String[] createSessionArgs(int max) {
     ArrayList<String> args = new ArrayList<String>();
     args.add("--" + FastJumbler.FLAG_CLASSPATH);
     args.add(mClassPath);
+    args.add("--" + FastJumbler.FLAG_SESSION);
+    addOptionArgs(args, max);
+    return args.toArray(new String[args.size()]);
+  }
 
-    // mutation point
-    args.add("--" + FastJumbler.FLAG_START);
-    args.add(String.valueOf(currentMutation));
-
-    // class name
-    args.add(mClassName);
-    // test suite filename
-    args.add(mTestSuiteFile.toString());
-
-    if (mUseCache) {
-      // Write a temp cache
-      if (writeCache(mCacheFile)) {
-        args.add(mCacheFile.toString());
-      }
-    }
-
+  /** Adds the FastJumbler arguments that do not depend on the class being mutated */
+  private void addOptionArgs(List<String> args, int max) {
     // exclude methods
     if (!mExcludeMethods.isEmpty()) {
       StringBuffer ex = new StringBuffer();
@@ -490,12 +633,36 @@ public class FastRunner {
       args.add("--" + FastJumbler.FLAG_LENGTH);
       args.add("" + max);
     }
-    return args.toArray(new String[args.size()]);
+    if (mThreadCount > 1) {
+      args.add("--" + FastJumbler.FLAG_THREADS);
+      args.add("" + mThreadCount);
+    }
+    args.add("--" + FastJumbler.FLAG_MAX_ABANDONED);
+    args.add("" + Math.max(1, mMaxAbandoned));
+    if (mSchemata) {
+      args.add("--" + FastJumbler.FLAG_SCHEMATA);
+    }
+    if (mPregenerate) {
+      args.add("--" + FastJumbler.FLAG_PREGENERATE);
+    }
+    if (mMutantCacheDir != null) {
+      args.add("--" + FastJumbler.FLAG_MUTANT_CACHE);
+      args.add(mMutantCacheDir.getPath());
+      args.add("--" + FastJumbler.FLAG_MUTANT_CACHE_SIZE);
+      args.add("" + mMutantCacheSize);
+    }
+    if (mSkipEquivalent) {
+      args.add("--" + FastJumbler.FLAG_SKIP_EQUIVALENT);
+    }
+    if (mShareClasses) {
+      args.add("--" + FastJumbler.FLAG_SHARE_CLASSES);
+    }
   }
 
   private Mutater createMutater(int mutationpoint) {
     // Get the number of mutation points from the Jumbler
     final Mutater m = new Mutater(mutationpoint);
+    m.setLoopProbes(mLoopBudget > 0);
     m.setIgnoredMethods(mExcludeMethods);
     m.setMutateIncrements(mIncrements);
     m.setMutateCPool(mCPool);
@@ -509,91 +676,19 @@ public class FastRunner {
     return loader.countMutationPoints(classname);
   }
 
-  private boolean debugOutput(String out, String err) {
-    if (err != null) {
-      System.err.println("Child.err->" + err);
-    }
-    if (out != null) {
-      System.err.println("Child.out->" + out);
-    }
-    return true; // So we can be enabled/disabled via assertion mechanism.
-  }
-
-  private void waitForStart(IOThread iot, IOThread eot) throws InterruptedException {
-    // read the "START" to let us know the JVM has started
-    // we don't want to time this.
-    // FIXME this looks dangerous. What if the test can't even get to the point
-    // of outputting START (e.g. class loading issues)
-    while (true) {
-      String out = iot.getNext();
-      String err = eot.getAvailable();
-      if (mVerbose) {
-        debugOutput(out, err);
-      }
-      if ((out == null) && (err == null)) {
-        Thread.sleep(10);
-      } else if (FastJumbler.SIGNAL_START.equals(out)) {
-        break;
-      } else {
-        throw new RuntimeException("com.reeltwo.jumble.fast.FastJumbler returned " + ((out != null) ? out : err + " on stderr") + " instead of " + FastJumbler.SIGNAL_START);
-      }
-    }
-  }
-
-  private void startChildProcess(String[] args) throws IOException, InterruptedException {
-    JavaRunner runner = getJavaRunner();
-    runner.setArguments(args);
-    mChildProcess = runner.start();
-    mIot = new IOThread(mChildProcess.getInputStream());
-    mIot.setDaemon(true);
-    mIot.start();
-    mEot = new IOThread(mChildProcess.getErrorStream());
-    mEot.setDaemon(true);
-    mEot.start();
-    waitForStart(mIot, mEot);
-  }
-
-  /** Reads a mutation result from the child process */
-  private MutationResult readMutation(int currentMutation, long timeout) throws InterruptedException {
-    long before = System.currentTimeMillis();
-    long after = before;
-    String modification = null;
-    // Run until we have a result or time out
-    while (true) {
-      String out = mIot.getNext();
-      if (mVerbose) {
-        debugOutput(out, mEot.getAvailable());
-      }
-      if (out == null) {
-        if (after - before > timeout) {
-          mChildProcess.destroy();
-          mChildProcess = null;
-          return new MutationResult(MutationResult.TIMEOUT, mClassName, currentMutation, modification);
-        } else {
-          Thread.sleep(50);
-          after = System.currentTimeMillis();
-        }
-      } else {
-        if (out.startsWith(FastJumbler.SIGNAL_MAX_REACHED)) {
-          return null; // Child JVM requested continuing in a new JVM
-        } else if (out.startsWith(FastJumbler.INIT_PREFIX)) {
-          modification = out.substring(FastJumbler.INIT_PREFIX.length());
-        } else {
-          MutationResult m = null;
-          if (out.startsWith(FastJumbler.PASS_PREFIX)) {
-            m = new MutationResult(MutationResult.PASS, mClassName, currentMutation, modification, out.substring(FastJumbler.PASS_PREFIX.length()));
-          } else if (out.startsWith(FastJumbler.FAIL_PREFIX)) {
-            m = new MutationResult(MutationResult.FAIL, mClassName, currentMutation, modification);
-          }
-          if (m != null) {
-            if (mUseCache) {
-              updateCache(m);
-            }
-            return m;
-          }
-        }
-      }
+  /**
+   * Reads the result of a single mutation from a child JVM, recording
+   * it in the cache.
+   *
+   * @return the result, or null if the child requested continuing in a
+   * new JVM.
+   */
+  private MutationResult readMutation(ChildJvm child, int currentMutation, long timeout) throws InterruptedException {
+    MutationResult m = child.readMutation(mClassName, currentMutation, timeout);
+    if (m != null && mUseCache) {
+      updateCache(m);
     }
+    return m;
   }
 
   /**
@@ -603,7 +698,8 @@ public class FastRunner {
   private JumbleResult runInitialTests(List<String> testClassNames) {
 
     //System.err.println("Using classpath: " + mClassPath);
-    MutatingClassLoader jumbler = new MutatingClassLoader(mClassName, createMutater(-1), mClassPath);
+    final Mutater mutater = createMutater(-1);
+    MutatingClassLoader jumbler = new MutatingClassLoader(mClassName, mutater, mClassPath);
     ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
     Thread.currentThread().setContextClassLoader(jumbler);
     try {
@@ -640,20 +736,36 @@ public class FastRunner {
 
       // Store the test suite information serialized in a temporary file so
       // FastJumbler can load it.
-      Object order = suite.getOrder(mOrdered);
+      TestOrder order = suite.getOrder(mOrdered);
+      if (mLoopBudget > 0) {
+        final long[] budgets = suite.getLoopCounts().clone();
+        for (int i = 0; i < budgets.length; i++) {
+          budgets[i] = budgets[i] * mLoopBudget + LOOP_SLACK;
+        }
+        order.setLoopBudgets(budgets);
+      }
       ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(mTestSuiteFile));
       oos.writeObject(order);
       oos.close();
+      // Along with where each mutation point is, so that FastJumbler
+      // need not count through the class for every mutant
+      mPoints = mutater.getMutationPoints(mClassName);
+      oos = new ObjectOutputStream(new FileOutputStream(FastJumbler.getPointsFile(mTestSuiteFile.toString())));
+      oos.writeObject(mPoints);
+      oos.close();
 
       // Now try the tests again in a separate JVM to detect if there
       // are problems due to invocation within a separate JVM.
-      mChildProcess = null;
-      mIot = null;
-      mEot = null;
-      startChildProcess(createArgs(-1, 1));
-      MutationResult thisResult = readMutation(-1, computeTimeout(mTotalRuntime));
-      if (mChildProcess != null) {
-        mChildProcess = null;
+      ChildJvm child = createChild();
+      MutationResult thisResult = null;
+      try {
+        startJob(child, -1, 0, mCacheFile, 0);
+        thisResult = readMutation(child, -1, computeTimeout(mTotalRuntime));
+      } finally {
+        if (thisResult == null) {
+          child.release();
+        }
+        disposeChild(child);
       }
       if (thisResult == null) {
         // This is a problem due to unknown reasons
@@ -764,6 +876,18 @@ public class FastRunner {
     }
 
     mClassName = className;
+    try {
+      startStandby();
+      return runJumbleProxy(testClassNames, listener);
+    } finally {
+      if (!mSessionMode) {
+        endSession();
+      }
+    }
+  }
+
+  private JumbleResult runJumbleProxy(final List<String> testClassNames, JumbleListener listener) throws Exception {
+    final String className = mClassName;
     mCacheFile = File.createTempFile("cache", ".dat");
     mTestSuiteFile = File.createTempFile("testSuite", ".dat");
 
@@ -773,71 +897,215 @@ public class FastRunner {
 
     listener.jumbleRunStarted(mClassName, testClassNames);
 
-    JumbleResult initialResult = runInitialTests(testClassNames);
-    if (initialResult != null) {
-      listener.performedInitialTest(initialResult, mMutationCount);
-      // Jumbling will not happen here
-      listener.jumbleRunEnded();
-      return initialResult;
-    }
+    // The points file is written by the initial run, and must go however the run ends
+    try {
+      JumbleResult initialResult = runInitialTests(testClassNames);
+      if (initialResult != null) {
+        listener.performedInitialTest(initialResult, mMutationCount);
+        // Jumbling will not happen here
+        listener.jumbleRunEnded();
+        return initialResult;
+      }
+
+      // compute the timeout
+      long timeout = computeTimeout(mTotalRuntime);
 
-    // compute the timeout
-    long timeout = computeTimeout(mTotalRuntime);
+      listener.performedInitialTest(new InitialOKJumbleResult(className, testClassNames, timeout), mMutationCount);
 
-    listener.performedInitialTest(new InitialOKJumbleResult(className, testClassNames, timeout), mMutationCount);
+      final MutationResult[] allMutations = new MutationResult[mMutationCount];
+      if (mWorkerCount > 1) {
+        runWorkers(allMutations, timeout, listener);
+      } else {
+        ChildJvm child = createChild();
+        boolean finished = false;
+        try {
+          runMutations(child, getFirstMutation(), mMutationCount, timeout, mCacheFile, allMutations, listener);
+          finished = true;
+        } finally {
+          if (!finished) {
+            child.destroy();
+          }
+          disposeChild(child);
+        }
+      }
 
-    mChildProcess = null;
-    mIot = null;
-    mEot = null;
+      JumbleResult ret = new NormalJumbleResult(className, testClassNames, allMutations, timeout);
 
-    final MutationResult[] allMutations = new MutationResult[mMutationCount];
-    int count = 0;
+      // finally, delete the test suite file
+      if (mTestSuiteFile.exists() && !mTestSuiteFile.delete()) {
+        System.err.println("Error: could not delete temporary file");
+      }
+      // Also delete the temporary cache and save the cache if needed
+      if (mUseCache) {
+        if (mCacheFile.exists() && !mCacheFile.delete()) {
+          System.err.println("Error: could not delete temporary cache file " + mCacheFile);
+        }
+        if (mSaveCache) {
+          writeCache(CACHE_FILE);
+        }
+      }
+      listener.jumbleRunEnded();
+      mCache = null;
+      return ret;
+    } finally {
+      final File pointsFile = FastJumbler.getPointsFile(mTestSuiteFile.toString());
+      if (pointsFile.exists() && !pointsFile.delete()) {
+        System.err.println("Error: could not delete temporary file " + pointsFile);
+      }
+    }
+  }
+
+  /**
+   * Runs the mutation points from <code>start</code> (inclusive) to
+   * <code>end</code> (exclusive) in a child JVM, restarting the child
+   * as needed. Each result is stored in <code>results</code>; if a
+   * listener is supplied it is also told about the result. The child
+   * is left running once the range is finished. If the child exits
+   * while running several mutants, they are run again one to a job so
+   * that the one that killed it can be told.
+   */
+  private void runMutations(ChildJvm child, int start, int end, long timeout, File cacheFile, MutationResult[] results, JumbleListener listener) throws Exception {
     final int max = getMaxExternalMutations();
-    for (int currentMutation = getFirstMutation(); currentMutation < mMutationCount; currentMutation++) {
-      if (mChildProcess == null) {
-        startChildProcess(createArgs(currentMutation, max));
-        count = 0;
+    // Give the watchdog in the child the chance to report a timeout first
+    final long wait = mMaxAbandoned > 0 ? timeout + WATCHDOG_GRACE : timeout;
+    // The job running in the child stops before this point
+    int jobEnd = start;
+    // Points up to here are run one to a job
+    int alone = -1;
+    for (int currentMutation = start; currentMutation < end; currentMutation++) {
+      if (isSkipped(currentMutation)) {
+        // The child leaves these out too
+        final MutationPoint point = mPoints[currentMutation];
+        report(new MutationResult(MutationResult.EQUIVALENT, mClassName, currentMutation, point.getDescription()), results, listener);
+        continue;
       }
-      MutationResult thisResult = readMutation(currentMutation, timeout);
+      if (currentMutation >= jobEnd || !child.isRunning()) {
+        jobEnd = currentMutation <= alone ? currentMutation + 1 : end;
+        startJob(child, currentMutation, jobEnd, cacheFile, timeout);
+      }
+      MutationResult thisResult = readMutation(child, currentMutation, wait);
       if (thisResult == null) {
-        mChildProcess = null;
-        if (count == 0) {
+        child.release();
+        final int unattributed = child.takeUnattributed();
+        if (unattributed >= 0) {
+          alone = Math.max(alone, unattributed);
+          currentMutation--;
+        } else if (child.getMutationCount() == 0) {
           System.err.println("WARNING: Child JVM requested restart before completing any mutations!!");
         } else {
           // Restart current mutation in a new JVM
           currentMutation--;
         }
       } else {
-        allMutations[currentMutation] = thisResult;
-        count++;
-        if (max >= 0 && count >= max) {
-          mChildProcess = null;
+        if (max >= 0 && child.getMutationCount() >= max) {
+          child.release();
         }
-        listener.finishedMutation(thisResult);
+        report(thisResult, results, listener);
       }
     }
-    if (mChildProcess != null) {
-      mChildProcess = null;
+  }
+
+  /** Tells whether a mutation point is left untested because its mutant is known to be equivalent */
+  private boolean isSkipped(int point) {
+    return mSkipEquivalent && mPoints != null && point >= 0 && point < mPoints.length && mPoints[point].isEquivalent();
+  }
+
+  /**
+   * Stores the result of a mutation point, telling the listener if
+   * there is one, otherwise waking whoever is waiting for it.
+   */
+  private static void report(MutationResult result, MutationResult[] results, JumbleListener listener) {
+    final int point = result.getMutationPoint();
+    if (listener != null) {
+      results[point] = result;
+      listener.finishedMutation(result);
+    } else {
+      synchronized (results) {
+        results[point] = result;
+        results.notifyAll();
+      }
     }
+  }
 
-    JumbleResult ret = new NormalJumbleResult(className, testClassNames, allMutations, timeout);
+  /**
+   * Runs all mutation points using several child JVMs at once. The
+   * points are split into ranges placed on a shared queue, and each
+   * worker thread drives its own child JVM through ranges taken from
+   * the queue until none remain. Results are passed to the listener
+   * in mutation point order as they become available.
+   */
+  private void runWorkers(final MutationResult[] results, final long timeout, final JumbleListener listener) throws Exception {
+    final int first = getFirstMutation();
+    final int workers = Math.max(1, Math.min(mWorkerCount, mMutationCount - first));
+    final int rangeLength = Math.max(1, (mMutationCount - first) / (workers * RANGES_PER_WORKER));
+    final Queue<int[]> ranges = new ConcurrentLinkedQueue<int[]>();
+    for (int start = first; start < mMutationCount; start += rangeLength) {
+      ranges.add(new int[] {start, Math.min(start + rangeLength, mMutationCount)});
+    }
 
-    // finally, delete the test suite file
-    if (mTestSuiteFile.exists() && !mTestSuiteFile.delete()) {
-      System.err.println("Error: could not delete temporary file");
+    final Exception[] failure = new Exception[1];
+    final int[] running = new int[] {workers};
+    final List<File> cacheFiles = new ArrayList<File>();
+    final Thread[] threads = new Thread[workers];
+    for (int w = 0; w < workers; w++) {
+      final File cacheFile = File.createTempFile("cache", ".dat");
+      cacheFiles.add(cacheFile);
+      threads[w] = new Thread("Jumble worker " + w) {
+          public void run() {
+            ChildJvm child = createChild();
+            try {
+              int[] range;
+              while ((range = ranges.poll()) != null) {
+                runMutations(child, range[0], range[1], timeout, cacheFile, results, null);
+              }
+            } catch (Exception e) {
+              child.destroy();
+              synchronized (results) {
+                if (failure[0] == null) {
+                  failure[0] = e;
+                }
+              }
+              ranges.clear();
+            } finally {
+              disposeChild(child);
+              synchronized (results) {
+                running[0]--;
+                results.notifyAll();
+              }
+            }
+          }
+        };
+      threads[w].setDaemon(true);
+      threads[w].start();
     }
-    // Also delete the temporary cache and save the cache if needed
-    if (mUseCache) {
-      if (mCacheFile.exists() && !mCacheFile.delete()) {
-        System.err.println("Error: could not delete temporary cache file " + mCacheFile);
+
+    try {
+      for (int currentMutation = first; currentMutation < mMutationCount; currentMutation++) {
+        MutationResult thisResult;
+        synchronized (results) {
+          while ((thisResult = results[currentMutation]) == null && running[0] > 0 && failure[0] == null) {
+            results.wait();
+          }
+          if (failure[0] != null) {
+            throw failure[0];
+          }
+        }
+        // A point without a result was skipped by its worker
+        if (thisResult != null) {
+          listener.finishedMutation(thisResult);
+        }
       }
-      if (mSaveCache) {
-        writeCache(CACHE_FILE);
+    } finally {
+      ranges.clear();
+      for (int w = 0; w < workers; w++) {
+        threads[w].join();
+      }
+      for (File cacheFile : cacheFiles) {
+        if (cacheFile.exists() && !cacheFile.delete()) {
+          System.err.println("Error: could not delete temporary cache file " + cacheFile);
+        }
       }
     }
-    listener.jumbleRunEnded();
-    mCache = null;
-    return ret;
   }
 
   /**
@@ -878,4 +1146,305 @@ public class FastRunner {
   public void setFirstMutation(final int newFirstMutation) {
     mFirstMutation = newFirstMutation;
   }
+
+  /**
+   * Gets the number of child JVMs used to run mutations concurrently.
+   *
+   * @return the number of child JVMs.
+   */
+  public int getWorkerCount() {
+    return mWorkerCount;
+  }
+
+  /**
+   * Gets the number of mutants each child JVM tests concurrently.
+   *
+   * @return the number of threads testing mutants in each child JVM.
+   */
+  public int getThreadCount() {
+    return mThreadCount;
+  }
+
+  /**
+   * Sets the number of mutants each child JVM tests concurrently. Each
+   * mutant is loaded by its own class loader, so this uses more cores
+   * without the memory cost of more child JVMs, but is only safe if the
+   * tests do not share state outside the mutated classes (such as
+   * files or system properties).
+   *
+   * @param threadCount the number of threads testing mutants in each child JVM.
+   */
+  public void setThreadCount(final int threadCount) {
+    mThreadCount = threadCount;
+  }
+
+  /**
+   * Gets the multiple of the loop iterations made by the unmutated
+   * class that tests may make in a mutant.
+   *
+   * @return the loop budget, or 0 if loop iterations are not counted.
+   */
+  public int getLoopBudget() {
+    return mLoopBudget;
+  }
+
+  /**
+   * Sets the multiple of the loop iterations made by the unmutated
+   * class that tests may make in a mutant. Every loop in the class is
+   * instrumented, and the iterations each test makes are counted during
+   * the initial run. A test that goes over that many times its count
+   * (plus a small allowance) against a mutant stops at once, and the
+   * mutant is reported as timed out rather than waiting for the
+   * timeout.
+   *
+   * @param loopBudget the loop budget, or 0 to not count loop iterations.
+   */
+  public void setLoopBudget(final int loopBudget) {
+    mLoopBudget = loopBudget;
+  }
+
+  /**
+   * Gets the number of timed out mutants a child JVM abandons before it
+   * is replaced.
+   *
+   * @return the number of abandoned mutants, or 0 if timeouts are left
+   * to the parent.
+   */
+  public int getMaxAbandoned() {
+    return mMaxAbandoned;
+  }
+
+  /**
+   * Sets the number of timed out mutants a child JVM abandons before it
+   * is replaced. A watchdog in the child reports a mutant whose tests
+   * run too long as timed out and leaves their thread behind, so the
+   * warmed up JVM can carry on with the next mutant. Abandoned threads
+   * may still be using CPU and memory, so the child is replaced once it
+   * has abandoned this many. The parent still kills a child that does
+   * not report in time. A child that finds deadlocked tests is always
+   * replaced, since it cannot get rid of their threads.
+   *
+   * @param maxAbandoned the number of abandoned mutants, or 0 to leave
+   * timeouts to the parent.
+   */
+  public void setMaxAbandoned(final int maxAbandoned) {
+    mMaxAbandoned = maxAbandoned;
+  }
+
+  /**
+   * Gets whether child JVMs are kept alive and reused across classes.
+   *
+   * @return true if session mode is enabled.
+   */
+  public boolean isSessionMode() {
+    return mSessionMode;
+  }
+
+  /**
+   * Sets whether child JVMs are kept alive and reused across classes.
+   * Child JVMs always wait for their next job rather than exiting once
+   * they finish their mutations, but outside session mode they are shut
+   * down at the end of each <code>runJumble</code>. In session mode a
+   * run over many classes only pays for JVM startup and warm-up when a
+   * child has to be replaced (after a timeout or when it reaches its
+   * mutation or memory limit). Call <code>endSession</code> when
+   * finished with the runner.
+   *
+   * @param sessionMode true to keep child JVMs alive between classes.
+   */
+  public void setSessionMode(final boolean sessionMode) {
+    mSessionMode = sessionMode;
+  }
+
+  /**
+   * Shuts down any child JVMs being kept alive in session mode, and
+   * closes the jars on the classpath.
+   */
+  public void endSession() {
+    synchronized (mIdleChildren) {
+      for (ChildJvm child : mIdleChildren) {
+        child.release();
+        mChildren.remove(child);
+      }
+      mIdleChildren.clear();
+    }
+    synchronized (mChildren) {
+      if (mStandby != null) {
+        mStandby.release();
+        mChildren.remove(mStandby);
+        mStandby = null;
+      }
+    }
+    ClassPathIndex.release(mClassPath);
+  }
+
+  /**
+   * Gets whether a spare child JVM is kept started.
+   *
+   * @return true if a spare child JVM is used.
+   */
+  public boolean isUseStandby() {
+    return mUseStandby;
+  }
+
+  /**
+   * Sets whether a spare child JVM is kept started. The spare starts up
+   * while other children are running mutations, so that when a child has
+   * to be replaced (after a timeout or when it reaches its mutation or
+   * memory limit) the next mutation point can be handed straight to the
+   * spare rather than waiting for a new JVM to start. Off by default,
+   * since the spare is wasted on a run that never replaces a child.
+   *
+   * @param useStandby true to keep a spare child JVM started.
+   */
+  public void setUseStandby(final boolean useStandby) {
+    mUseStandby = useStandby;
+  }
+
+  /**
+   * Gets whether mutants are played through a meta-mutant of the class.
+   *
+   * @return true if mutant schemata are used.
+   */
+  public boolean isSchemata() {
+    return mSchemata;
+  }
+
+  /**
+   * Sets whether mutants are played through a meta-mutant of the class.
+   * Rather than loading the class and its tests again for every mutant,
+   * a child JVM loads a single class holding all of the mutants, each
+   * guarded by a check of a static field, and switches that field from
+   * one mutant to the next. Mutants in the constant pool or in static
+   * initializers are still loaded one at a time. Static state left
+   * behind by the tests carries over between mutants.
+   *
+   * @param schemata true to use mutant schemata.
+   */
+  public void setSchemata(final boolean schemata) {
+    mSchemata = schemata;
+  }
+
+  /**
+   * Gets whether child JVMs make mutants ahead of time.
+   *
+   * @return true if mutants are made ahead of time.
+   */
+  public boolean isPregenerate() {
+    return mPregenerate;
+  }
+
+  /**
+   * Sets whether child JVMs make mutants ahead of time. The mutants of
+   * a class are then made on a pool of threads, one for each processor,
+   * from the time the child is handed the class, so that a mutant is
+   * usually ready by the time it is tested. Only as many are made ahead
+   * as fit in a sixteenth of the maximum heap of the child.
+   *
+   * @param pregenerate true to make mutants ahead of time.
+   */
+  public void setPregenerate(final boolean pregenerate) {
+    mPregenerate = pregenerate;
+  }
+
+  /**
+   * Gets the directory mutants are kept in between runs.
+   *
+   * @return the directory, or null if mutants are not kept.
+   */
+  public File getMutantCacheDir() {
+    return mMutantCacheDir;
+  }
+
+  /**
+   * Sets the directory mutants are kept in between runs. Child JVMs
+   * look for each mutant there before making it, keyed by a digest of
+   * the class file, the mutation settings and the mutation point, so
+   * classes that have not changed are not mutated again. The directory
+   * can be shared by any number of runs.
+   *
+   * @param dir the directory, or null to not keep mutants.
+   */
+  public void setMutantCacheDir(final File dir) {
+    mMutantCacheDir = dir;
+  }
+
+  /**
+   * Gets the size the mutant cache may grow to.
+   *
+   * @return the size in megabytes.
+   */
+  public int getMutantCacheSize() {
+    return mMutantCacheSize;
+  }
+
+  /**
+   * Sets the size the mutant cache may grow to. Once it is larger the
+   * oldest mutants are dropped.
+   *
+   * @param size the size in megabytes.
+   */
+  public void setMutantCacheSize(final int size) {
+    mMutantCacheSize = size;
+  }
+
+  /**
+   * Gets whether mutation points known to give equivalent mutants are
+   * left untested.
+   *
+   * @return true if equivalent mutants are skipped.
+   */
+  public boolean isSkipEquivalent() {
+    return mSkipEquivalent;
+  }
+
+  /**
+   * Sets whether mutation points known to give equivalent mutants are
+   * left untested. The code of the class is analysed for mutants that
+   * cannot change what it does, such as a shift by a constant zero or a
+   * conditional whose two branches run the same code. Those points are
+   * reported as equivalent without being tested and do not count
+   * towards the score.
+   *
+   * @param skip true to skip equivalent mutants.
+   */
+  public void setSkipEquivalent(final boolean skip) {
+    mSkipEquivalent = skip;
+  }
+
+  /**
+   * Gets whether child JVMs load classes that cannot reach the mutated
+   * class only once.
+   *
+   * @return true if classes are shared between mutants.
+   */
+  public boolean isShareClasses() {
+    return mShareClasses;
+  }
+
+  /**
+   * Sets whether child JVMs load classes that cannot reach the mutated
+   * class only once for all of its mutants. Only the mutated class and
+   * the classes that refer to it, directly or through other classes,
+   * are then loaded again for each mutant, so libraries are not
+   * initialised again every time. Static state of the shared classes
+   * carries over between mutants.
+   *
+   * @param share true to share classes between mutants.
+   */
+  public void setShareClasses(final boolean share) {
+    mShareClasses = share;
+  }
+
+  /**
+   * Sets the number of child JVMs used to run mutations concurrently.
+   * Each child takes ranges of mutation points from a shared queue, so
+   * large classes can make use of several processors.
+   *
+   * @param workerCount the number of child JVMs. Values less than 2
+   * run all mutations through a single child JVM.
+   */
+  public void setWorkerCount(final int workerCount) {
+    mWorkerCount = workerCount;
+  }
 }
@@ -2,10 +2,14 @@ package com.reeltwo.jumble.fast;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import com.reeltwo.jumble.mutation.LoopProbe;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -37,6 +41,39 @@ public class JumbleTestSuite extends FlatTestSuite {
   /** Should we dump extra output from the test runs? */
   private boolean mVerbose;
 
+  /**
+   * Where the output of the test running in each thread is captured.
+   * Inherited so that threads started by a test are captured too.
+   */
+  private static final InheritableThreadLocal<ByteArrayOutputStream> CAPTURED = new InheritableThreadLocal<ByteArrayOutputStream>();
+
+  /**
+   * Replaces <code>System.out</code> while any test is running, so that
+   * suites running concurrently in different threads each capture only
+   * their own output.
+   */
+  private static final PrintStream CAPTURE_OUT = new PrintStream(new OutputStream() {
+      public void write(int b) {
+        ByteArrayOutputStream bos = CAPTURED.get();
+        if (bos != null) {
+          bos.write(b);
+        }
+      }
+
+      public void write(byte[] b, int off, int len) {
+        ByteArrayOutputStream bos = CAPTURED.get();
+        if (bos != null) {
+          bos.write(b, off, len);
+        }
+      }
+    });
+
+  /** Number of threads currently capturing output */
+  private static int sCapturing = 0;
+
+  /** <code>System.out</code> before capturing started */
+  private static PrintStream sOldOut = null;
+
   /**
    * Constructs test suite from the given order of tests.
    * 
@@ -72,24 +109,41 @@ public class JumbleTestSuite extends FlatTestSuite {
    * Runs the tests returning the result as a string. If any of the individual
    * tests fail then the run is aborted and "PASS" is returned (recall with a
    * mutation we expect the test to fail). If all tests run correctly then
-   * "FAIL" is returned.
+   * "FAIL" is returned. If the order gives loop budgets and a test goes
+   * over its budget, the run is aborted and "TIMEOUT" is returned.
    */
   protected String run() {
     final JUnitTestResult result = new JUnitTestResult();
     Test[] tests = getOrder();
     ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    PrintStream newOut = new PrintStream(bos);
-    PrintStream oldOut = System.out;
+    final Map<Test, Long> budgets = new HashMap<Test, Long>();
+    if (mOrder.hasLoopBudgets()) {
+      for (int i = 0; i < testCount(); i++) {
+        budgets.put(testAt(i), mOrder.getLoopBudget(i));
+      }
+    }
 
     for (int i = 0; i < testCount(); i++) {
       TestCase t = (TestCase) tests[i];
+      final Long budget = budgets.get(t);
 
-      System.setOut(newOut);
+      startCapture(bos);
+      if (budget != null) {
+        LoopProbe.start(budget);
+      }
+      long loops = 0;
       try {
         bos.reset();
         t.run(result);
       } finally {
-        System.setOut(oldOut);
+        if (budget != null) {
+          loops = LoopProbe.stop();
+        }
+        stopCapture();
+      }
+      // Whatever the test made of the budget being exceeded, treat it as a timeout
+      if (budget != null && loops > budget) {
+        return "TIMEOUT: " + t.getName() + " exceeded its budget of " + budget + " loop iterations";
       }
 
       if (mVerbose) {  // Debugging to allow seeing how the tests picked up the mutation
@@ -119,6 +173,22 @@ public class JumbleTestSuite extends FlatTestSuite {
   }
 
 
+  private static synchronized void startCapture(ByteArrayOutputStream bos) {
+    CAPTURED.set(bos);
+    if (sCapturing++ == 0) {
+      sOldOut = System.out;
+      System.setOut(CAPTURE_OUT);
+    }
+  }
+
+  private static synchronized void stopCapture() {
+    CAPTURED.set(null);
+    if (--sCapturing == 0) {
+      System.setOut(sOldOut);
+      sOldOut = null;
+    }
+  }
+
   /**
    * Run the tests for the given class.
    * 
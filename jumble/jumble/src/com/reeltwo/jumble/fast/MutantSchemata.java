@@ -0,0 +1,98 @@
+package com.reeltwo.jumble.fast;
+
+import com.reeltwo.jumble.mutation.Mutater;
+import com.reeltwo.jumble.mutation.MutatingClassLoader;
+import java.lang.reflect.Field;
+
+/**
+ * Holds a meta-mutant of a class, as made by a <code>Mutater</code>
+ * with schemata turned on, loaded once and switched from one mutant to
+ * the next by setting its <code>ACTIVE_MUTANT</code> field. Classes
+ * loaded alongside it, the tests included, are reused between mutants
+ * too. Once test threads have been abandoned the meta-mutant is
+ * loaded again, as they may still be running it. A class too new to be
+ * made into a meta-mutant guards no points, so each of its mutants is
+ * loaded on its own.
+ *
+ * @version $Revision$
+ */
+class MutantSchemata {
+
+  private final String mClassName;
+
+  private final Mutater mMutater;
+
+  private final String mClassPath;
+
+  private MutatingClassLoader mLoader = null;
+
+  private Field mActive = null;
+
+  /**
+   * @param className the class to mutate.
+   * @param mutater a <code>Mutater</code> for the class, which is
+   * switched to making meta-mutants.
+   * @param classPath the classpath to load classes from.
+   */
+  MutantSchemata(String className, Mutater mutater, String classPath) {
+    mClassName = className;
+    mMutater = mutater;
+    mMutater.setSchemata(true);
+    mClassPath = classPath;
+  }
+
+  private void load() throws ClassNotFoundException, NoSuchFieldException {
+    if (mLoader == null) {
+      final MutatingClassLoader loader = new MutatingClassLoader(mClassName, mMutater, mClassPath);
+      final Class<?> clazz = loader.loadClass(mClassName);
+      try {
+        mActive = clazz.getField(Mutater.ACTIVE_MUTANT);
+        mActive.setAccessible(true);
+      } catch (NoSuchFieldException e) {
+        // Too new to be made into a meta-mutant, none of its points are guarded
+        mActive = null;
+      }
+      mLoader = loader;
+    }
+  }
+
+  /**
+   * Gets the modification a mutation point makes, if the point can be
+   * switched on in the meta-mutant.
+   *
+   * @param point the mutation point.
+   * @return the modification, or null if the mutant has to be loaded on
+   * its own.
+   */
+  String getModification(int point) throws ClassNotFoundException, NoSuchFieldException {
+    load();
+    return mMutater.getModification(point);
+  }
+
+  /**
+   * Switches the meta-mutant to a mutation point.
+   *
+   * @param point the mutation point, or -1 for no mutation.
+   * @return the class loader holding the meta-mutant.
+   */
+  ClassLoader activate(int point) throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
+    load();
+    mActive.setInt(null, point + 1);
+    return mLoader;
+  }
+
+  /**
+   * Switches the meta-mutant back to the original class, or throws it
+   * away if tests running a mutant have been abandoned.
+   *
+   * @param abandoned true if test threads were abandoned.
+   */
+  void deactivate(boolean abandoned) throws IllegalAccessException {
+    if (abandoned) {
+      mLoader = null;
+      mActive = null;
+    } else if (mActive != null) {
+      mActive.setInt(null, 0);
+    }
+  }
+}
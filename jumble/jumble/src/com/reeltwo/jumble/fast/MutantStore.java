@@ -0,0 +1,138 @@
+package com.reeltwo.jumble.fast;
+
+import com.reeltwo.jumble.mutation.MutantCache;
+import com.reeltwo.jumble.mutation.MutationPlan;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the mutants of a range of mutation points ahead of time on a
+ * pool of threads, so that testing a mutant does not have to wait for
+ * it to be made. Mutants are taken in order of mutation point. Only
+ * as many are made ahead as fit in the memory allowed, a mutant taken
+ * makes room for the next. Points that will not be tested are not
+ * made at all.
+ *
+ * @version $Revision$
+ */
+class MutantStore {
+
+  /** Fraction of the maximum heap mutants made ahead may use */
+  private static final int HEAP_FRACTION = 16;
+
+  private final MutationPlan mPlan;
+
+  private final MutantCache mCache;
+
+  private final int mEnd;
+
+  /** Mutation points that are not tested, or null if all are */
+  private final boolean[] mSkipped;
+
+  /** Number of mutants that may be made ahead at once */
+  private final int mWindow;
+
+  private final ExecutorService mPool;
+
+  /** Mutants being made or waiting to be taken, by mutation point */
+  private final Map<Integer, Future<MutationPlan.Mutant>> mMade = new HashMap<Integer, Future<MutationPlan.Mutant>>();
+
+  /** The next mutation point to start making */
+  private int mNext;
+
+  /**
+   * Starts making mutants.
+   *
+   * @param plan the plan to make mutants from.
+   * @param start the first mutation point, may be -1.
+   * @param end one past the last mutation point.
+   * @param threads number of threads making mutants.
+   * @param cache where mutants made before are kept, or null.
+   * @param skipped the mutation points that will not be taken, or null
+   * if all will be.
+   */
+  MutantStore(MutationPlan plan, int start, int end, int threads, MutantCache cache, boolean[] skipped) {
+    mPlan = plan;
+    mCache = cache;
+    mNext = start;
+    mEnd = end;
+    mSkipped = skipped;
+    final long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+    mWindow = (int) Math.max(threads, Math.min(end - start, budget / Math.max(1, plan.getClassSize())));
+    mPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "Jumble mutant maker");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    fill();
+  }
+
+  /** Starts making mutants until the window is full */
+  private synchronized void fill() {
+    while (mNext < mEnd && mMade.size() < mWindow) {
+      final int point = mNext++;
+      if (point >= 0 && mSkipped != null && mSkipped[point]) {
+        continue;
+      }
+      mMade.put(point, mPool.submit(new Callable<MutationPlan.Mutant>() {
+          public MutationPlan.Mutant call() {
+            return mPlan.createMutant(point, mCache);
+          }
+        }));
+    }
+  }
+
+  /**
+   * Takes the mutant for a mutation point, waiting for it to be made if
+   * needed. A point that was not made ahead is made straight away.
+   *
+   * @param point the mutation point.
+   * @return the mutant.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  MutationPlan.Mutant take(int point) throws InterruptedException {
+    final Future<MutationPlan.Mutant> future;
+    synchronized (this) {
+      future = mMade.remove(point);
+    }
+    fill();
+    if (future == null) {
+      return mPlan.createMutant(point, mCache);
+    }
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Gets the number of mutants made ahead, or being made, that have not
+   * been taken. Used by tests.
+   *
+   * @return the number of mutants.
+   */
+  synchronized int countMade() {
+    return mMade.size();
+  }
+
+  /** Stops making mutants, dropping any not taken. */
+  synchronized void close() {
+    mPool.shutdownNow();
+    mMade.clear();
+  }
+}
@@ -14,6 +14,9 @@ public class MutationResult {
 
   public static final int TIMEOUT = 2;
 
+  /** The mutant was shown to behave the same as the original, so was not tested */
+  public static final int EQUIVALENT = 3;
+
   private int mStatus;
 
   private String mClassName;
@@ -26,6 +29,9 @@ public class MutationResult {
   // Describes the test that detected the mutation
   private String mTestDescription;
 
+  // The mutation point of an identical mutant whose result this copies, or -1
+  private int mDuplicateOf = -1;
+
 
 
   public MutationResult(int status, String className, int point, String description, String testDescription) {
@@ -34,7 +40,7 @@ public class MutationResult {
   }
 
   public MutationResult(int status, String className, int point, String description) {
-    if (status != PASS && status != FAIL && status != TIMEOUT) {
+    if (status != PASS && status != FAIL && status != TIMEOUT && status != EQUIVALENT) {
       throw new RuntimeException("Invalid mutation status: " + status);
     }
     mClassName = className;
@@ -71,10 +77,38 @@ public class MutationResult {
     return mStatus == TIMEOUT;
   }
 
+  public boolean isEquivalent() {
+    return mStatus == EQUIVALENT;
+  }
+
   public int getStatus() {
     return mStatus;
   }
 
+  /**
+   * Records that the result was copied from that of an identical mutant
+   * rather than found by running the tests.
+   *
+   * @param point the mutation point of the identical mutant.
+   */
+  public void setDuplicateOf(int point) {
+    mDuplicateOf = point;
+  }
+
+  /**
+   * Gets the mutation point of the identical mutant this result was
+   * copied from.
+   *
+   * @return the mutation point, or -1 if the tests were run.
+   */
+  public int getDuplicateOf() {
+    return mDuplicateOf;
+  }
+
+  public boolean isDuplicate() {
+    return mDuplicateOf != -1;
+  }
+
   public String toString() {
     return getDescription();
   }
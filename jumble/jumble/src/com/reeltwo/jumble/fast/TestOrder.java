@@ -32,6 +32,12 @@ public class TestOrder implements Serializable, ClassLoaderCloneable {
    */
   private int[] mOrder;
 
+  /**
+   * Loop iterations each test may make in the mutated class, by test
+   * index, or null if loops are not counted.
+   */
+  private long[] mLoopBudgets = null;
+
   /**
    * Creates a new TestOrder with the specified test classes and no
    * particular ordering.
@@ -173,6 +179,37 @@ public class TestOrder implements Serializable, ClassLoaderCloneable {
     }
   }
 
+  /**
+   * Sets the number of loop iterations each test may make in the
+   * mutated class before the mutant is taken to have timed out.
+   *
+   * @param loopBudgets budgets by test index, or null to not count loops.
+   */
+  public void setLoopBudgets(long[] loopBudgets) {
+    mLoopBudgets = loopBudgets;
+  }
+
+  /**
+   * Returns true if loop iterations in the mutated class should be
+   * counted.
+   *
+   * @return true if there are loop budgets.
+   */
+  public boolean hasLoopBudgets() {
+    return mLoopBudgets != null;
+  }
+
+  /**
+   * Gets the number of loop iterations a test may make in the mutated
+   * class.
+   *
+   * @param index the index of the test.
+   * @return the budget, or -1 if loops are not counted.
+   */
+  public long getLoopBudget(int index) {
+    return mLoopBudgets == null ? -1 : mLoopBudgets[index];
+  }
+
   /**
    * Gets the names of the test classes that were timed.
    * 
@@ -1,5 +1,6 @@
 package com.reeltwo.jumble.fast;
 
+import com.reeltwo.jumble.mutation.LoopProbe;
 import junit.framework.Test;
 import junit.framework.TestResult;
 
@@ -29,6 +30,9 @@ public class TimingTestSuite extends FlatTestSuite {
   /** The runtimes for the tests */
   private long[] mRuntimes = null;
 
+  /** The loop iterations counted for the tests */
+  private long[] mLoopCounts = null;
+
   /**
    * The test classes used to create this suite. Only so they can be passed to
    * the <CODE>TestOrder</CODE>
@@ -54,23 +58,44 @@ public class TimingTestSuite extends FlatTestSuite {
   }
 
   /**
-   * Runs the tests and records their runtimes. The test results are returned in
-   * <CODE>result</CODE> as usual in JUnit.
+   * Runs the tests and records their runtimes, and the loop iterations
+   * they make in any class instrumented with loop probes. The test
+   * results are returned in <CODE>result</CODE> as usual in JUnit.
    */
   public void run(TestResult result) {
     mRuntimes = new long[testCount()];
+    mLoopCounts = new long[testCount()];
     for (int i = 0; i < mRuntimes.length; i++) {
       Test curTest = testAt(i);
       if (DEBUG) {
         System.out.println("Running initially " + curTest);
       }
+      LoopProbe.start(-1);
       long before = System.currentTimeMillis();
-      curTest.run(result);
+      try {
+        curTest.run(result);
+      } finally {
+        mLoopCounts[i] = LoopProbe.stop();
+      }
       long after = System.currentTimeMillis();
       mRuntimes[i] = after - before;
     }
   }
 
+  /**
+   * Gets the number of loop iterations each test made in classes
+   * instrumented with loop probes.
+   *
+   * @return the iterations, by test index.
+   * @throws RuntimeException if the tests have not been run yet
+   */
+  public long[] getLoopCounts() {
+    if (mLoopCounts == null) {
+      throw new RuntimeException("Cannot call getLoopCounts() before the tests have been run");
+    }
+    return mLoopCounts;
+  }
+
   public long getTotalRuntime() {
     if (mRuntimes == null) {
       throw new RuntimeException("Cannot call getTotalRuntime() before the tests have been run");
@@ -0,0 +1,348 @@
+package com.reeltwo.jumble.mutation;
+
+import java.util.Arrays;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.Instruction;
+
+/**
+ * Walks the raw bytes of a method's code looking for mutation points,
+ * without building a BCEL instruction list. It applies the same rules
+ * as <code>Mutater</code> does on instructions, including skipping
+ * assertions and <code>.class</code> literals, and gives the same
+ * counts. A scanner keeps its buffers between methods, so one should
+ * not be used by more than one thread at a time.
+ *
+ * @version $Revision$
+ */
+final class CodeScanner {
+
+  /** Length in bytes of each instruction of fixed length, by opcode */
+  private static final int[] LENGTHS = new int[256];
+  static {
+    Arrays.fill(LENGTHS, 1);
+    final int[] two = {Constants.BIPUSH, Constants.LDC, Constants.ILOAD, Constants.LLOAD, Constants.FLOAD, Constants.DLOAD, Constants.ALOAD,
+                       Constants.ISTORE, Constants.LSTORE, Constants.FSTORE, Constants.DSTORE, Constants.ASTORE, Constants.RET, Constants.NEWARRAY};
+    final int[] three = {Constants.SIPUSH, Constants.LDC_W, Constants.LDC2_W, Constants.IINC, Constants.GOTO, Constants.JSR, Constants.GETSTATIC,
+                         Constants.PUTSTATIC, Constants.GETFIELD, Constants.PUTFIELD, Constants.INVOKEVIRTUAL, Constants.INVOKESPECIAL,
+                         Constants.INVOKESTATIC, Constants.NEW, Constants.ANEWARRAY, Constants.CHECKCAST, Constants.INSTANCEOF,
+                         Constants.IFNULL, Constants.IFNONNULL};
+    final int[] five = {Constants.INVOKEINTERFACE, 186 /* invokedynamic */, Constants.GOTO_W, Constants.JSR_W};
+    for (int i = 0; i < two.length; i++) {
+      LENGTHS[two[i]] = 2;
+    }
+    for (int i = 0; i < three.length; i++) {
+      LENGTHS[three[i]] = 3;
+    }
+    for (int i = 0; i < five.length; i++) {
+      LENGTHS[five[i]] = 5;
+    }
+    for (int op = Constants.IFEQ; op <= Constants.IF_ACMPNE; op++) {
+      LENGTHS[op] = 3;
+    }
+    LENGTHS[Constants.MULTIANEWARRAY] = 4;
+  }
+
+  /** Mutatable instructions by opcode, shared with the <code>Mutater</code> */
+  private final Instruction[] mMutatable;
+
+  private byte[] mCode = null;
+
+  private ConstantPoolGen mCp = null;
+
+  /** Offset of each instruction in the code */
+  private int[] mStarts = new int[64];
+
+  /** Number of instructions in the code */
+  private int mSize = 0;
+
+  /**
+   * @param mutatable the table of mutatable instructions of a
+   * <code>Mutater</code>, indexed by opcode.
+   */
+  CodeScanner(final Instruction[] mutatable) {
+    mMutatable = mutatable;
+  }
+
+  /**
+   * Starts scanning the code of a method.
+   *
+   * @param code the bytes of the code attribute.
+   * @param cp the constant pool of the class.
+   */
+  void scan(final byte[] code, final ConstantPoolGen cp) {
+    mCode = code;
+    mCp = cp;
+    mSize = 0;
+    int pos = 0;
+    while (pos < code.length) {
+      if (mSize == mStarts.length) {
+        final int[] starts = new int[2 * mSize];
+        System.arraycopy(mStarts, 0, starts, 0, mSize);
+        mStarts = starts;
+      }
+      mStarts[mSize++] = pos;
+      pos += length(pos);
+    }
+  }
+
+  /** Returns the length of the instruction at an offset */
+  private int length(final int pos) {
+    final int op = mCode[pos] & 0xFF;
+    if (op == Constants.TABLESWITCH) {
+      final int base = pad(pos);
+      return base - pos + 12 + 4 * (readInt(base + 8) - readInt(base + 4) + 1);
+    } else if (op == Constants.LOOKUPSWITCH) {
+      final int base = pad(pos);
+      return base - pos + 8 + 8 * readInt(base + 4);
+    } else if (op == Constants.WIDE) {
+      return (mCode[pos + 1] & 0xFF) == Constants.IINC ? 6 : 4;
+    }
+    return LENGTHS[op];
+  }
+
+  /** Returns the offset of the aligned operands of a switch */
+  private static int pad(final int pos) {
+    return (pos + 4) & ~3;
+  }
+
+  private int readInt(final int pos) {
+    return ((mCode[pos] & 0xFF) << 24) | ((mCode[pos + 1] & 0xFF) << 16) | ((mCode[pos + 2] & 0xFF) << 8) | (mCode[pos + 3] & 0xFF);
+  }
+
+  private int readShort(final int pos) {
+    return ((mCode[pos] & 0xFF) << 8) | (mCode[pos + 1] & 0xFF);
+  }
+
+  /**
+   * Finds the code of a method in a class file.
+   *
+   * @param bytes the class file.
+   * @param method index of the method, in the order the methods appear.
+   * @param codeName constant pool index of the name of the
+   * <code>Code</code> attribute.
+   * @return offset of the first byte of code, or -1 if it was not found.
+   */
+  static int findCode(final byte[] bytes, final int method, final int codeName) {
+    final CodeScanner file = new CodeScanner(null);
+    file.mCode = bytes;
+    int pos = 10;
+    final int constants = file.readShort(8);
+    for (int i = 1; i < constants; i++) {
+      final int tag = bytes[pos];
+      if (tag == Constants.CONSTANT_Utf8) {
+        pos += 3 + file.readShort(pos + 1);
+      } else if (tag == Constants.CONSTANT_Long || tag == Constants.CONSTANT_Double) {
+        pos += 9;
+        i++; // These take two entries
+      } else if (tag == Constants.CONSTANT_Class || tag == Constants.CONSTANT_String || tag == 16 /* MethodType */ || tag == 19 /* Module */
+                 || tag == 20 /* Package */) {
+        pos += 3;
+      } else if (tag == 15 /* MethodHandle */) {
+        pos += 4;
+      } else {
+        // Integer, Float, field and method references, NameAndType, Dynamic and InvokeDynamic
+        pos += 5;
+      }
+    }
+    pos += 6; // access flags, this and super class
+    pos += 2 + 2 * file.readShort(pos); // interfaces
+    // Fields, then methods
+    for (int kind = 0; kind < 2; kind++) {
+      final int members = file.readShort(pos);
+      pos += 2;
+      for (int m = 0; m < members; m++) {
+        final int attributes = file.readShort(pos + 6);
+        pos += 8;
+        for (int a = 0; a < attributes; a++) {
+          if (kind == 1 && m == method && file.readShort(pos) == codeName) {
+            return pos + 14; // name, length, max stack, max locals, code length
+          }
+          pos += 6 + file.readInt(pos + 2);
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the number of instructions in the code.
+   *
+   * @return the number of instructions.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Gets the offset of an instruction in the code.
+   *
+   * @param j index of the instruction.
+   * @return its offset.
+   */
+  int getPosition(final int j) {
+    return mStarts[j];
+  }
+
+  /**
+   * Gets the opcode of an instruction, looking through any
+   * <code>wide</code> prefix as BCEL does.
+   *
+   * @param j index of the instruction.
+   * @return the opcode.
+   */
+  int getOpcode(final int j) {
+    final int op = mCode[mStarts[j]] & 0xFF;
+    return op == Constants.WIDE ? mCode[mStarts[j] + 1] & 0xFF : op;
+  }
+
+  /**
+   * Gets the constant pool index used by an instruction.
+   *
+   * @param j index of the instruction.
+   * @return the index, or -1 if the instruction does not refer to the
+   * constant pool.
+   */
+  int getConstantIndex(final int j) {
+    final int op = getOpcode(j);
+    if (op == Constants.LDC) {
+      return mCode[mStarts[j] + 1] & 0xFF;
+    }
+    if (op == Constants.LDC_W || op == Constants.LDC2_W || (op >= Constants.GETSTATIC && op <= Constants.INVOKEINTERFACE) || op == Constants.NEW
+        || op == Constants.ANEWARRAY || op == Constants.CHECKCAST || op == Constants.INSTANCEOF || op == Constants.MULTIANEWARRAY) {
+      return readShort(mStarts[j] + 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns true if an instruction loads the message of an
+   * <code>AssertionError</code> that is created straight afterwards.
+   *
+   * @param j index of the instruction.
+   * @return true for an assertion message.
+   */
+  boolean isAssertionMessage(final int j) {
+    final int op = getOpcode(j);
+    if ((op == Constants.LDC || op == Constants.LDC_W) && j + 1 < mSize && getOpcode(j + 1) == Constants.INVOKESPECIAL) {
+      final ConstantCP ref = (ConstantCP) mCp.getConstant(getConstantIndex(j + 1));
+      final ConstantClass cl = (ConstantClass) mCp.getConstant(ref.getClassIndex());
+      return "java/lang/AssertionError".equals(utf8(cl.getNameIndex()));
+    }
+    return false;
+  }
+
+  private String utf8(final int index) {
+    return ((ConstantUtf8) mCp.getConstant(index)).getBytes();
+  }
+
+  /** Returns the name of the field or method an instruction refers to */
+  private String getMemberName(final int j) {
+    final Constant c = mCp.getConstant(getConstantIndex(j));
+    final ConstantNameAndType nt = (ConstantNameAndType) mCp.getConstant(((ConstantCP) c).getNameAndTypeIndex());
+    return utf8(nt.getNameIndex());
+  }
+
+  private boolean isAssertInstruction(final int j) {
+    return getOpcode(j) == Constants.INVOKEVIRTUAL && "desiredAssertionStatus".equals(getMemberName(j));
+  }
+
+  /**
+   * Gets the number of mutation points in an instruction, by the same
+   * rules as <code>Mutater</code> uses on BCEL instructions.
+   *
+   * @param j index of the instruction.
+   * @return the number of mutation points.
+   */
+  int getPoints(final int j) {
+    final int op = getOpcode(j);
+    if (mMutatable[op] == null) {
+      return 0;
+    }
+    if (op >= Constants.ICONST_M1 && op <= Constants.ICONST_5) {
+      // .class invocations
+      if (j < mSize - 1 && getOpcode(j + 1) == Constants.INVOKESTATIC && "class".equals(getMemberName(j + 1))) {
+        return 0;
+      }
+      // .desiredAssertionStatus invocations from javac 1.5
+      final int value = op - Constants.ICONST_0;
+      if (j >= 2 && value == 1 && isAssertInstruction(j - 2)) {
+        return 0;
+      }
+      if (j >= 4 && value == 0 && isAssertInstruction(j - 4)) {
+        return 0;
+      }
+    }
+    if (op == Constants.IFNE && j >= 1 && isAssertInstruction(j - 1)) {
+      return 0;
+    }
+    if (op == Constants.TABLESWITCH) {
+      final int base = pad(mStarts[j]);
+      return readInt(base + 8) - readInt(base + 4) + 1;
+    }
+    if (op == Constants.LOOKUPSWITCH) {
+      return readInt(pad(mStarts[j]) + 4);
+    }
+    return 1;
+  }
+
+  /**
+   * Gets a case value of a switch instruction.
+   *
+   * @param j index of the instruction.
+   * @param k which case.
+   * @return the value matched by the case.
+   */
+  int getMatch(final int j, final int k) {
+    final int base = pad(mStarts[j]);
+    if (getOpcode(j) == Constants.TABLESWITCH) {
+      return readInt(base + 4) + k;
+    }
+    return readInt(base + 8 + 8 * k);
+  }
+
+  /**
+   * Skips to the next instruction worth examining, passing over
+   * assertions and <code>.class</code> references as
+   * <code>Mutater</code> does.
+   *
+   * @param j index of the current instruction.
+   * @return index of the next instruction to examine.
+   */
+  int skipAhead(int j) {
+    final int op = getOpcode(j++);
+    if (op == Constants.GETSTATIC) {
+      final String name = getMemberName(j - 1);
+      if (name.equals("$noassert") || name.equals("assert") || name.equals("$assertionsDisabled")) {
+        // skip forwards to a ATHROW instruction, most likely it ends the assert
+        while (j < mSize && getOpcode(j++) != Constants.ATHROW) {
+          ; // do nothing
+        }
+      } else if (name.indexOf("class$") != -1) {
+        if (j + 1 < mSize && getOpcode(j + 1) == Constants.IFNONNULL) {
+          j += 2;
+        }
+      }
+    }
+    return j;
+  }
+
+  /**
+   * Counts the mutation points in the code being scanned.
+   *
+   * @return the number of mutation points.
+   */
+  int countPoints() {
+    int count = 0;
+    for (int j = 0; j < mSize; j = skipAhead(j)) {
+      count += getPoints(j);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,393 @@
+package com.reeltwo.jumble.mutation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ATHROW;
+import org.apache.bcel.generic.ArithmeticInstruction;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.ConstantPushInstruction;
+import org.apache.bcel.generic.DUP;
+import org.apache.bcel.generic.DUP2;
+import org.apache.bcel.generic.GotoInstruction;
+import org.apache.bcel.generic.IINC;
+import org.apache.bcel.generic.ILOAD;
+import org.apache.bcel.generic.ISTORE;
+import org.apache.bcel.generic.IfInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.LDC;
+import org.apache.bcel.generic.LDC2_W;
+import org.apache.bcel.generic.LLOAD;
+import org.apache.bcel.generic.LSTORE;
+import org.apache.bcel.generic.LocalVariableInstruction;
+import org.apache.bcel.generic.ReturnInstruction;
+import org.apache.bcel.generic.Select;
+import org.apache.bcel.generic.StoreInstruction;
+
+/**
+ * Finds the mutation points of a method whose mutants provably behave
+ * the same as the original. Integer and long constants are followed
+ * through the operand stack and local variables within each basic
+ * block, which is enough to show for example that a shift is by zero
+ * or that an addition adds zero. A negated conditional is equivalent
+ * when both ways out of it run the same instructions. Anything the
+ * analysis cannot follow is taken to be unknown, so a point is only
+ * ever marked when the mutant cannot make a difference.
+ *
+ * @version $Revision$
+ */
+final class EquivalentMutants {
+
+  /** Most instructions compared along the two ways out of a conditional */
+  private static final int MAX_COMPARE = 32;
+
+  /** Most unconditional branches followed in a row */
+  private static final int MAX_GOTOS = 8;
+
+  private final Instruction[] mMutatable;
+
+  private final ConstantPoolGen mCp;
+
+  private final CodeException[] mHandlers;
+
+  /** Offsets of the equivalent points */
+  private final Set<Integer> mEquivalent = new HashSet<Integer>();
+
+  /** Known values of the stack slots, top last, null where unknown */
+  private final List<Number> mStack = new ArrayList<Number>();
+
+  /** Known values of local variables by index */
+  private final Map<Integer, Number> mLocals = new HashMap<Integer, Number>();
+
+  /**
+   * Analyses the code of a method.
+   *
+   * @param m the method.
+   * @param cp constant pool of the class.
+   * @param mutatable table of mutatable instructions of the
+   * <code>Mutater</code>, giving the replacement for arithmetic.
+   */
+  EquivalentMutants(final Method m, final ConstantPoolGen cp, final Instruction[] mutatable) {
+    mMutatable = mutatable;
+    mCp = cp;
+    mHandlers = m.getCode().getExceptionTable();
+    synchronized (Mutater.BCEL_LOCK) {
+      final InstructionList il = new InstructionList(m.getCode().getCode());
+      final Set<Integer> leaders = new HashSet<Integer>();
+      for (int i = 0; i < mHandlers.length; i++) {
+        leaders.add(mHandlers[i].getHandlerPC());
+      }
+      boolean newBlock = true;
+      for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+        if (newBlock || ih.hasTargeters() || leaders.contains(ih.getPosition())) {
+          mStack.clear();
+          mLocals.clear();
+        }
+        final Instruction i = ih.getInstruction();
+        if (isEquivalent(ih)) {
+          mEquivalent.add(ih.getPosition());
+        }
+        execute(i);
+        newBlock = i instanceof BranchInstruction || i instanceof ReturnInstruction || i instanceof ATHROW
+          || i.getOpcode() == Constants.RET;
+      }
+      il.dispose();
+    }
+  }
+
+  /**
+   * Tells whether the mutant of the instruction at an offset behaves the
+   * same as the original.
+   *
+   * @param offset bytecode offset of the instruction.
+   * @return true if the mutant is equivalent.
+   */
+  boolean isEquivalent(final int offset) {
+    return mEquivalent.contains(offset);
+  }
+
+  /** Looks at an instruction with the stack as it is before it runs */
+  private boolean isEquivalent(final InstructionHandle ih) {
+    final Instruction i = ih.getInstruction();
+    final int op = i.getOpcode();
+    if (i instanceof IINC) {
+      return ((IINC) i).getIncrement() == 0;
+    } else if (op == Constants.INEG || op == Constants.LNEG) {
+      final Number v = peek(0);
+      return v != null && v.longValue() == 0;
+    } else if (i instanceof IfInstruction) {
+      return sameCode(ih.getNext(), ((IfInstruction) i).getTarget());
+    } else if (i instanceof ArithmeticInstruction && isIntegral(op) && mMutatable[op] != null) {
+      final Number right = peek(0);
+      final Number left = peek(isLong(op) && !isShift(op) ? 2 : 1);
+      if (right == null) {
+        return false;
+      }
+      final int mutated = mMutatable[op].getOpcode();
+      if (left != null) {
+        final Number v = evaluate(op, left, right);
+        return v != null && v.equals(evaluate(mutated, left, right));
+      }
+      // Both leave the left operand alone
+      return isIdentity(op, right.longValue()) && isIdentity(mutated, right.longValue());
+    }
+    return false;
+  }
+
+  /** Tells whether an arithmetic instruction leaves its left operand alone when the right is a constant */
+  private static boolean isIdentity(final int op, final long r) {
+    switch (op) {
+    case Constants.IADD: case Constants.ISUB: case Constants.LADD: case Constants.LSUB:
+    case Constants.IOR: case Constants.IXOR: case Constants.LOR: case Constants.LXOR:
+      return r == 0;
+    case Constants.IMUL: case Constants.IDIV: case Constants.LMUL: case Constants.LDIV:
+      return r == 1;
+    case Constants.IAND: case Constants.LAND:
+      return r == -1;
+    case Constants.ISHL: case Constants.ISHR: case Constants.IUSHR:
+      return (r & 0x1f) == 0;
+    case Constants.LSHL: case Constants.LSHR: case Constants.LUSHR:
+      return (r & 0x3f) == 0;
+    default:
+      return false;
+    }
+  }
+
+  /** Tells whether an arithmetic opcode works on ints or longs */
+  private static boolean isIntegral(final int op) {
+    return (op >= Constants.IADD && op <= Constants.DREM && (op - Constants.IADD) % 4 < 2)
+      || (op >= Constants.INEG && op <= Constants.LNEG) || (op >= Constants.ISHL && op <= Constants.LXOR);
+  }
+
+  /** Tells whether an integral arithmetic opcode works on longs, they all have odd opcodes */
+  private static boolean isLong(final int op) {
+    return op % 2 == 1;
+  }
+
+  private static boolean isShift(final int op) {
+    return op >= Constants.ISHL && op <= Constants.LUSHR;
+  }
+
+  /** Works out an arithmetic instruction, or returns null if it would throw */
+  private static Number evaluate(final int op, final Number left, final Number right) {
+    if (isLong(op)) {
+      final long a = left.longValue();
+      final long b = right.longValue();
+      switch (op) {
+      case Constants.LADD: return a + b;
+      case Constants.LSUB: return a - b;
+      case Constants.LMUL: return a * b;
+      case Constants.LDIV: return b == 0 ? null : Long.valueOf(a / b);
+      case Constants.LREM: return b == 0 ? null : Long.valueOf(a % b);
+      case Constants.LAND: return a & b;
+      case Constants.LOR: return a | b;
+      case Constants.LXOR: return a ^ b;
+      case Constants.LSHL: return a << b;
+      case Constants.LSHR: return a >> b;
+      case Constants.LUSHR: return a >>> b;
+      default: return null;
+      }
+    }
+    final int a = left.intValue();
+    final int b = right.intValue();
+    switch (op) {
+    case Constants.IADD: return a + b;
+    case Constants.ISUB: return a - b;
+    case Constants.IMUL: return a * b;
+    case Constants.IDIV: return b == 0 ? null : Integer.valueOf(a / b);
+    case Constants.IREM: return b == 0 ? null : Integer.valueOf(a % b);
+    case Constants.IAND: return a & b;
+    case Constants.IOR: return a | b;
+    case Constants.IXOR: return a ^ b;
+    case Constants.ISHL: return a << b;
+    case Constants.ISHR: return a >> b;
+    case Constants.IUSHR: return a >>> b;
+    default: return null;
+    }
+  }
+
+  /**
+   * Tells whether two ways into the code run the same instructions,
+   * under the same exception handlers, until they meet or leave the
+   * method. Both start with the same stack and locals.
+   */
+  private boolean sameCode(InstructionHandle a, InstructionHandle b) {
+    for (int n = 0; n < MAX_COMPARE; n++) {
+      a = follow(a);
+      b = follow(b);
+      if (a == b) {
+        return true;
+      }
+      if (a == null || b == null || !sameHandlers(a.getPosition(), b.getPosition())) {
+        return false;
+      }
+      final Instruction ia = a.getInstruction();
+      final Instruction ib = b.getInstruction();
+      if (ia instanceof BranchInstruction || ib instanceof BranchInstruction) {
+        if (ia.getOpcode() != ib.getOpcode() || ((BranchInstruction) ia).getTarget() != ((BranchInstruction) ib).getTarget()) {
+          return false;
+        }
+        if (ia instanceof Select) {
+          return Arrays.equals(((Select) ia).getMatchs(), ((Select) ib).getMatchs())
+            && Arrays.equals(((Select) ia).getTargets(), ((Select) ib).getTargets());
+        }
+        if (!(ia instanceof IfInstruction)) {
+          return false; // JSR
+        }
+      } else if (!Arrays.equals(dump(ia), dump(ib))) {
+        return false;
+      } else if (ia instanceof ReturnInstruction || ia instanceof ATHROW) {
+        return true;
+      } else if (ia.getOpcode() == Constants.RET) {
+        return false;
+      }
+      a = a.getNext();
+      b = b.getNext();
+    }
+    return false;
+  }
+
+  /** Skips over unconditional branches */
+  private static InstructionHandle follow(InstructionHandle ih) {
+    for (int n = 0; n < MAX_GOTOS && ih != null && ih.getInstruction() instanceof GotoInstruction; n++) {
+      ih = ((GotoInstruction) ih.getInstruction()).getTarget();
+    }
+    return ih;
+  }
+
+  /** Tells whether two offsets are covered by the same exception handlers */
+  private boolean sameHandlers(final int a, final int b) {
+    for (int i = 0; i < mHandlers.length; i++) {
+      final CodeException e = mHandlers[i];
+      final boolean coversA = a >= e.getStartPC() && a < e.getEndPC();
+      final boolean coversB = b >= e.getStartPC() && b < e.getEndPC();
+      if (coversA != coversB) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] dump(final Instruction i) {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try {
+      i.dump(new DataOutputStream(bos));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bos.toByteArray();
+  }
+
+  /** Gets a stack slot counting down from the top, null if unknown */
+  private Number peek(final int depth) {
+    final int k = mStack.size() - 1 - depth;
+    return k >= 0 ? mStack.get(k) : null;
+  }
+
+  /** Pops slots, returning the value of the top one */
+  private Number pop(final int slots) {
+    Number top = null;
+    for (int k = 0; k < slots; k++) {
+      final Number v = mStack.isEmpty() ? null : mStack.remove(mStack.size() - 1);
+      if (k == 0) {
+        top = v;
+      }
+    }
+    return top;
+  }
+
+  /** Pushes a value, a long taking two slots with the value on top */
+  private void push(final Number v, final boolean wide) {
+    if (wide) {
+      mStack.add(null);
+    }
+    mStack.add(v);
+  }
+
+  /** Follows the effect of an instruction on what is known */
+  private void execute(final Instruction i) {
+    final int op = i.getOpcode();
+    final Object constant = i instanceof ConstantPushInstruction ? ((ConstantPushInstruction) i).getValue()
+      : i instanceof LDC ? ((LDC) i).getValue(mCp) : i instanceof LDC2_W ? ((LDC2_W) i).getValue(mCp) : null;
+    if (constant instanceof Integer || constant instanceof Long) {
+      push((Number) constant, constant instanceof Long);
+    } else if (i instanceof ILOAD || i instanceof LLOAD) {
+      push(mLocals.get(((LocalVariableInstruction) i).getIndex()), i instanceof LLOAD);
+    } else if (i instanceof ISTORE || i instanceof LSTORE) {
+      store(((LocalVariableInstruction) i).getIndex(), pop(i instanceof LSTORE ? 2 : 1), i instanceof LSTORE);
+    } else if (i instanceof IINC) {
+      final int index = ((IINC) i).getIndex();
+      final Number v = mLocals.get(index);
+      store(index, v == null ? null : Integer.valueOf(v.intValue() + ((IINC) i).getIncrement()), false);
+    } else if (i instanceof ArithmeticInstruction && isIntegral(op)) {
+      final boolean wide = isLong(op);
+      final Number v;
+      if (op == Constants.INEG || op == Constants.LNEG) {
+        final Number operand = pop(wide ? 2 : 1);
+        v = operand == null ? null : wide ? (Number) Long.valueOf(-operand.longValue()) : Integer.valueOf(-operand.intValue());
+      } else {
+        final Number right = pop(wide && !isShift(op) ? 2 : 1);
+        final Number left = pop(wide ? 2 : 1);
+        v = left == null || right == null ? null : evaluate(op, left, right);
+      }
+      push(v, wide);
+    } else if (i instanceof DUP) {
+      mStack.add(peek(0));
+    } else if (i instanceof DUP2) {
+      final Number below = peek(1);
+      final Number top = peek(0);
+      mStack.add(below);
+      mStack.add(top);
+    } else if (op == Constants.DUP_X1 || op == Constants.DUP_X2 || op == Constants.DUP2_X1 || op == Constants.DUP2_X2) {
+      // Copies the top one or two slots under the one or two below them
+      final int copied = op == Constants.DUP_X1 || op == Constants.DUP_X2 ? 1 : 2;
+      final int under = op == Constants.DUP_X1 || op == Constants.DUP2_X1 ? 1 : 2;
+      while (mStack.size() < copied + under) {
+        mStack.add(0, null);
+      }
+      final int size = mStack.size();
+      mStack.addAll(size - copied - under, new ArrayList<Number>(mStack.subList(size - copied, size)));
+    } else {
+      // Anything else makes the values it produces unknown
+      final int consumed = i.consumeStack(mCp);
+      if (i instanceof StoreInstruction) {
+        store(((LocalVariableInstruction) i).getIndex(), null, consumed == 2);
+      }
+      pop(consumed);
+      final int produced = i.produceStack(mCp);
+      for (int k = 0; k < produced; k++) {
+        mStack.add(null);
+      }
+    }
+  }
+
+  /** Records a value stored in a local variable, forgetting what it overwrites */
+  private void store(final int index, final Number v, final boolean wide) {
+    // Overwrites the second half of a long below
+    if (mLocals.get(index - 1) instanceof Long) {
+      mLocals.remove(index - 1);
+    }
+    if (wide) {
+      mLocals.remove(index + 1);
+    }
+    if (v == null) {
+      mLocals.remove(index);
+    } else {
+      mLocals.put(index, v);
+    }
+  }
+}
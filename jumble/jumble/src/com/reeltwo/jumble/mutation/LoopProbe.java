@@ -0,0 +1,80 @@
+package com.reeltwo.jumble.mutation;
+
+/**
+ * Counts loop iterations in a class instrumented by a
+ * <code>Mutater</code> with loop probes turned on. Each backward branch
+ * in the class calls <code>tick</code>. Counting is done against a
+ * budget set for the current thread, which threads it starts share, so
+ * that a mutant stuck in a loop can be stopped long before it times
+ * out. This class must be loaded by the same class loader as the code
+ * reading the counts, not by a <code>MutatingClassLoader</code>.
+ *
+ * @version $Revision$
+ */
+public final class LoopProbe {
+
+  /** The method called by instrumented code */
+  static final String TICK = "tick";
+
+  private static final InheritableThreadLocal<Budget> BUDGET = new InheritableThreadLocal<Budget>();
+
+  private LoopProbe() { }
+
+  /**
+   * Counts an iteration of a loop, throwing <code>Exceeded</code> if
+   * this goes over the budget for the current thread. Called by
+   * instrumented code.
+   */
+  public static void tick() {
+    final Budget budget = BUDGET.get();
+    if (budget != null && ++budget.mCount > budget.mLimit && budget.mLimit >= 0) {
+      throw new Exceeded(budget.mLimit);
+    }
+  }
+
+  /**
+   * Starts counting loop iterations in the current thread and any
+   * threads it starts.
+   *
+   * @param limit the number of iterations allowed, or -1 for no limit.
+   */
+  public static void start(long limit) {
+    BUDGET.set(new Budget(limit));
+  }
+
+  /**
+   * Stops counting loop iterations in the current thread.
+   *
+   * @return the number of iterations counted since <code>start</code>,
+   * or 0 if counting was not started.
+   */
+  public static long stop() {
+    final Budget budget = BUDGET.get();
+    BUDGET.set(null);
+    return budget == null ? 0 : budget.mCount;
+  }
+
+  /** Iterations counted against a limit */
+  private static final class Budget {
+    private final long mLimit;
+    private long mCount = 0;
+
+    Budget(long limit) {
+      mLimit = limit;
+    }
+  }
+
+  /**
+   * Thrown by <code>tick</code> once the budget is exceeded. It is an
+   * <code>Error</code> so that tests are unlikely to catch it, but
+   * those counting should compare the count with the budget rather
+   * than rely on seeing it.
+   */
+  public static class Exceeded extends Error {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded(long limit) {
+      super("Loop budget of " + limit + " iterations exceeded");
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package com.reeltwo.jumble.mutation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps mutants on disk so that a class that has not changed need not
+ * be mutated again, by later runs or by other child JVMs. Mutants are
+ * found by a digest of the original class file and the settings they
+ * were made with, together with the mutation point. They are appended
+ * to segment files in a directory and read back through memory
+ * mappings. Once the segments grow past the size allowed the oldest
+ * segment is deleted. Appends are guarded by a lock file, so any
+ * number of JVMs can share a directory. A lookup that misses reads the
+ * segments again only if another cache has appended to them since they
+ * were last read, or if the mutant was appended by this cache.
+ *
+ * @version $Revision$
+ */
+public final class MutantCache {
+
+  /** Changes whenever mutants made from the same settings might differ */
+  private static final String VERSION = "1";
+
+  private static final String PREFIX = "mutants-";
+
+  private static final String SUFFIX = ".dat";
+
+  private static final String LOCK = "lock";
+
+  private static final String ENCODING = "UTF-8";
+
+  /** Number of segments the cache is split into */
+  private static final int SEGMENTS = 4;
+
+  /** One cache for each directory, so that appends within a JVM are not interleaved */
+  private static final Map<File, MutantCache> INSTANCES = new HashMap<File, MutantCache>();
+
+  private final File mDir;
+
+  private final long mMaxBytes;
+
+  /** Segments by number, oldest first */
+  private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+  /** Where each mutant read so far is */
+  private final Map<String, Entry> mIndex = new HashMap<String, Entry>();
+
+  /** Mutants appended by this cache and not yet read back */
+  private final Set<String> mPending = new HashSet<String>();
+
+  /** Number of the newest segment when last checked, 0 if none */
+  private int mNewest = 0;
+
+  /** Length of the newest segment when last checked, counting our own appends */
+  private long mNewestLength = 0;
+
+  /** Number of times the segments have been read again */
+  private int mRefreshes = 0;
+
+  /**
+   * Creates a cache over a directory. Use <code>getInstance</code>
+   * rather than creating more than one for a directory.
+   *
+   * @param dir the directory, created if necessary.
+   * @param maxBytes the size the segments may grow to before the oldest
+   * is deleted.
+   */
+  MutantCache(File dir, long maxBytes) {
+    mDir = dir;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Gets the cache for a directory. There is only one cache for each
+   * directory in a JVM, so the size must be the same every time.
+   *
+   * @param dir the directory, created if necessary.
+   * @param maxBytes the size the cache may grow to.
+   * @return the cache.
+   * @throws IllegalArgumentException if the directory already has a
+   * cache of a different size.
+   */
+  public static MutantCache getInstance(File dir, long maxBytes) {
+    synchronized (INSTANCES) {
+      final File key = dir.getAbsoluteFile();
+      MutantCache cache = INSTANCES.get(key);
+      if (cache == null) {
+        cache = new MutantCache(key, maxBytes);
+        INSTANCES.put(key, cache);
+      } else if (cache.mMaxBytes != maxBytes) {
+        throw new IllegalArgumentException("Mutant cache " + key + " is already open with a size of " + cache.mMaxBytes + " bytes");
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Works out the key for the mutants of a class.
+   *
+   * @param original the class file.
+   * @param settings the settings the mutants are made with, as given by
+   * <code>Mutater.describeSettings</code>.
+   * @return the key.
+   */
+  public static String digest(byte[] original, String settings) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(VERSION.getBytes(ENCODING));
+      md.update(settings.getBytes(ENCODING));
+      md.update(original);
+      return toHex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Works out a digest of a class file, so that identical mutants can
+   * be recognised.
+   *
+   * @param bytes the class file.
+   * @return the digest.
+   */
+  public static String digest(byte[] bytes) {
+    try {
+      return toHex(MessageDigest.getInstance("MD5").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    final StringBuilder sb = new StringBuilder();
+    for (final byte b : digest) {
+      sb.append(Integer.toHexString((b >> 4) & 0xF)).append(Integer.toHexString(b & 0xF));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Looks up a mutant.
+   *
+   * @param key the key of the class, from <code>digest</code>.
+   * @param point the mutation point.
+   * @return the mutant, or null if it is not in the cache.
+   */
+  public synchronized MutationPlan.Mutant get(String key, int point) {
+    final String id = key + ":" + point;
+    if (!mIndex.containsKey(id) && (mPending.contains(id) || changed())) {
+      refresh();
+    }
+    final Entry entry = mIndex.get(id);
+    if (entry == null) {
+      return null;
+    }
+    try {
+      final ByteBuffer in = entry.mSegment.mMap.duplicate();
+      in.position(entry.mOffset);
+      in.getInt(); // Record length
+      if (!id.equals(readString(in))) {
+        return null;
+      }
+      final byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      return new MutationPlan.Mutant(point, bytes, readString(in));
+    } catch (BufferUnderflowException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds a mutant to the cache. Failing to write is not an error, the
+   * mutant is just not cached.
+   *
+   * @param key the key of the class, from <code>digest</code>.
+   * @param mutant the mutant.
+   */
+  public synchronized void put(String key, MutationPlan.Mutant mutant) {
+    try {
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bos);
+      out.writeInt(0);
+      writeString(out, key + ":" + mutant.getPoint());
+      out.writeInt(mutant.getBytes().length);
+      out.write(mutant.getBytes());
+      writeString(out, mutant.getModification());
+      final byte[] record = bos.toByteArray();
+      ByteBuffer.wrap(record).putInt(record.length);
+      mDir.mkdirs();
+      final RandomAccessFile lockFile = new RandomAccessFile(new File(mDir, LOCK), "rw");
+      try {
+        final FileLock lock = lockFile.getChannel().lock();
+        try {
+          final int[] numbers = listSegments();
+          int current = numbers.length == 0 ? 0 : numbers[numbers.length - 1];
+          if (numbers.length == 0 || segmentFile(current).length() >= mMaxBytes / SEGMENTS) {
+            current++;
+          }
+          final long before = segmentFile(current).length();
+          final FileOutputStream fos = new FileOutputStream(segmentFile(current), true);
+          try {
+            fos.write(record);
+          } finally {
+            fos.close();
+          }
+          if (current == mNewest && before == mNewestLength) {
+            // Nobody else has appended, so our own record is no reason to read again
+            mNewestLength += record.length;
+          }
+          mPending.add(key + ":" + mutant.getPoint());
+          evict(current);
+        } finally {
+          lock.release();
+        }
+      } finally {
+        lockFile.close();
+      }
+    } catch (IOException e) {
+      ; // Not cached then
+    }
+  }
+
+  /** Deletes the oldest segments until the cache is small enough, keeping the current one */
+  private void evict(int current) {
+    final int[] numbers = listSegments();
+    long total = 0;
+    for (final int n : numbers) {
+      total += segmentFile(n).length();
+    }
+    for (int i = 0; i < numbers.length && total > mMaxBytes && numbers[i] != current; i++) {
+      final File f = segmentFile(numbers[i]);
+      total -= f.length();
+      f.delete();
+      forget(numbers[i]);
+    }
+  }
+
+  /** Drops a deleted segment from the index */
+  private void forget(int number) {
+    final Segment segment = mSegments.remove(number);
+    if (segment != null) {
+      for (final Iterator<Entry> it = mIndex.values().iterator(); it.hasNext(); ) {
+        if (it.next().mSegment == segment) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private File segmentFile(int number) {
+    return new File(mDir, PREFIX + number + SUFFIX);
+  }
+
+  /** Lists the numbers of the segments on disk, oldest first */
+  private int[] listSegments() {
+    final List<Integer> numbers = new ArrayList<Integer>();
+    final String[] names = mDir.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          try {
+            numbers.add(Integer.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            ; // Not ours
+          }
+        }
+      }
+    }
+    final int[] result = new int[numbers.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = numbers.get(i);
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Tells if another cache has appended to the segments since they were last read */
+  private boolean changed() {
+    return segmentFile(mNewest + 1).exists() || segmentFile(mNewest).length() != mNewestLength;
+  }
+
+  /**
+   * Gets the number of times the segments have been read again. Used
+   * by tests.
+   *
+   * @return the number of times.
+   */
+  synchronized int countRefreshes() {
+    return mRefreshes;
+  }
+
+  /** Indexes anything added to the segments since they were last read */
+  private void refresh() {
+    mRefreshes++;
+    mPending.clear();
+    mNewest = 0;
+    mNewestLength = 0;
+    final int[] numbers = listSegments();
+    final List<Integer> gone = new ArrayList<Integer>(mSegments.keySet());
+    boolean unread = false;
+    for (final int n : numbers) {
+      gone.remove(Integer.valueOf(n));
+      final File f = segmentFile(n);
+      Segment segment = mSegments.get(n);
+      if (segment == null) {
+        segment = new Segment();
+        mSegments.put(n, segment);
+      }
+      final long length = f.length();
+      mNewest = n;
+      mNewestLength = length;
+      if (length > segment.mIndexed && length <= Integer.MAX_VALUE) {
+        try {
+          final RandomAccessFile raf = new RandomAccessFile(f, "r");
+          try {
+            segment.mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+          } finally {
+            raf.close();
+          }
+          index(segment);
+        } catch (IOException e) {
+          unread = true; // Read it next time
+        }
+      }
+    }
+    if (unread) {
+      mNewestLength = -1;
+    }
+    for (final Integer n : gone) {
+      forget(n);
+    }
+  }
+
+  /** Reads the keys of the complete records not yet indexed */
+  private void index(Segment segment) {
+    final ByteBuffer in = segment.mMap.duplicate();
+    int offset = segment.mIndexed;
+    while (offset + 4 <= in.limit()) {
+      in.position(offset);
+      final int length = in.getInt();
+      if (length < 4 || offset + length > in.limit()) {
+        break; // Still being written
+      }
+      try {
+        mIndex.put(readString(in), new Entry(segment, offset));
+      } catch (BufferUnderflowException e) {
+        break;
+      }
+      offset += length;
+    }
+    segment.mIndexed = offset;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      final byte[] b = s.getBytes(ENCODING);
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    final int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] b = new byte[length];
+    in.get(b);
+    try {
+      return new String(b, ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** A segment file as mapped */
+  private static class Segment {
+    private MappedByteBuffer mMap = null;
+    /** How much of the segment has been indexed */
+    private int mIndexed = 0;
+  }
+
+  /** Where a record is */
+  private static class Entry {
+    private final Segment mSegment;
+    private final int mOffset;
+
+    Entry(Segment segment, int offset) {
+      mSegment = segment;
+      mOffset = offset;
+    }
+  }
+}
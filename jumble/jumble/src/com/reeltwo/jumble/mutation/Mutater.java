@@ -1,20 +1,32 @@
 package com.reeltwo.jumble.mutation;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Constant;
 import org.apache.bcel.classfile.ConstantDouble;
 import org.apache.bcel.classfile.ConstantFloat;
 import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantInterfaceMethodref;
 import org.apache.bcel.classfile.ConstantLong;
 import org.apache.bcel.classfile.ConstantNameAndType;
 import org.apache.bcel.classfile.ConstantPool;
 import org.apache.bcel.classfile.ConstantString;
 import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.Field;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.classfile.Unknown;
@@ -23,7 +35,8 @@ import org.apache.bcel.generic.ARETURN;
 import org.apache.bcel.generic.ATHROW;
 import org.apache.bcel.generic.ArithmeticInstruction;
 import org.apache.bcel.generic.BIPUSH;
-import org.apache.bcel.generic.CPInstruction;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.CodeExceptionGen;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.DADD;
 import org.apache.bcel.generic.DCMPG;
@@ -45,11 +58,15 @@ import org.apache.bcel.generic.FNEG;
 import org.apache.bcel.generic.FREM;
 import org.apache.bcel.generic.FRETURN;
 import org.apache.bcel.generic.FSUB;
+import org.apache.bcel.generic.FieldGen;
+import org.apache.bcel.generic.GOTO;
+import org.apache.bcel.generic.GotoInstruction;
 import org.apache.bcel.generic.GETSTATIC;
 import org.apache.bcel.generic.IADD;
 import org.apache.bcel.generic.IAND;
 import org.apache.bcel.generic.ICONST;
 import org.apache.bcel.generic.IDIV;
+import org.apache.bcel.generic.IF_ICMPNE;
 import org.apache.bcel.generic.IFEQ;
 import org.apache.bcel.generic.IFNE;
 import org.apache.bcel.generic.IFNONNULL;
@@ -72,10 +89,11 @@ import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionFactory;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.JsrInstruction;
 import org.apache.bcel.generic.LADD;
 import org.apache.bcel.generic.LAND;
 import org.apache.bcel.generic.LCONST;
-import org.apache.bcel.generic.LDC;
 import org.apache.bcel.generic.LDIV;
 import org.apache.bcel.generic.LMUL;
 import org.apache.bcel.generic.LNEG;
@@ -88,10 +106,12 @@ import org.apache.bcel.generic.LSHR;
 import org.apache.bcel.generic.LSUB;
 import org.apache.bcel.generic.LUSHR;
 import org.apache.bcel.generic.LXOR;
+import org.apache.bcel.generic.LineNumberGen;
 import org.apache.bcel.generic.MethodGen;
 import org.apache.bcel.generic.NOP;
 import org.apache.bcel.generic.POP;
 import org.apache.bcel.generic.POP2;
+import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.ReturnInstruction;
 import org.apache.bcel.generic.SIPUSH;
 import org.apache.bcel.generic.Select;
@@ -173,8 +193,15 @@ public class Mutater {
     mMutatable[Constants.IFNULL] = new NOP();
   }
 
+  /**
+   * Held while using BCEL instruction lists. BCEL keeps spare
+   * instruction handles in a static list without any locking, so two
+   * threads making instruction lists at once can end up sharing one.
+   */
+  static final Object BCEL_LOCK = new Object();
+
   /** Set of methods to be ignored (i.e. never mutated). */
-  private Set mIgnored;
+  private Set<String> mIgnored;
 
   /** Should ICONST instructions be changed. */
   private boolean mMutateInlineConstants = false;
@@ -194,12 +221,40 @@ public class Mutater {
   /** Should the constant pool be changed. */
   private boolean mCPool = false;
 
+  /** Should loops be instrumented with calls to <code>LoopProbe</code>. */
+  private boolean mLoopProbes = false;
+
+  /** Should a single meta-mutant holding every mutation be made. */
+  private boolean mSchemata = false;
+
+  /** Class file version of Java 8 */
+  private static final int MAJOR_1_8 = 52;
+
+  /** Classes already warned about being too new for loop probes and schemata */
+  private static final Set<String> TOO_NEW = Collections.synchronizedSet(new HashSet<String>());
+
+  /** Modifications guarded in the most recent meta-mutant, by mutation point */
+  private Map<Integer, String> mGuarded = null;
+
+  /**
+   * Name of the static <code>int</code> field of a meta-mutant that
+   * selects the mutation in force. It holds the mutation point plus one,
+   * so that no mutation is made until it is set.
+   */
+  public static final String ACTIVE_MUTANT = "$jumbleMutant";
+
   /** The most recent modification. */
   private String mModification = null;
 
+  /** Scans method code for mutation points using the table above. */
+  private final CodeScanner mScanner = new CodeScanner(mMutatable);
+
   /** Count down for mutation to apply. */
   private int mCount = 0;
 
+  /** Table of mutation points worked out beforehand, or null to count them as needed. */
+  private MutationPoint[] mPoints = null;
+
   //private Repository mRepository = null;
   private Repository mRepository = SyntheticRepository.getInstance();
 
@@ -216,11 +271,91 @@ public class Mutater {
     mRepository = repository;
   }
 
+  /**
+   * Makes a new <code>Mutater</code> with the same settings as this
+   * one, for making single mutants. The mutation point is not copied.
+   */
+  Mutater copySettings() {
+    final Mutater m = new Mutater();
+    m.setIgnoredMethods(new HashSet<String>(mIgnored));
+    m.setMutateInlineConstants(mMutateInlineConstants);
+    m.setMutateReturnValues(mMutateReturns);
+    m.setMutateIncrements(mMutateIncrements);
+    m.setMutateNegs(mMutateNegs);
+    m.setMutateSwitch(mMutateSwitch);
+    m.setMutateCPool(mCPool);
+    m.setLoopProbes(mLoopProbes);
+    m.setMutationPoints(mPoints);
+    m.setRepository(mRepository);
+    return m;
+  }
+
+  /**
+   * Describes the settings that make a difference to the mutants made,
+   * so that mutants kept by a <code>MutantCache</code> can be told apart.
+   *
+   * @return the settings, or null when making meta-mutants.
+   */
+  @SuppressWarnings("unchecked")
+  public String describeSettings() {
+    if (mSchemata) {
+      return null;
+    }
+    final List<String> ignored = new ArrayList<String>(mIgnored);
+    Collections.sort(ignored);
+    return "cpool=" + mCPool + " inline=" + mMutateInlineConstants + " returns=" + mMutateReturns + " increments=" + mMutateIncrements
+      + " negs=" + mMutateNegs + " switch=" + mMutateSwitch + " loops=" + mLoopProbes + " ignore=" + ignored;
+  }
+
+  /**
+   * Gets the mutation point mutants are made for.
+   *
+   * @return the mutation point, or -1 for none.
+   */
+  public int getMutationPoint() {
+    return mCount;
+  }
+
+  /**
+   * Plans the mutants of a class with the settings of this
+   * <code>Mutater</code>. Later changes to this <code>Mutater</code> do
+   * not affect the plan. Meta-mutants are not planned.
+   *
+   * @param original the class file.
+   * @return the plan, or null if the class is an interface.
+   * @throws IOException if the class file could not be read.
+   */
+  public MutationPlan createPlan(final byte[] original) throws IOException {
+    final JavaClass clazz = new ClassParser(new ByteArrayInputStream(original), "<plan>").parse();
+    final Mutater settings = copySettings();
+    MutationPoint[] points = mPoints != null && mPoints.length > 0 && mPoints[0].getClassName().equals(clazz.getClassName()) ? mPoints : null;
+    if (points == null) {
+      points = settings.getMutationPoints(clazz);
+      if (points == null) {
+        return null;
+      }
+      settings.setMutationPoints(points);
+    }
+    return new MutationPlan(settings, clazz, original.clone(), points);
+  }
+
   public void setMutationPoint(final int count) {
     mCount = count;
     mModification = null;
   }
 
+  /**
+   * Supplies the mutation points of the class being mutated, as
+   * returned by <code>getMutationPoints</code> from a
+   * <code>Mutater</code> with the same settings, so that they need not
+   * be counted again.
+   *
+   * @param points the mutation points, or null to count them as needed.
+   */
+  public void setMutationPoints(final MutationPoint[] points) {
+    mPoints = points;
+  }
+
   /**
    * Sets whether mutations should be made in the constant pool.
    *
@@ -256,6 +391,43 @@ public class Mutater {
     mMutatable[Constants.LOOKUPSWITCH] = nop;
   }
 
+  /**
+   * Sets whether every backward branch in the class is preceded by a
+   * call to <code>LoopProbe.tick</code>, so that loop iterations can be
+   * counted. Mutation points are not affected.
+   *
+   * @param v true to instrument loops
+   */
+  public void setLoopProbes(final boolean v) {
+    mLoopProbes = v;
+  }
+
+  /**
+   * Sets whether <code>jumbler</code> makes a meta-mutant rather than
+   * a single mutant. In a meta-mutant every mutation point in a method
+   * is guarded by a check of the <code>ACTIVE_MUTANT</code> field, so
+   * that one class can play any of the mutants. Points in the constant
+   * pool and static initializers are left out, they only take effect
+   * when the class is loaded.
+   *
+   * @param v true to make meta-mutants.
+   */
+  public void setSchemata(final boolean v) {
+    mSchemata = v;
+  }
+
+  /**
+   * Gets the modification made by a mutation point of the most recent
+   * meta-mutant.
+   *
+   * @param point the mutation point.
+   * @return description of the modification, or null if the point is
+   * not in the meta-mutant.
+   */
+  public String getModification(final int point) {
+    return mGuarded == null ? null : mGuarded.get(point);
+  }
+
   public void setMutateIncrements(final boolean v) {
     mMutateIncrements = v;
     if (mMutateIncrements) {
@@ -395,8 +567,8 @@ public class Mutater {
    * @param ignore
    *          Set of ignored methods
    */
-  public void setIgnoredMethods(final Set ignore) {
-    mIgnored = ignore == null ? new HashSet() : ignore;
+  public void setIgnoredMethods(final Set<String> ignore) {
+    mIgnored = ignore == null ? new HashSet<String>() : ignore;
   }
 
   private boolean checkNormalMethod(final Method m) {
@@ -419,23 +591,13 @@ public class Mutater {
         for (int i = 0; i < methods.length; i++) {
           final Method m = methods[i];
           if (checkNormalMethod(m)) {
-            final InstructionList il = new MethodGen(m, className, cp).getInstructionList();
-            if (il != null) {
-              final InstructionHandle[] ihs = il.getInstructionHandles();
-              for (int j = 0; j < ihs.length; j++) {
-                final Instruction ins = ihs[j].getInstruction();
-                if (ins instanceof CPInstruction) {
-                  // skip those which are messages for Assertion Error
-                  if (ins instanceof LDC && j + 1 < ihs.length) {
-                    final Instruction i2 = ihs[j + 1].getInstruction();
-                    if (i2 instanceof INVOKESPECIAL && ((INVOKESPECIAL) i2).getReferenceType(cp).toString().equals("java.lang.AssertionError")) {
-                      continue;
-                    }
-                  }
-                  final int index = ((CPInstruction) ins).getIndex();
-                  if (mConstantFirstRef[index] == -1) {
-                    mConstantFirstRef[index] = (m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(ihs[j].getPosition()) : 0);
-                  }
+            synchronized (mScanner) {
+              mScanner.scan(m.getCode().getCode(), cp);
+              for (int j = 0; j < mScanner.size(); j++) {
+                final int index = mScanner.getConstantIndex(j);
+                // skip those which are messages for Assertion Error
+                if (index != -1 && mConstantFirstRef[index] == -1 && !mScanner.isAssertionMessage(j)) {
+                  mConstantFirstRef[index] = (m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(mScanner.getPosition(j)) : 0);
                 }
               }
             }
@@ -467,21 +629,39 @@ public class Mutater {
   }
 
   /**
-   * Count number of mutation points in a method.
+   * Count number of mutation points in a method, scanning its code
+   * directly.
    */
-  private int countMutationPoints(final Method m, final String className, final ConstantPoolGen cp) {
+  int countMutationPoints(final Method m, final String className, final ConstantPoolGen cp) {
     // check this is a method that it makes sense to mutate
     if (!checkNormalMethod(m)) {
       return 0;
     }
-    final InstructionList il = new MethodGen(m, className, cp).getInstructionList();
-    final InstructionHandle[] ihs = il.getInstructionHandles();
-    int count = 0;
-    for (int j = 0; j < ihs.length; j = skipAhead(ihs, cp, j)) {
-      count += isMutatable(ihs, j, cp);
+    synchronized (mScanner) {
+      mScanner.scan(m.getCode().getCode(), cp);
+      return mScanner.countPoints();
+    }
+  }
+
+  /**
+   * Count number of mutation points in a method the way
+   * <code>jumble</code> sees them, with BCEL instructions. Only used to
+   * check the scanner.
+   */
+  int countInstructionPoints(final Method m, final String className, final ConstantPoolGen cp) {
+    if (!checkNormalMethod(m)) {
+      return 0;
+    }
+    synchronized (BCEL_LOCK) {
+      final InstructionList il = new InstructionList(m.getCode().getCode());
+      final InstructionHandle[] ihs = il.getInstructionHandles();
+      int count = 0;
+      for (int j = 0; j < ihs.length; j = skipAhead(ihs, cp, j)) {
+        count += isMutatable(ihs, j, cp);
+      }
+      il.dispose();
+      return count;
     }
-    il.dispose();
-    return count;
   }
 
   /*
@@ -535,6 +715,94 @@ public class Mutater {
     return count;
   }
 
+  /**
+   * Lists every mutation point in the class, in the order in which they
+   * are numbered, working through the class once.
+   *
+   * @param cl the class.
+   * @return the mutation points, or null if the class could not be found
+   * or is an interface.
+   */
+  public MutationPoint[] getMutationPoints(final String cl) throws ClassNotFoundException {
+    final JavaClass clazz = lookupClass(fixName(cl));
+    return clazz == null ? null : getMutationPoints(clazz);
+  }
+
+  /**
+   * Lists every mutation point in a class that has already been read.
+   * Points whose mutants can be shown to behave the same as the class
+   * are marked as equivalent.
+   *
+   * @param clazz the class.
+   * @return the mutation points, or null if the class is an interface.
+   */
+  public MutationPoint[] getMutationPoints(final JavaClass clazz) {
+    if (clazz.isInterface()) {
+      return null;
+    }
+    final String className = clazz.getClassName();
+    final Method[] methods = clazz.getMethods();
+    final ConstantPool cpool = clazz.getConstantPool();
+    if (isSwitchClass(className, cpool)) {
+      return new MutationPoint[0];
+    }
+    final ConstantPoolGen cp = new ConstantPoolGen(cpool);
+    final List<MutationPoint> points = new ArrayList<MutationPoint>();
+    if (mCPool) {
+      initConstantRef(methods, className, cp);
+      final List<Integer> constants = new ArrayList<Integer>();
+      for (int i = 0; i < cp.getSize(); i++) {
+        if (isMutatable(cp.getConstant(i), i)) {
+          constants.add(i);
+        }
+      }
+      // These are put down to the first method, as getMutatedMethodName does
+      final String first = methods.length > 0 ? methods[0].getName() + methods[0].getSignature() : null;
+      for (final Integer i : constants) {
+        final int index = points.size();
+        points.add(new MutationPoint(className, index, first, index - constants.size(), i, MutationPoint.CPOOL, mConstantFirstRef[i],
+                                     className + ":" + mConstantFirstRef[i] + ": CP[" + i + "]"));
+      }
+    }
+    for (int k = 0; k < methods.length; k++) {
+      final Method m = methods[k];
+      if (!checkNormalMethod(m)) {
+        continue;
+      }
+      final String method = m.getName() + m.getSignature();
+      final int methodStart = points.size();
+      EquivalentMutants equivalent = null;
+      synchronized (mScanner) {
+        mScanner.scan(m.getCode().getCode(), cp);
+        for (int j = 0; j < mScanner.size(); j = mScanner.skipAhead(j)) {
+          final int count = mScanner.getPoints(j);
+          final int opcode = mScanner.getOpcode(j);
+          final String kind = Constants.OPCODE_NAMES[opcode];
+          final boolean select = opcode == Constants.TABLESWITCH || opcode == Constants.LOOKUPSWITCH;
+          final int offset = mScanner.getPosition(j);
+          final int line = m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(offset) : 0;
+          if (count > 0 && equivalent == null) {
+            equivalent = new EquivalentMutants(m, cp, mMutatable);
+          }
+          for (int p = 0; p < count; p++) {
+            final String description = className + ":" + line + ": " + kind + (select ? " case " + mScanner.getMatch(j, p) : "");
+            points.add(new MutationPoint(className, points.size(), method, points.size() - methodStart, offset, kind, line, description,
+                                         !select && equivalent.isEquivalent(offset)));
+          }
+        }
+      }
+    }
+    return points.toArray(new MutationPoint[points.size()]);
+  }
+
+  /** Returns the current mutation point from the table, if there is one for the class */
+  private MutationPoint lookupPoint(final String className) {
+    if (mPoints != null && mCount >= 0 && mCount < mPoints.length && mPoints[mCount].getClassName().equals(className)) {
+      return mPoints[mCount];
+    }
+    return null;
+  }
+
   /** Mutate an ICONST instruction. */
   private static Instruction mutateICONST(final ICONST i, final ConstantPoolGen cp) {
     return new ICONST(ICONST_MAP[i.getValue().intValue() + 1]);
@@ -806,84 +1074,15 @@ public class Mutater {
         // not count is < -1 only for a few instructions like TABLESWITCH
         int lineNumber = (m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(ihs[j].getPosition()) : 0);
         StringBuffer mod = new StringBuffer(className).append(":").append(lineNumber).append(": ");
-        if (i instanceof IfInstruction) {
-          mod.append("negated conditional");
-          ihs[j].setInstruction(((IfInstruction) i).negate());
-        } else if (i instanceof INEG || i instanceof DNEG || i instanceof FNEG || i instanceof LNEG) {
-          // Negation instruction
-          mod.append("removed negation");
-          ihs[j].setInstruction(new NOP());
-        } else if (i instanceof ArithmeticInstruction) {
-          // binary operand integer instruction
-          final Instruction inew = mutateIntegerArithmetic((ArithmeticInstruction) i, cp);
-          ihs[j].setInstruction(inew);
-          mod.append(describe(i) + " -> " + describe(inew));
-        } else if (i instanceof ReturnInstruction) {
+        if (i instanceof ReturnInstruction) {
           mod.append(describe(i));
           il.insert(ihs[j], mutateRETURN((ReturnInstruction) i, ifactory));
         } else if (i instanceof Select) {
-          final Select select = (Select) i;
-          final int index = -1 - count;
-          // mutate by swapping target with default target, this is better than
-          // swapping the case value itself because sometimes multiple cases
-          // will branch to the same code
-          final int[] matches = select.getMatchs();
-          final InstructionHandle[] handles = select.getTargets();
-          final InstructionHandle newDefHandle = handles[index];
-          final InstructionHandle oldDefHandle = select.getTarget();
-          if (newDefHandle == oldDefHandle) {
-            // need to try harder to find a case we can swap with
-            for (int k = 0; k < matches.length; k++) {
-              if (k != index && newDefHandle != handles[k]) {
-                mod.append("switched case " + matches[index] + " with case " + k);
-                handles[index] = handles[k];
-                handles[k] = newDefHandle;
-                if (select instanceof TABLESWITCH) {
-                  ihs[j].setInstruction(new TABLESWITCH(matches, handles, oldDefHandle));
-                } else {
-                  ihs[j].setInstruction(new LOOKUPSWITCH(matches, handles, oldDefHandle));
-                }
-                break;
-              }
-            }
-            // still didn't find an option, just mutate the case value itself
-            mod.append("switched case " + matches[index] + " -> " + ++matches[index]);
-            if (select instanceof TABLESWITCH) {
-              ihs[j].setInstruction(new TABLESWITCH(matches, handles, oldDefHandle));
-            } else {
-              ihs[j].setInstruction(new LOOKUPSWITCH(matches, handles, oldDefHandle));
-            }
-          } else {
-            handles[index] = oldDefHandle;
-            mod.append("switched case " + matches[index] + " with default case");
-            if (select instanceof TABLESWITCH) {
-              ihs[j].setInstruction(new TABLESWITCH(matches, handles, newDefHandle));
-            } else {
-              ihs[j].setInstruction(new LOOKUPSWITCH(matches, handles, newDefHandle));
-            }
-          }
+          ihs[j].setInstruction(mutateSelect((Select) i, -1 - count, mod));
         } else {
-          final Instruction inew;
-          if (i instanceof ICONST) {
-            inew = mutateICONST((ICONST) i, cp);
-          } else if (i instanceof FCONST) {
-            inew = mutateFCONST((FCONST) i, cp);
-          } else if (i instanceof DCONST) {
-            inew = mutateDCONST((DCONST) i, cp);
-          } else if (i instanceof LCONST) {
-            inew = mutateLCONST((LCONST) i, cp);
-          } else if (i instanceof BIPUSH) {
-            inew = mutateBIPUSH((BIPUSH) i, cp);
-          } else if (i instanceof SIPUSH) {
-            inew = mutateSIPUSH((SIPUSH) i, cp);
-          } else if (i instanceof IINC) {
-            inew = mutateIINC((IINC) i, cp);
-          } else {
-            inew = null;
-          }
+          final Instruction inew = mutateInPlace(i, cp, mod);
           if (inew != null) {
             ihs[j].setInstruction(inew);
-            mod.append(describe(i) + " -> " + describe(inew));
           }
         }
         mModification = mod.toString();
@@ -892,55 +1091,476 @@ public class Mutater {
       }
     }
     //Remove LVTT attribute to fix LVTT class loading error.
+    removeCodeAttribute(mg, "LocalVariableTypeTable");
+    
+    mg.setMaxStack(); // this is needed for the return mods
+    methods[methodidx] = mg.getMethod();
+    il.dispose();
+    return count;
+  }
+
+  /**
+   * Works out the switch to put in place of one being mutated, adding a
+   * description of the change to <code>mod</code>.
+   *
+   * @param index which case of the switch is mutated.
+   */
+  private static Select mutateSelect(final Select select, final int index, final StringBuffer mod) {
+    // mutate by swapping target with default target, this is better than
+    // swapping the case value itself because sometimes multiple cases
+    // will branch to the same code
+    final int[] matches = select.getMatchs().clone();
+    final InstructionHandle[] handles = select.getTargets().clone();
+    final InstructionHandle newDefHandle = handles[index];
+    final InstructionHandle oldDefHandle = select.getTarget();
+    Select mutated = null;
+    if (newDefHandle == oldDefHandle) {
+      // need to try harder to find a case we can swap with
+      for (int k = 0; k < matches.length; k++) {
+        if (k != index && newDefHandle != handles[k]) {
+          mod.append("switched case " + matches[index] + " with case " + k);
+          handles[index] = handles[k];
+          handles[k] = newDefHandle;
+          break;
+        }
+      }
+      // still didn't find an option, just mutate the case value itself
+      mod.append("switched case " + matches[index] + " -> " + ++matches[index]);
+      if (select instanceof TABLESWITCH) {
+        mutated = new TABLESWITCH(matches, handles, oldDefHandle);
+      } else {
+        mutated = new LOOKUPSWITCH(matches, handles, oldDefHandle);
+      }
+    } else {
+      handles[index] = oldDefHandle;
+      mod.append("switched case " + matches[index] + " with default case");
+      if (select instanceof TABLESWITCH) {
+        mutated = new TABLESWITCH(matches, handles, newDefHandle);
+      } else {
+        mutated = new LOOKUPSWITCH(matches, handles, newDefHandle);
+      }
+    }
+    return mutated;
+  }
+
+  /**
+   * Works out the instruction to put in place of one being mutated, for
+   * all but return and switch instructions, adding a description of the
+   * change to <code>mod</code>.
+   *
+   * @return the replacement, or null if there is none.
+   */
+  private Instruction mutateInPlace(final Instruction i, final ConstantPoolGen cp, final StringBuffer mod) {
+    if (i instanceof IfInstruction) {
+      mod.append("negated conditional");
+      return ((IfInstruction) i).negate();
+    } else if (i instanceof INEG || i instanceof DNEG || i instanceof FNEG || i instanceof LNEG) {
+      // Negation instruction
+      mod.append("removed negation");
+      return new NOP();
+    }
+    final Instruction inew;
+    if (i instanceof ArithmeticInstruction) {
+      // binary operand integer instruction
+      inew = mutateIntegerArithmetic((ArithmeticInstruction) i, cp);
+    } else if (i instanceof ICONST) {
+      inew = mutateICONST((ICONST) i, cp);
+    } else if (i instanceof FCONST) {
+      inew = mutateFCONST((FCONST) i, cp);
+    } else if (i instanceof DCONST) {
+      inew = mutateDCONST((DCONST) i, cp);
+    } else if (i instanceof LCONST) {
+      inew = mutateLCONST((LCONST) i, cp);
+    } else if (i instanceof BIPUSH) {
+      inew = mutateBIPUSH((BIPUSH) i, cp);
+    } else if (i instanceof SIPUSH) {
+      inew = mutateSIPUSH((SIPUSH) i, cp);
+    } else if (i instanceof IINC) {
+      inew = mutateIINC((IINC) i, cp);
+    } else {
+      inew = null;
+    }
+    if (inew != null) {
+      mod.append(describe(i) + " -> " + describe(inew));
+    }
+    return inew;
+  }
+
+  /**
+   * Mutates a class by patching a copy of its class file rather than
+   * having BCEL rebuild it. This is only done when the current mutation
+   * point is in the table given to <code>setMutationPoints</code> and
+   * replaces a single instruction with another of the same length, as
+   * for arithmetic, conditionals and inline constants. Loop probes and
+   * meta-mutants always need BCEL.
+   *
+   * @param cl the name of the class.
+   * @param original the class file.
+   * @return the mutated class file, or null if the mutation has to be
+   * made by <code>jumbler</code>.
+   */
+  public byte[] patch(final String cl, final byte[] original) {
+    final String className = fixName(cl);
+    final MutationPoint point = mLoopProbes || mSchemata ? null : lookupPoint(className);
+    if (point == null || MutationPoint.CPOOL.equals(point.getKind())) {
+      return null;
+    }
+    final JavaClass clazz = lookupClass(className);
+    return clazz == null ? null : patch(clazz, original);
+  }
+
+  /**
+   * Patches a class that has already been read from the class file
+   * given.
+   */
+  byte[] patch(final JavaClass clazz, final byte[] original) {
+    final String className = clazz.getClassName();
+    final MutationPoint point = mLoopProbes || mSchemata ? null : lookupPoint(className);
+    if (point == null || MutationPoint.CPOOL.equals(point.getKind())) {
+      return null;
+    }
+    final Method[] methods = clazz.getMethods();
+    final int k = findMethod(methods, point.getMethod());
+    if (k < 0) {
+      return null;
+    }
+    final Method m = methods[k];
+    final byte[] code = m.getCode().getCode();
+    final int start = CodeScanner.findCode(original, k, m.getCode().getNameIndex());
+    // Make sure the class file holds the code the table was made from
+    if (start < 0 || start + code.length > original.length) {
+      return null;
+    }
+    for (int b = 0; b < code.length; b++) {
+      if (original[start + b] != code[b]) {
+        return null;
+      }
+    }
+    try {
+      final ByteSequence in = new ByteSequence(code);
+      in.skipBytes(point.getOffset());
+      final Instruction i = Instruction.readInstruction(in);
+      if (i instanceof ReturnInstruction || i instanceof Select) {
+        return null;
+      }
+      final int lineNumber = m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(point.getOffset()) : 0;
+      final StringBuffer mod = new StringBuffer(className).append(":").append(lineNumber).append(": ");
+      // None of the in place mutations need the constant pool
+      final Instruction inew = mutateInPlace(i, null, mod);
+      if (inew == null || inew.getLength() != i.getLength()) {
+        return null;
+      }
+      final byte[] patched = original.clone();
+      if (i instanceof BranchInstruction) {
+        // Only the opcode changes, the branch offset stays as it is
+        patched[start + point.getOffset()] = (byte) inew.getOpcode();
+      } else {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        inew.dump(new DataOutputStream(bos));
+        System.arraycopy(bos.toByteArray(), 0, patched, start + point.getOffset(), inew.getLength());
+      }
+      mModification = mod.toString();
+      return patched;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Turns a copy of a class into a meta-mutant, guarding every mutation
+   * point that can be switched on and off while the class is loaded.
+   */
+  private void guardAll(final JavaClass clazz, final Method[] methods, final ConstantPoolGen cp) {
+    final String className = clazz.getClassName();
+    mGuarded = new HashMap<Integer, String>();
+    // Constant pool points come first and cannot be guarded
+    int point = mCPool ? countMutationPoints(methods, className, cp) : 0;
+    for (int i = 0; i < methods.length; i++) {
+      final int points = countMutationPoints(methods[i], className, cp);
+      if (points > 0 && !"<clinit>".equals(methods[i].getName())) {
+        try {
+          guardMethod(methods, i, className, cp, point);
+        } catch (RuntimeException e) {
+          // Most likely the method has grown too big, its mutants are made one at a time
+          for (int p = point; p < point + points; p++) {
+            mGuarded.remove(p);
+          }
+        }
+      }
+      point += points;
+    }
+    final Field[] fields = clazz.getFields();
+    final Field[] withActive = new Field[fields.length + 1];
+    System.arraycopy(fields, 0, withActive, 0, fields.length);
+    withActive[fields.length] = new FieldGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC | Constants.ACC_SYNTHETIC, Type.INT, ACTIVE_MUTANT, cp).getField();
+    clazz.setFields(withActive);
+    mModification = null;
+  }
+
+  /**
+   * Guards each mutation point in a method with a check of the
+   * <code>ACTIVE_MUTANT</code> field, which runs the mutated code in
+   * place of the original when it selects the point.
+   *
+   * @param point the first mutation point in the method.
+   */
+  private void guardMethod(final Method[] methods, final int methodidx, final String className, final ConstantPoolGen cp, int point) {
+    final Method m = methods[methodidx];
+    final MethodGen mg = new MethodGen(m, className, cp);
+    final InstructionList il = mg.getInstructionList();
+    final InstructionHandle[] ihs = il.getInstructionHandles();
+    final InstructionFactory ifactory = new InstructionFactory(cp);
+    for (int j = 0; j < ihs.length; j = skipAhead(ihs, cp, j)) {
+      final int points = isMutatable(ihs, j, cp);
+      if (points == 0) {
+        continue;
+      }
+      final Instruction i = ihs[j].getInstruction();
+      final int lineNumber = (m.getLineNumberTable() != null ? m.getLineNumberTable().getSourceLine(ihs[j].getPosition()) : 0);
+      final InstructionList[] mutants = new InstructionList[points];
+      for (int p = 0; p < points; p++) {
+        final StringBuffer mod = new StringBuffer(className).append(":").append(lineNumber).append(": ");
+        mutants[p] = new InstructionList();
+        if (i instanceof ReturnInstruction) {
+          mod.append(describe(i));
+          mutants[p].append(mutateRETURN((ReturnInstruction) i, ifactory));
+          mutants[p].append(i.copy());
+        } else if (i instanceof Select) {
+          mutants[p].append(mutateSelect((Select) i, p, mod));
+        } else {
+          final Instruction inew = mutateInPlace(i, cp, mod);
+          if (inew instanceof BranchInstruction) {
+            mutants[p].append((BranchInstruction) inew);
+          } else {
+            mutants[p].append(inew);
+          }
+        }
+        mGuarded.put(point + p, mod.toString());
+      }
+      // As for a single mutant, anything branching to a return skips the change to the value
+      guard(il, mg, ihs[j], mutants, point, className, cp, ifactory, !(i instanceof ReturnInstruction));
+      point += points;
+    }
+    removeCodeAttribute(mg, "LocalVariableTypeTable");
+    removeCodeAttribute(mg, "StackMapTable");
+    mg.setMaxStack();
+    methods[methodidx] = mg.getMethod();
+    il.dispose();
+  }
+
+  /**
+   * Puts the mutated versions of an instruction in front of it, each
+   * behind a check of the <code>ACTIVE_MUTANT</code> field.
+   *
+   * @param redirect true if branches to the instruction should go to
+   * the checks instead.
+   */
+  private static void guard(final InstructionList il, final MethodGen mg, final InstructionHandle ih, final InstructionList[] mutants, final int point,
+                            final String className, final ConstantPoolGen cp, final InstructionFactory ifactory, final boolean redirect) {
+    final InstructionList guards = new InstructionList();
+    final InstructionHandle[] starts = new InstructionHandle[mutants.length];
+    final IF_ICMPNE[] skips = new IF_ICMPNE[mutants.length];
+    for (int p = 0; p < mutants.length; p++) {
+      starts[p] = guards.append(ifactory.createGetStatic(className, ACTIVE_MUTANT, Type.INT));
+      guards.append(new PUSH(cp, point + p + 1));
+      skips[p] = new IF_ICMPNE(null);
+      guards.append(skips[p]);
+      final Instruction last = mutants[p].getEnd().getInstruction();
+      final boolean carriesOn = !(last instanceof ReturnInstruction || last instanceof ATHROW || last instanceof GotoInstruction || last instanceof Select);
+      guards.append(mutants[p]);
+      if (carriesOn && ih.getNext() != null) {
+        guards.append(new GOTO(ih.getNext()));
+      }
+    }
+    if (redirect) {
+      il.redirectBranches(ih, starts[0]);
+      final CodeExceptionGen[] handlers = mg.getExceptionHandlers();
+      for (int h = 0; h < handlers.length; h++) {
+        if (handlers[h].getStartPC() == ih) {
+          handlers[h].setStartPC(starts[0]);
+        }
+        if (handlers[h].getHandlerPC() == ih) {
+          handlers[h].setHandlerPC(starts[0]);
+        }
+      }
+    }
+    final LineNumberGen[] lines = mg.getLineNumbers();
+    for (int l = 0; l < lines.length; l++) {
+      if (lines[l].getInstruction() == ih) {
+        lines[l].setInstruction(starts[0]);
+      }
+    }
+    for (int p = 0; p < mutants.length; p++) {
+      skips[p].setTarget(p + 1 < mutants.length ? starts[p + 1] : ih);
+    }
+    il.insert(ih, guards);
+  }
+
+  private static void removeCodeAttribute(final MethodGen mg, final String name) {
     Attribute[] attribs = mg.getCodeAttributes();
     for (Attribute a : attribs) {
-      if (a instanceof Unknown && ((Unknown) a).getName().equals("LocalVariableTypeTable")) {
+      if (a instanceof Unknown && ((Unknown) a).getName().equals(name)) {
         mg.removeCodeAttribute(a);
       }
     }
-    
-    mg.setMaxStack(); // this is needed for the return mods
+  }
+
+  /**
+   * Puts a call to <code>LoopProbe.tick</code> before each backward
+   * branch in a method, and makes anything branching to the branch go
+   * to the call instead.
+   */
+  private void addLoopProbes(Method[] methods, int methodidx, final String className, final ConstantPoolGen cp) {
+    final Method m = methods[methodidx];
+    if (!checkNormalMethod(m)) {
+      return;
+    }
+    final MethodGen mg = new MethodGen(m, className, cp);
+    final InstructionList il = mg.getInstructionList();
+    final InstructionHandle[] ihs = il.getInstructionHandles();
+    final InstructionFactory ifactory = new InstructionFactory(cp);
+    for (int j = 0; j < ihs.length; j++) {
+      final Instruction i = ihs[j].getInstruction();
+      if (i instanceof BranchInstruction && !(i instanceof Select) && !(i instanceof JsrInstruction)
+          && ((BranchInstruction) i).getTarget().getPosition() <= ihs[j].getPosition()) {
+        final InstructionHandle probe = il.insert(ihs[j], ifactory.createInvoke(LoopProbe.class.getName(), LoopProbe.TICK, Type.VOID, Type.NO_ARGS,
+                                                                                Constants.INVOKESTATIC));
+        il.redirectBranches(ihs[j], probe);
+      }
+    }
+    // Neither of these is updated to match the moved code
+    removeCodeAttribute(mg, "LocalVariableTypeTable");
+    removeCodeAttribute(mg, "StackMapTable");
+    mg.setMaxStack();
     methods[methodidx] = mg.getMethod();
     il.dispose();
-    return count;
+  }
+
+  /** Finds a method by name and signature, returning -1 if there is none */
+  private static int findMethod(final Method[] methods, final String method) {
+    for (int i = 0; i < methods.length; i++) {
+      if (method.equals(methods[i].getName() + methods[i].getSignature())) {
+        return i;
+      }
+    }
+    return -1;
   }
 
   public JavaClass jumbler(String cn) throws ClassNotFoundException {
-    JavaClass clazz = mRepository.loadClass(cn);
+    JavaClass clazz;
+    synchronized (mRepository) {
+      clazz = mRepository.loadClass(cn);
+    }
     return jumbler(clazz);
   }
 
   public JavaClass jumbler(final JavaClass clazz) {
-    JavaClass ret = clazz.copy();
-
-    Method[] methods = ret.getMethods();
-    ConstantPoolGen cp = new ConstantPoolGen(ret.getConstantPool());
-    int count = mCount;
-    if (mCPool) {
-      // first deal with constant pool
-      initConstantRef(methods, ret.getClassName(), cp);
-      for (int i = 0; i < cp.getSize(); i++) {
-        if (isMutatable(cp.getConstant(i), i) && count-- == 0) {
-          mutateConstant(ret.getClassName(), cp, i);
+    // Mutants may be made on several threads
+    synchronized (BCEL_LOCK) {
+      JavaClass ret = clazz.copy();
+
+      Method[] methods = ret.getMethods();
+      ConstantPoolGen cp = new ConstantPoolGen(ret.getConstantPool());
+      final boolean rewrite = (mLoopProbes || mSchemata) && canMarkAsJava5(ret);
+      if ((mLoopProbes || mSchemata) && !rewrite && TOO_NEW.add(ret.getClassName())) {
+        System.err.println("WARNING: " + ret.getClassName() + " cannot be made a Java 5 class, so it is mutated without loop probes or schemata");
+      }
+      int count = mSchemata ? -1 : mCount;
+      if (mSchemata) {
+        mGuarded = new HashMap<Integer, String>();
+        if (rewrite) {
+          guardAll(ret, methods, cp);
+        }
+      } else if (mCPool) {
+        // first deal with constant pool
+        initConstantRef(methods, ret.getClassName(), cp);
+        for (int i = 0; i < cp.getSize(); i++) {
+          if (isMutatable(cp.getConstant(i), i) && count-- == 0) {
+            mutateConstant(ret.getClassName(), cp, i);
+          }
         }
       }
+      // Only the method holding the point is regenerated, the rest are left as they are
+      int target = -1;
+      final MutationPoint point = count >= 0 ? lookupPoint(ret.getClassName()) : null;
+      if (point != null && !MutationPoint.CPOOL.equals(point.getKind())) {
+        target = findMethod(methods, point.getMethod());
+        if (target >= 0) {
+          count = point.getMethodPoint();
+        }
+      }
+      for (int i = 0; target < 0 && count >= 0 && i < methods.length; i++) {
+        final int points = countMutationPoints(methods[i], ret.getClassName(), cp);
+        if (count < points) {
+          target = i;
+        } else {
+          count -= points;
+        }
+      }
+      if (target >= 0) {
+        jumble(methods, target, ret.getClassName(), cp, count);
+      }
+      if (mLoopProbes && rewrite) {
+        for (int i = 0; i < methods.length; i++) {
+          addLoopProbes(methods, i, ret.getClassName(), cp);
+        }
+      }
+      if (rewrite && ret.getMajor() > Constants.MAJOR_1_5) {
+        // Without stack maps the class has to be verified by type
+        // inference, as for Java 5
+        ret.setMajor(Constants.MAJOR_1_5);
+        ret.setMinor(Constants.MINOR_1_5);
+      }
+      ret.setConstantPool(cp.getFinalConstantPool());
+      /*
+      String s1 = printClass(clazz);
+      String s2 = printClass(ret);
+      if (!s1.equals(s2)) {
+        System.err.println("==== Original class ====\n" + s1);
+        System.err.println("==== Modified class ====\n" + s2);
+        System.err.println("====");
+      } else {
+        System.err.println("==== No modification made ====");
+      }
+      */
+      return ret;
     }
-    for (int i = 0; i < methods.length; i++) {
-      count = jumble(methods, i, ret.getClassName(), cp, count);
-    }
-    ret.setConstantPool(cp.getFinalConstantPool());
-    /*
-    String s1 = printClass(clazz);
-    String s2 = printClass(ret);
-    if (!s1.equals(s2)) {
-      System.err.println("==== Original class ====\n" + s1);
-      System.err.println("==== Modified class ====\n" + s2);
-      System.err.println("====");
-    } else {
-      System.err.println("==== No modification made ====");
+  }
+
+  /**
+   * Tells whether a class can be marked as a Java 5 class, as it has to
+   * be once loop probes or meta-mutant guards are added, since they are
+   * made without stack maps. Classes from Java 9 on may rely on things
+   * Java 5 classes cannot have, such as nest mates, and Java 8 classes
+   * on static and private interface methods.
+   */
+  private static boolean canMarkAsJava5(final JavaClass clazz) {
+    if (clazz.getMajor() <= Constants.MAJOR_1_5) {
+      return true;
+    }
+    if (clazz.getMajor() > MAJOR_1_8) {
+      return false;
     }
-    */
-    return ret;
+    final ConstantPool cpool = clazz.getConstantPool();
+    final Method[] methods = clazz.getMethods();
+    for (int m = 0; m < methods.length; m++) {
+      if (methods[m].getCode() == null) {
+        continue;
+      }
+      try {
+        final ByteSequence code = new ByteSequence(methods[m].getCode().getCode());
+        while (code.available() > 0) {
+          final Instruction i = Instruction.readInstruction(code);
+          if ((i instanceof INVOKESTATIC || i instanceof INVOKESPECIAL)
+              && cpool.getConstant(((InvokeInstruction) i).getIndex()) instanceof ConstantInterfaceMethodref) {
+            return false;
+          }
+        }
+      } catch (IOException e) {
+        return false;
+      }
+    }
+    return true;
   }
 
   protected static String printClass(JavaClass c) {
@@ -969,6 +1589,10 @@ public class Mutater {
    */
   public String getMutatedMethodName(String cl) throws ClassNotFoundException {
     final String className = fixName(cl);
+    final MutationPoint point = lookupPoint(className);
+    if (point != null && point.getMethod() != null) {
+      return point.getMethod();
+    }
     final JavaClass clazz = lookupClass(className);
 
     if (clazz == null) {
@@ -995,16 +1619,19 @@ public class Mutater {
   }
 
   private JavaClass lookupClass(String className) {
-    try {
-      JavaClass clazz = mRepository.findClass(className);
+    // Repositories are shared between mutaters with the same classpath
+    synchronized (mRepository) {
+      try {
+        JavaClass clazz = mRepository.findClass(className);
 
-      if (clazz == null) {
-        return mRepository.loadClass(className);
-      } else {
-        return clazz;
+        if (clazz == null) {
+          return mRepository.loadClass(className);
+        } else {
+          return clazz;
+        }
+      } catch (ClassNotFoundException ex) { 
+        return null; 
       }
-    } catch (ClassNotFoundException ex) { 
-      return null; 
     }
   }
 
@@ -1018,6 +1645,10 @@ public class Mutater {
    */
   public int getMethodRelativeMutationPoint(String cl) throws ClassNotFoundException {
     final String className = fixName(cl);
+    final MutationPoint point = lookupPoint(className);
+    if (point != null && point.getMethod() != null) {
+      return point.getMethodPoint();
+    }
     final JavaClass clazz = lookupClass(className);
 
     if (clazz == null) {
@@ -2,13 +2,17 @@ package com.reeltwo.jumble.mutation;
 
 
 //import org.apache.bcel.util.ClassPath;
+import com.reeltwo.jumble.util.ClassPathIndex;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.JavaClass;
-import org.apache.bcel.util.ClassPath;
 import org.apache.bcel.util.Repository;
 import org.apache.bcel.util.SyntheticRepository;
 
@@ -16,37 +20,73 @@ import org.apache.bcel.util.SyntheticRepository;
 /**
  * A <code>ClassLoader</code> which embeds a <code>Mutater</code> so
  * that applications can be run with a single class undergoing
- * mutation.
+ * mutation. Alternatively the mutant can be taken from a
+ * <code>MutationPlan</code>, which may be shared with other loaders.
+ * Classes that cannot reach the class being mutated can be left to a
+ * <code>SharedClassLoader</code>, so that they are loaded only once for
+ * all the mutants of the class. Where the JVM allows it the loader is
+ * parallel capable, only loads of the same class waiting on each other.
  * 
  * @author Tin Pavlinic
  * @version $Revision: 516 $
  */
 public class MutatingClassLoader extends ClassLoader {
 
-  /** Used to perform the actual mutation */
+  /** Used to perform the actual mutation, or null if a plan is used */
   private final Mutater mMutater;
 
+  /** Where the mutant comes from if there is no <code>Mutater</code> */
+  private final MutationPlan mPlan;
+
+  /** The mutation point taken from the plan */
+  private final int mPoint;
+
+  /** The mutant, if it was made before the loader */
+  private final MutationPlan.Mutant mMutant;
+
+  /** Where mutants of the target are kept between runs, or null */
+  private MutantCache mCache = null;
+
   /** The name of the class being mutated */
   private final String mTarget;
 
-  private final String[] mIgnoredPackages = new String[] {
+  private static final String[] IGNORED_PACKAGES = new String[] {
     "java.",
     //"javax.",
     "sun.reflect",
+    "jdk.internal.reflect",
     "junit.",
+    // Loop counts have to reach whoever set the budget
+    LoopProbe.class.getName(),
     //"org.apache", 
     //"org.xml", 
     //"org.w3c"
   };
 
-  private final Hashtable<String, Class> mClasses = new Hashtable<String, Class>();
+  static {
+    // Needs Java 7, before that loading is serialised on the loader
+    try {
+      final Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+      register.invoke(null);
+    } catch (Exception e) {
+      ; // Not available
+    }
+  }
+
+  /** Loads the classes that cannot reach the target, or null to load them all here */
+  private SharedClassLoader mShared = null;
+
+  private final ConcurrentMap<String, Class<?>> mClasses = new ConcurrentHashMap<String, Class<?>>();
+
+  /** Held while loading a class, by class name, until it is loaded */
+  private final ConcurrentMap<String, Object> mLocks = new ConcurrentHashMap<String, Object>();
   private final ClassLoader mDeferTo = ClassLoader.getSystemClassLoader();
   private final Repository mRepository;
 
-  private final ClassPath mClassPath;
+  private final ClassPathIndex mClassPath;
 
   /** Textual description of the modification made. */
-  private String mModification;
+  private volatile String mModification;
 
 
   /**
@@ -63,12 +103,95 @@ public class MutatingClassLoader extends ClassLoader {
     // Add these ignored classes to work around jakarta commons logging stupidity with class loaders.
     mTarget = target;
     mMutater = mutater;
-    mClassPath = new ClassPath(classpath);
+    mPlan = null;
+    mPoint = -1;
+    mMutant = null;
+    mClassPath = ClassPathIndex.getInstance(classpath);
     //mRepository = SyntheticRepository.getInstance();
-    mRepository = SyntheticRepository.getInstance(mClassPath);
+    // One repository is shared by all loaders with the same classpath,
+    // which may be running in different threads
+    synchronized (SyntheticRepository.class) {
+      mRepository = SyntheticRepository.getInstance(mClassPath.getClassPath());
+    }
     mMutater.setRepository(mRepository);
   }
 
+  /**
+   * Creates a new <code>MutatingClassLoader</code> loading a mutant from
+   * a plan.
+   *
+   * @param plan the plan for the class to be mutated.
+   * @param point the mutation point, or -1 for no mutation.
+   * @param classpath a <code>String</code> value supplying the
+   * classes visible to the classloader.
+   */
+  public MutatingClassLoader(final MutationPlan plan, final int point, final String classpath) {
+    this(plan, point, null, classpath);
+  }
+
+  /**
+   * Creates a new <code>MutatingClassLoader</code> loading a mutant that
+   * has already been made from a plan.
+   *
+   * @param plan the plan the mutant was made from.
+   * @param mutant the mutant.
+   * @param classpath a <code>String</code> value supplying the
+   * classes visible to the classloader.
+   */
+  public MutatingClassLoader(final MutationPlan plan, final MutationPlan.Mutant mutant, final String classpath) {
+    this(plan, mutant.getPoint(), mutant, classpath);
+  }
+
+  private MutatingClassLoader(final MutationPlan plan, final int point, final MutationPlan.Mutant mutant, final String classpath) {
+    mTarget = plan.getClassName();
+    mMutater = null;
+    mPlan = plan;
+    mPoint = point;
+    mMutant = mutant;
+    mClassPath = ClassPathIndex.getInstance(classpath);
+    synchronized (SyntheticRepository.class) {
+      mRepository = SyntheticRepository.getInstance(mClassPath.getClassPath());
+    }
+  }
+
+  /**
+   * Sets a cache to take the mutated target from, if it has been made
+   * before, and to add it to otherwise.
+   *
+   * @param cache the cache, or null to always mutate the target.
+   */
+  public void setCache(final MutantCache cache) {
+    mCache = cache;
+  }
+
+  /**
+   * Sets a loader to leave the classes that cannot reach the target to.
+   *
+   * @param shared the loader, or null to load every class here.
+   * @throws IllegalArgumentException if the loader is for another target.
+   */
+  public void setSharedLoader(final SharedClassLoader shared) {
+    if (shared != null && !shared.getTarget().equals(mTarget)) {
+      throw new IllegalArgumentException("Shared loader is for " + shared.getTarget() + " not " + mTarget);
+    }
+    mShared = shared;
+  }
+
+  /**
+   * Tells whether a class is always loaded by the system class loader.
+   *
+   * @param className name of the class.
+   * @return true if the class is not loaded by Jumble class loaders.
+   */
+  static boolean isIgnored(final String className) {
+    for (int i = 0; i < IGNORED_PACKAGES.length; i++) {
+      if (className.startsWith(IGNORED_PACKAGES[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Gets a string description of the modification produced.
    * 
@@ -80,53 +203,186 @@ public class MutatingClassLoader extends ClassLoader {
 
   public int countMutationPoints(String className) throws ClassNotFoundException {
     loadClass(className);
+    if (mMutater == null) {
+      if (className.equals(mTarget)) {
+        return mPlan.size();
+      }
+      final Mutater mutater = new Mutater();
+      mutater.setRepository(mRepository);
+      return mutater.countMutationPoints(className);
+    }
     return mMutater.countMutationPoints(className);
   }
 
-  protected Class loadClass(String className, boolean resolve) throws ClassNotFoundException {
-    Class cl = null;
+  /** Gets the lock for loading a class, so that loading other classes can go ahead */
+  private Object getLock(String className) {
+    final Object lock = new Object();
+    final Object existing = mLocks.putIfAbsent(className, lock);
+    return existing != null ? existing : lock;
+  }
+
+  /** Gets the number of classes being loaded. Used by tests. */
+  int countLocks() {
+    return mLocks.size();
+  }
 
-    if ((cl = (Class) mClasses.get(className)) == null) {
-      // Classes we're forcing to be loaded by mDeferTo
-      for (int i = 0; i < mIgnoredPackages.length; i++) {
-        if (className.startsWith(mIgnoredPackages[i])) {
-          //System.err.println("Parent forced loading of class: " + className);
-          cl = mDeferTo.loadClass(className);
-          break;
+  protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+    Class<?> cl = mClasses.get(className);
+    if (cl == null) {
+      final Object lock = getLock(className);
+      try {
+        synchronized (lock) {
+          cl = mClasses.get(className);
+          if (cl == null) {
+            cl = loadNewClass(className);
+            if (resolve) {
+              resolveClass(cl);
+            }
+            mClasses.put(className, cl);
+          }
         }
+      } finally {
+        // Anyone still holding the lock finds the class loaded, later callers do not need it
+        mLocks.remove(className, lock);
       }
+    }
+    return cl;
+  }
 
-      if (cl == null) {
-        JavaClass clazz = null;
+  /** Loads a class not loaded before */
+  private Class<?> loadNewClass(String className) throws ClassNotFoundException {
+    Class<?> cl = null;
 
-        // Try loading from our repository
-        try {
-          if ((clazz = mRepository.loadClass(className)) != null) {
-            clazz = modifyClass(clazz);
-          }
-        } catch (ClassNotFoundException e) {
-          ; // OK, because we'll let Class.forName handle it
-        }
+    // Classes we're forcing to be loaded by mDeferTo
+    if (isIgnored(className)) {
+      //System.err.println("Parent forced loading of class: " + className);
+      cl = mDeferTo.loadClass(className);
+    }
+
+    if (cl == null && mShared != null && !mShared.reachesTarget(className)) {
+      cl = mShared.loadClass(className);
+    }
+
+    if (cl == null && mPlan != null && className.equals(mTarget)) {
+      // Plans are safe to share, no locking needed
+      final MutationPlan.Mutant mutant = mMutant != null ? mMutant : mPlan.createMutant(mPoint, mCache);
+      mModification = mutant.getModification();
+      cl = defineClass(className, mutant.getBytes(), 0, mutant.getBytes().length);
+    }
+
+    if (cl == null && className.equals(mTarget)) {
+      final byte[] bytes = mCache != null ? cachedClass(className) : patchClass(className);
+      if (bytes != null) {
+        cl = defineClass(className, bytes, 0, bytes.length);
+      }
+    }
+
+    if (cl == null && !className.equals(mTarget)) {
+      // Nothing to change, so the class file is defined as it is
+      final byte[] bytes = readClass(mClassPath, className);
+      if (bytes != null) {
+        cl = defineClass(className, bytes, 0, bytes.length);
+      } else {
+        cl = mDeferTo.loadClass(className);
+      }
+    }
+
+    if (cl == null) {
+      JavaClass clazz = null;
 
+      // Only the target is parsed, for mutating
+      try {
+        synchronized (mRepository) {
+          clazz = mRepository.loadClass(className);
+        }
         if (clazz != null) {
-          //System.err.println("MCL loading class: " + className);
-          byte[] bytes  = clazz.getBytes();
-          cl = defineClass(className, bytes, 0, bytes.length);
-        } else {
-          //cl = Class.forName(className);
-          //System.err.println("Parent loading of class: " + className);
-          cl = mDeferTo.loadClass(className);
+          clazz = modifyClass(clazz);
         }
+      } catch (ClassNotFoundException e) {
+        ; // OK, because we'll let Class.forName handle it
       }
-      
-      if (resolve) {
-        resolveClass(cl);
+
+      if (clazz != null) {
+        //System.err.println("MCL loading class: " + className);
+        byte[] bytes  = clazz.getBytes();
+        cl = defineClass(className, bytes, 0, bytes.length);
+      } else {
+        //cl = Class.forName(className);
+        //System.err.println("Parent loading of class: " + className);
+        cl = mDeferTo.loadClass(className);
       }
     }
+    return cl;
+  }
+
+  /**
+   * Reads a class file from a classpath.
+   *
+   * @param classPath the classpath.
+   * @param className name of the class.
+   * @return the class file, or null if it is not on the classpath.
+   */
+  static byte[] readClass(final ClassPathIndex classPath, final String className) {
+    try {
+      return classPath.getBytes(className);
+    } catch (IOException e) {
+      return null;
+    }
+  }
 
-    mClasses.put(className, cl);
+  /**
+   * Tries to mutate the target class by patching its class file in place.
+   *
+   * @return the mutated class file, or null if it has to be rebuilt.
+   */
+  private byte[] patchClass(String className) {
+    final byte[] original = readClass(mClassPath, className);
+    if (original == null) {
+      return null; // Let the repository find it, or not
+    }
+    synchronized (mMutater) {
+      final byte[] bytes = mMutater.patch(className, original);
+      if (bytes != null) {
+        mModification = mMutater.getModification();
+      }
+      return bytes;
+    }
+  }
 
-    return cl;
+  /**
+   * Gets the mutated target from the cache, mutating it and adding it
+   * to the cache if it is not there.
+   *
+   * @return the mutated class file, or null if it cannot be cached.
+   */
+  private byte[] cachedClass(String className) {
+    final byte[] original = readClass(mClassPath, className);
+    if (original == null) {
+      return null;
+    }
+    synchronized (mMutater) {
+      final String settings = mMutater.describeSettings();
+      if (settings == null) {
+        return null;
+      }
+      final String key = MutantCache.digest(original, settings);
+      final int point = mMutater.getMutationPoint();
+      MutationPlan.Mutant mutant = mCache.get(key, point);
+      if (mutant == null) {
+        byte[] bytes = mMutater.patch(className, original);
+        if (bytes == null) {
+          try {
+            bytes = mMutater.jumbler(new ClassParser(new ByteArrayInputStream(original), className).parse()).getBytes();
+          } catch (IOException e) {
+            return null;
+          }
+        }
+        mutant = new MutationPlan.Mutant(point, bytes, mMutater.getModification());
+        mCache.put(key, mutant);
+      }
+      mModification = mutant.getModification();
+      return mutant.getBytes();
+    }
   }
 
   /**
@@ -140,7 +396,7 @@ public class MutatingClassLoader extends ClassLoader {
    * @return possibly modified class
    */
   public JavaClass modifyClass(JavaClass clazz) {
-    if (clazz.getClassName().equals(mTarget)) {
+    if (mMutater != null && clazz.getClassName().equals(mTarget)) {
       synchronized (mMutater) {
         clazz = mMutater.jumbler(clazz);
         mModification = mMutater.getModification();
@@ -149,7 +405,6 @@ public class MutatingClassLoader extends ClassLoader {
     return clazz;
   }
 
-  @SuppressWarnings("unchecked")
   public Enumeration<URL> getResources(String name) throws IOException {
     Enumeration<URL> resources = mClassPath.getResources(name);
     if (!resources.hasMoreElements()) {
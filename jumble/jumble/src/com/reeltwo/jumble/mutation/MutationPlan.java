@@ -0,0 +1,176 @@
+package com.reeltwo.jumble.mutation;
+
+import org.apache.bcel.classfile.JavaClass;
+
+/**
+ * The mutants of a single class, worked out once by
+ * <code>Mutater.createPlan</code> from the class file and the settings
+ * of the <code>Mutater</code>. A plan never changes, so any number of
+ * threads can ask it for mutants without sharing a <code>Mutater</code>
+ * or reading the class again. Mutants patched straight into the class
+ * file are made at the same time, but those that need BCEL instruction
+ * lists are made one at a time.
+ *
+ * @version $Revision$
+ */
+public final class MutationPlan {
+
+  /** Settings every mutant is made with, never used directly */
+  private final Mutater mSettings;
+
+  /** The class as read, only ever copied */
+  private final JavaClass mClass;
+
+  /** The class file, never handed out */
+  private final byte[] mOriginal;
+
+  private final MutationPoint[] mPoints;
+
+  /** Key of the mutants in a <code>MutantCache</code> */
+  private final String mKey;
+
+  MutationPlan(Mutater settings, JavaClass clazz, byte[] original, MutationPoint[] points) {
+    mSettings = settings;
+    mClass = clazz;
+    mOriginal = original;
+    mPoints = points;
+    mKey = MutantCache.digest(original, settings.describeSettings());
+  }
+
+  public String getClassName() {
+    return mClass.getClassName();
+  }
+
+  /**
+   * Gets the size of the original class file, a guide to the size of
+   * its mutants.
+   *
+   * @return the size in bytes.
+   */
+  public int getClassSize() {
+    return mOriginal.length;
+  }
+
+  /**
+   * Gets the number of mutation points in the class.
+   *
+   * @return the number of mutants.
+   */
+  public int size() {
+    return mPoints.length;
+  }
+
+  /**
+   * Gets where a mutation point is.
+   *
+   * @param point the mutation point.
+   * @return the point.
+   */
+  public MutationPoint getPoint(int point) {
+    return mPoints[point];
+  }
+
+  /**
+   * Gets a copy of the table of mutation points, as would be returned by
+   * <code>Mutater.getMutationPoints</code>.
+   *
+   * @return the mutation points.
+   */
+  public MutationPoint[] getPoints() {
+    return mPoints.clone();
+  }
+
+  /**
+   * Makes the class file of a mutant.
+   *
+   * @param point the mutation point, or -1 for no mutation.
+   * @return the mutant.
+   */
+  public Mutant createMutant(int point) {
+    return createMutant(point, null);
+  }
+
+  /**
+   * Gets a mutant from a cache, making it and adding it to the cache if
+   * it is not there.
+   *
+   * @param point the mutation point, or -1 for no mutation.
+   * @param cache the cache, or null to always make the mutant.
+   * @return the mutant.
+   */
+  public Mutant createMutant(int point, MutantCache cache) {
+    if (point < -1 || point >= mPoints.length) {
+      throw new IllegalArgumentException("Invalid mutation point " + point);
+    }
+    if (cache != null) {
+      final Mutant cached = cache.get(mKey, point);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final Mutant mutant = makeMutant(point);
+    if (cache != null) {
+      cache.put(mKey, mutant);
+    }
+    return mutant;
+  }
+
+  /** Makes a mutant from a fresh copy of the settings */
+  private Mutant makeMutant(int point) {
+    final Mutater mutater = mSettings.copySettings();
+    mutater.setMutationPoint(point);
+    byte[] bytes = mutater.patch(mClass, mOriginal);
+    if (bytes == null) {
+      bytes = mutater.jumbler(mClass).getBytes();
+    }
+    return new Mutant(point, bytes, mutater.getModification());
+  }
+
+  /**
+   * Makes the class file of a mutant.
+   *
+   * @param point the mutation point, or -1 for no mutation.
+   * @return the class file.
+   */
+  public byte[] mutate(int point) {
+    return createMutant(point).getBytes();
+  }
+
+  /**
+   * A single mutant made from a plan.
+   */
+  public static final class Mutant {
+    private final int mPoint;
+    private final byte[] mBytes;
+    private final String mModification;
+
+    Mutant(int point, byte[] bytes, String modification) {
+      mPoint = point;
+      mBytes = bytes;
+      mModification = modification;
+    }
+
+    public int getPoint() {
+      return mPoint;
+    }
+
+    /**
+     * Gets the class file of the mutant. The bytes are shared, since
+     * mutants may be cached, and must not be changed.
+     *
+     * @return the class file.
+     */
+    public byte[] getBytes() {
+      return mBytes;
+    }
+
+    /**
+     * Gets a description of the modification made.
+     *
+     * @return the modification, or null if none was made.
+     */
+    public String getModification() {
+      return mModification;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.reeltwo.jumble.mutation;
+
+import java.io.Serializable;
+
+/**
+ * Where a single mutation point of a class is, as found by
+ * <code>Mutater.getMutationPoints</code>. A table of these is worked
+ * out once per class, so that finding the method a mutant lives in
+ * does not mean counting through the whole class again.
+ *
+ * @version $Revision$
+ */
+public final class MutationPoint implements Serializable {
+
+  /** Number for serialization */
+  private static final long serialVersionUID = 1L;
+
+  /** Kind given to points in the constant pool */
+  public static final String CPOOL = "cpool";
+
+  private final String mClassName;
+
+  private final int mIndex;
+
+  private final String mMethod;
+
+  private final int mMethodPoint;
+
+  private final int mOffset;
+
+  private final String mKind;
+
+  private final int mLine;
+
+  private final String mDescription;
+
+  private final boolean mEquivalent;
+
+  /**
+   * Creates a mutation point.
+   *
+   * @param className the class the point is in.
+   * @param index the mutation point in the class.
+   * @param method name and signature of the method the point is put
+   * down to, or null if there is none.
+   * @param methodPoint the mutation point relative to the method.
+   * @param offset bytecode offset of the instruction in the method, or
+   * the constant pool index for a point in the constant pool.
+   * @param kind name of the instruction mutated, or <code>CPOOL</code>.
+   * @param line source line, or 0 if unknown.
+   * @param description human readable description of the point.
+   */
+  public MutationPoint(String className, int index, String method, int methodPoint, int offset, String kind, int line, String description) {
+    this(className, index, method, methodPoint, offset, kind, line, description, false);
+  }
+
+  /**
+   * Creates a mutation point that may be known to give an equivalent
+   * mutant.
+   *
+   * @param className the class the point is in.
+   * @param index the mutation point in the class.
+   * @param method name and signature of the method the point is put
+   * down to, or null if there is none.
+   * @param methodPoint the mutation point relative to the method.
+   * @param offset bytecode offset of the instruction in the method, or
+   * the constant pool index for a point in the constant pool.
+   * @param kind name of the instruction mutated, or <code>CPOOL</code>.
+   * @param line source line, or 0 if unknown.
+   * @param description human readable description of the point.
+   * @param equivalent true if the mutant provably behaves the same as
+   * the original class.
+   */
+  public MutationPoint(String className, int index, String method, int methodPoint, int offset, String kind, int line, String description,
+                       boolean equivalent) {
+    mEquivalent = equivalent;
+    mClassName = className;
+    mIndex = index;
+    mMethod = method;
+    mMethodPoint = methodPoint;
+    mOffset = offset;
+    mKind = kind;
+    mLine = line;
+    mDescription = description;
+  }
+
+  public String getClassName() {
+    return mClassName;
+  }
+
+  public int getIndex() {
+    return mIndex;
+  }
+
+  /**
+   * Gets the method the point is put down to, as given by
+   * <code>Mutater.getMutatedMethodName</code>.
+   *
+   * @return method name and signature.
+   */
+  public String getMethod() {
+    return mMethod;
+  }
+
+  /**
+   * Gets the point relative to its method, as given by
+   * <code>Mutater.getMethodRelativeMutationPoint</code>.
+   *
+   * @return the method relative mutation point.
+   */
+  public int getMethodPoint() {
+    return mMethodPoint;
+  }
+
+  public int getOffset() {
+    return mOffset;
+  }
+
+  public String getKind() {
+    return mKind;
+  }
+
+  public int getLine() {
+    return mLine;
+  }
+
+  public String getDescription() {
+    return mDescription;
+  }
+
+  /**
+   * Tells whether the mutant of this point was shown to behave the same
+   * as the original class, so that there is no point testing it.
+   *
+   * @return true if the mutant is equivalent.
+   */
+  public boolean isEquivalent() {
+    return mEquivalent;
+  }
+
+  public String toString() {
+    return mIndex + " " + mMethod + ":" + mMethodPoint + "@" + mOffset + " " + mDescription;
+  }
+}
@@ -0,0 +1,196 @@
+package com.reeltwo.jumble.mutation;
+
+import com.reeltwo.jumble.util.ClassPathIndex;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.util.Repository;
+import org.apache.bcel.util.SyntheticRepository;
+
+/**
+ * A <code>ClassLoader</code> for the classes that cannot reach the
+ * class being mutated, so that they can be loaded once and shared by
+ * every <code>MutatingClassLoader</code> for that class rather than
+ * loaded and initialised again for every mutant. Whether a class can
+ * reach the target is worked out from the classes named in its
+ * constant pool, following them through the classpath. Classes in the
+ * same package go together, since package access only works within a
+ * class loader: a class is not shared if any class in its package is
+ * loaded for each mutant. A class that only finds the target by a name
+ * built at run time is not noticed.
+ *
+ * @version $Revision$
+ */
+public class SharedClassLoader extends ClassLoader {
+
+  /** Class names in descriptors and signatures */
+  private static final Pattern DESCRIPTOR_NAME = Pattern.compile("L([^;<>]+)[;<]");
+
+  /** The name of the class being mutated */
+  private final String mTarget;
+
+  /** How the target appears in a constant pool */
+  private final String mInternalTarget;
+
+  private final ClassPathIndex mClassPath;
+
+  private final Repository mRepository;
+
+  private final ClassLoader mDeferTo = ClassLoader.getSystemClassLoader();
+
+  /** Whether each class looked at so far can reach the target */
+  private final Map<String, Boolean> mReaches = new HashMap<String, Boolean>();
+
+  /**
+   * Creates a loader for the classes that cannot reach a class.
+   *
+   * @param target name of the class being mutated.
+   * @param classpath the classes visible to the loader.
+   */
+  public SharedClassLoader(final String target, final String classpath) {
+    mTarget = target;
+    mInternalTarget = target.replace('.', '/');
+    mClassPath = ClassPathIndex.getInstance(classpath);
+    synchronized (SyntheticRepository.class) {
+      mRepository = SyntheticRepository.getInstance(mClassPath.getClassPath());
+    }
+  }
+
+  public String getTarget() {
+    return mTarget;
+  }
+
+  /**
+   * Tells whether loading a class could lead to loading the target,
+   * or it shares a package with a class that could, in which case it
+   * has to be loaded with the target.
+   *
+   * @param className name of the class.
+   * @return true if the class is the target or can reach it.
+   */
+  public synchronized boolean reachesTarget(final String className) {
+    final Boolean known = mReaches.get(className);
+    if (known != null) {
+      return known;
+    }
+    final Set<String> seen = new HashSet<String>();
+    final Set<String> packages = new HashSet<String>();
+    final LinkedList<String> queue = new LinkedList<String>();
+    seen.add(className);
+    queue.add(className);
+    boolean reaches = false;
+    while (!reaches && !queue.isEmpty()) {
+      final String name = queue.removeFirst();
+      final Boolean b = mReaches.get(name);
+      if (b != null) {
+        // Anything a class known not to reach the target refers to cannot either
+        reaches = b;
+        continue;
+      }
+      if (name.equals(mTarget)) {
+        reaches = true;
+        break;
+      }
+      final String packageName = name.lastIndexOf('.') == -1 ? "" : name.substring(0, name.lastIndexOf('.'));
+      if (packages.add(packageName)) {
+        for (final String member : mClassPath.getPackageClasses(packageName)) {
+          addReference(member, seen, queue);
+        }
+      }
+      final JavaClass clazz = lookupClass(name);
+      if (clazz != null) {
+        reaches = addReferences(clazz, seen, queue);
+      }
+    }
+    if (reaches) {
+      mReaches.put(className, Boolean.TRUE);
+    } else {
+      // Nothing seen reaches the target
+      for (final String name : seen) {
+        mReaches.put(name, Boolean.FALSE);
+      }
+    }
+    return reaches;
+  }
+
+  /**
+   * Queues the classes named in the constant pool of a class that have
+   * not been seen yet.
+   *
+   * @return true if the class names the target itself.
+   */
+  private boolean addReferences(final JavaClass clazz, final Set<String> seen, final LinkedList<String> queue) {
+    final Constant[] constants = clazz.getConstantPool().getConstantPool();
+    for (int i = 0; i < constants.length; i++) {
+      if (constants[i] instanceof ConstantUtf8) {
+        final String s = ((ConstantUtf8) constants[i]).getBytes();
+        // Covers class references, descriptors and names used for reflection
+        if (mentions(s, mInternalTarget) || mentions(s, mTarget)) {
+          return true;
+        }
+        final Matcher m = DESCRIPTOR_NAME.matcher(s);
+        while (m.find()) {
+          addReference(m.group(1), seen, queue);
+        }
+      } else if (constants[i] instanceof ConstantClass) {
+        final String name = ((ConstantUtf8) constants[((ConstantClass) constants[i]).getNameIndex()]).getBytes();
+        if (name.charAt(0) != '[') {
+          addReference(name, seen, queue);
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Tells whether a string holds a class name, or the name of one of its nested classes */
+  private static boolean mentions(final String s, final String name) {
+    for (int k = s.indexOf(name); k != -1; k = s.indexOf(name, k + 1)) {
+      final int end = k + name.length();
+      if (end == s.length() || s.charAt(end) == '$' || !Character.isJavaIdentifierPart(s.charAt(end))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void addReference(final String internalName, final Set<String> seen, final LinkedList<String> queue) {
+    final String name = internalName.replace('/', '.');
+    if (!MutatingClassLoader.isIgnored(name) && seen.add(name)) {
+      queue.add(name);
+    }
+  }
+
+  private JavaClass lookupClass(final String className) {
+    try {
+      synchronized (mRepository) {
+        return mRepository.loadClass(className);
+      }
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  protected synchronized Class<?> loadClass(final String className, final boolean resolve) throws ClassNotFoundException {
+    Class<?> cl = findLoadedClass(className);
+    if (cl == null) {
+      final byte[] bytes = MutatingClassLoader.isIgnored(className) ? null : MutatingClassLoader.readClass(mClassPath, className);
+      if (bytes != null) {
+        cl = defineClass(className, bytes, 0, bytes.length);
+      } else {
+        cl = mDeferTo.loadClass(className);
+      }
+    }
+    if (resolve) {
+      resolveClass(cl);
+    }
+    return cl;
+  }
+}
@@ -21,6 +21,8 @@ public class EmacsFormatListener implements JumbleListener {
 
   private int mCovered = 0;
 
+  private int mEquivalent = 0;
+
   private int mMutationCount;
 
   private String mClassName;
@@ -42,10 +44,10 @@ public class EmacsFormatListener implements JumbleListener {
 
   public void jumbleRunEnded() {
     if (mInitialTestsPassed) {
-      if (mMutationCount == 0) {
+      if (mMutationCount == mEquivalent) {
         mStream.println("Score: 100");
       } else {
-        mStream.println("Score: " + (mCovered) * 100 / mMutationCount);
+        mStream.println("Score: " + (mCovered) * 100 / (mMutationCount - mEquivalent));
       }
     }
     mStream.close();
@@ -75,6 +77,8 @@ public class EmacsFormatListener implements JumbleListener {
       description = description.substring(description.indexOf(":"));
       String sourceName = findSourceName(res.getClassName());
       mStream.println(sourceName + description);
+    } else if (res.isEquivalent()) {
+      mEquivalent++;
     } else {
       mCovered++;
     }
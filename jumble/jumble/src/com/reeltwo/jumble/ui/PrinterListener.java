@@ -21,6 +21,8 @@ public class PrinterListener implements JumbleListener {
 
   private int mCovered = 0;
 
+  private int mEquivalent = 0;
+
   private int mMutationCount;
 
   private String mClassName;
@@ -43,26 +45,38 @@ public class PrinterListener implements JumbleListener {
     if (mInitialTestsPassed) {
       mStream.println();
 
+      // Equivalent mutants could never be caught, so do not count
+      final int counted = mMutationCount - mEquivalent;
       if (mMutationCount == 0) {
         mStream.println("Score: 100% (NO MUTATIONS POSSIBLE)");
+      } else if (counted == 0) {
+        mStream.println("Score: 100% (ALL MUTATIONS EQUIVALENT)");
       } else {
-        mStream.println("Score: " + (mCovered) * 100 / mMutationCount + "%");
+        mStream.println("Score: " + (mCovered) * 100 / counted + "%");
+      }
+      if (mEquivalent > 0) {
+        mStream.println("Equivalent mutations skipped = " + mEquivalent);
       }
     }
     mStream.close();
   }
 
   public void finishedMutation(MutationResult res) {
+    // Results copied from an identical mutant are shown in lower case
     if (res.isPassed()) {
-      mStream.print(".");
+      mStream.print(res.isDuplicate() ? "d" : ".");
       mCovered++;
       newDot();
+    } else if (res.isEquivalent()) {
+      mStream.print("e");
+      mEquivalent++;
+      newDot();
     } else if (res.isTimedOut()) {
-      mStream.print("T");
+      mStream.print(res.isDuplicate() ? "t" : "T");
       mCovered++;
       newDot();
     } else {
-      mStream.println("M FAIL: " + res.getDescription());
+      mStream.println("M FAIL: " + res.getDescription() + (res.isDuplicate() ? " (same as mutation point " + res.getDuplicateOf() + ")" : ""));
       mDotCount = 0;
     }
   }
@@ -0,0 +1,433 @@
+package com.reeltwo.jumble.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.bcel.util.ClassPath;
+
+/**
+ * Finds classes and resources on a classpath. The jars on the classpath
+ * are opened and indexed once for each JVM, so that every class loader
+ * for the same classpath shares them rather than opening them all
+ * again. Entries in directories are looked up directly, since they may
+ * come and go. An index can also keep the class files it reads, so that
+ * every mutant run in a child JVM defines its classes from the same
+ * bytes. This is off by default, since the kept bytes are never checked
+ * against the files again.
+ *
+ * @version $Revision$
+ */
+public final class ClassPathIndex {
+
+  /** One index for each classpath */
+  private static final Map<String, ClassPathIndex> INSTANCES = new HashMap<String, ClassPathIndex>();
+
+  /** The classpath, for BCEL repositories */
+  private final ClassPath mClassPath;
+
+  /** The directories on the classpath, null where there is a jar */
+  private final File[] mDirs;
+
+  /** The jars on the classpath, null where there is a directory */
+  private final ZipFile[] mJars;
+
+  /** The first jar holding each entry */
+  private final Map<String, Integer> mFirstJar = new HashMap<String, Integer>();
+
+  /** The classes in the jars, by package */
+  private final Map<String, Set<String>> mJarPackages = new HashMap<String, Set<String>>();
+
+  /** Class files read so far, by class name */
+  private final ConcurrentMap<String, byte[]> mClasses = new ConcurrentHashMap<String, byte[]>();
+
+  /** True if class files are kept once read */
+  private volatile boolean mCacheClasses = false;
+
+  private final AtomicInteger mHits = new AtomicInteger();
+
+  private final AtomicInteger mMisses = new AtomicInteger();
+
+  /**
+   * Indexes a classpath. Use <code>getInstance</code> rather than
+   * indexing a classpath more than once.
+   *
+   * @param classpath the classpath.
+   */
+  ClassPathIndex(String classpath) {
+    mClassPath = new IndexedClassPath(classpath);
+    final List<File> dirs = new ArrayList<File>();
+    final List<ZipFile> jars = new ArrayList<ZipFile>();
+    final String[] paths = classpath.split(File.pathSeparator);
+    for (int i = 0; i < paths.length; i++) {
+      final File f = new File(paths[i]);
+      if (paths[i].length() == 0 || !f.exists()) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        dirs.add(f);
+        jars.add(null);
+      } else {
+        try {
+          final ZipFile jar = new ZipFile(f);
+          for (final Enumeration<? extends ZipEntry> e = jar.entries(); e.hasMoreElements(); ) {
+            final String name = e.nextElement().getName();
+            if (!mFirstJar.containsKey(name)) {
+              mFirstJar.put(name, jars.size());
+              if (name.endsWith(".class")) {
+                final int slash = name.lastIndexOf('/');
+                final String packageName = slash == -1 ? "" : name.substring(0, slash).replace('/', '.');
+                Set<String> classes = mJarPackages.get(packageName);
+                if (classes == null) {
+                  classes = new HashSet<String>();
+                  mJarPackages.put(packageName, classes);
+                }
+                classes.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+              }
+            }
+          }
+          dirs.add(null);
+          jars.add(jar);
+        } catch (IOException e) {
+          ; // Not a jar, so nothing can be found in it
+        }
+      }
+    }
+    mDirs = dirs.toArray(new File[dirs.size()]);
+    mJars = jars.toArray(new ZipFile[jars.size()]);
+  }
+
+  /**
+   * Gets the index of a classpath.
+   *
+   * @param classpath the classpath.
+   * @return the index.
+   */
+  public static ClassPathIndex getInstance(String classpath) {
+    synchronized (INSTANCES) {
+      ClassPathIndex index = INSTANCES.get(classpath);
+      if (index == null) {
+        index = new ClassPathIndex(classpath);
+        INSTANCES.put(classpath, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Closes the jars of the index of a classpath, so that the next
+   * <code>getInstance</code> indexes it afresh. Class loaders still using
+   * the old index can no longer read from its jars.
+   *
+   * @param classpath the classpath.
+   */
+  public static void release(String classpath) {
+    final ClassPathIndex index;
+    synchronized (INSTANCES) {
+      index = INSTANCES.remove(classpath);
+    }
+    if (index != null) {
+      index.close();
+    }
+  }
+
+  /**
+   * Closes the jars on the classpath.
+   */
+  void close() {
+    for (int i = 0; i < mJars.length; i++) {
+      if (mJars[i] != null) {
+        try {
+          mJars[i].close();
+        } catch (IOException e) {
+          ; // Nothing more to be done with it
+        }
+      }
+    }
+    mClasses.clear();
+  }
+
+  /**
+   * Sets whether class files are kept once read. Only worth doing in a
+   * JVM that is discarded before the class files could change.
+   *
+   * @param cacheClasses true to keep class files.
+   */
+  public void setCacheClasses(boolean cacheClasses) {
+    mCacheClasses = cacheClasses;
+  }
+
+  /**
+   * Gets the classpath, to build BCEL repositories from. Repositories
+   * read class files through the index, so its jars are not opened
+   * again.
+   *
+   * @return the classpath.
+   */
+  public ClassPath getClassPath() {
+    return mClassPath;
+  }
+
+  /**
+   * Finds the first classpath entry holding a file.
+   *
+   * @param name name of the file, separated by '/'.
+   * @param from the first entry to look in.
+   * @return the position of the entry, or -1 if there is none.
+   */
+  private int find(String name, int from) {
+    final Integer jar = mFirstJar.get(name);
+    final int end = jar == null ? mDirs.length : jar;
+    for (int i = from; i < mDirs.length; i++) {
+      if (mDirs[i] != null) {
+        if (new File(mDirs[i], name).isFile()) {
+          return i;
+        }
+      } else if (i >= end && mJars[i].getEntry(name) != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private URL getURL(int entry, String name) throws IOException {
+    if (mDirs[entry] != null) {
+      return new File(mDirs[entry], name).toURI().toURL();
+    }
+    return new URL("jar:" + new File(mJars[entry].getName()).toURI().toURL() + "!/" + name);
+  }
+
+  private InputStream open(int entry, String name) throws IOException {
+    if (mDirs[entry] != null) {
+      return new FileInputStream(new File(mDirs[entry], name));
+    }
+    return mJars[entry].getInputStream(mJars[entry].getEntry(name));
+  }
+
+  /**
+   * Gets a class file, reading it unless it is being kept from before.
+   * The bytes may be shared and must not be changed.
+   *
+   * @param className name of the class.
+   * @return the class file.
+   * @throws IOException if the class is not on the classpath or cannot be read.
+   */
+  public byte[] getBytes(String className) throws IOException {
+    if (!mCacheClasses) {
+      mMisses.incrementAndGet();
+      return readBytes(className);
+    }
+    final byte[] known = mClasses.get(className);
+    if (known != null) {
+      mHits.incrementAndGet();
+      return known;
+    }
+    mMisses.incrementAndGet();
+    final byte[] bytes = readBytes(className);
+    final byte[] existing = mClasses.putIfAbsent(className, bytes);
+    return existing != null ? existing : bytes;
+  }
+
+  /**
+   * Gets the number of class files found already read.
+   *
+   * @return the number of hits.
+   */
+  public int getHits() {
+    return mHits.get();
+  }
+
+  /**
+   * Gets the number of class files that had to be read, or were not
+   * found.
+   *
+   * @return the number of misses.
+   */
+  public int getMisses() {
+    return mMisses.get();
+  }
+
+  private byte[] readBytes(String className) throws IOException {
+    final String name = className.replace('.', '/') + ".class";
+    final int entry = find(name, 0);
+    if (entry == -1) {
+      throw new IOException("Couldn't find: " + name);
+    }
+    final InputStream in = open(entry, name);
+    try {
+      final long size = mDirs[entry] != null ? new File(mDirs[entry], name).length() : mJars[entry].getEntry(name).getSize();
+      byte[] bytes = new byte[size < 0 ? 4096 : (int) size];
+      int length = 0;
+      int n;
+      while ((n = in.read(bytes, length, bytes.length - length)) > 0) {
+        length += n;
+        if (length == bytes.length) {
+          final byte[] more = new byte[bytes.length * 2];
+          System.arraycopy(bytes, 0, more, 0, length);
+          bytes = more;
+        }
+      }
+      if (length < bytes.length) {
+        final byte[] exact = new byte[length];
+        System.arraycopy(bytes, 0, exact, 0, length);
+        bytes = exact;
+      }
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Lists the classes in a package, from every entry on the classpath.
+   *
+   * @param packageName name of the package, empty for the default package.
+   * @return the names of the classes.
+   */
+  public Set<String> getPackageClasses(String packageName) {
+    final Set<String> classes = new HashSet<String>();
+    final Set<String> inJars = mJarPackages.get(packageName);
+    if (inJars != null) {
+      classes.addAll(inJars);
+    }
+    final String prefix = packageName.length() == 0 ? "" : packageName + ".";
+    for (int i = 0; i < mDirs.length; i++) {
+      final String[] files = mDirs[i] == null ? null : new File(mDirs[i], packageName.replace('.', '/')).list();
+      for (int j = 0; files != null && j < files.length; j++) {
+        if (files[j].endsWith(".class")) {
+          classes.add(prefix + files[j].substring(0, files[j].length() - ".class".length()));
+        }
+      }
+    }
+    return classes;
+  }
+
+  /**
+   * Finds a resource.
+   *
+   * @param name name of the resource, separated by '/'.
+   * @return the resource, or null if it is not on the classpath.
+   */
+  public URL getResource(String name) {
+    final int entry = find(name, 0);
+    try {
+      return entry == -1 ? null : getURL(entry, name);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Finds every resource with a name, in classpath order.
+   *
+   * @param name name of the resource, separated by '/'.
+   * @return the resources.
+   */
+  public Enumeration<URL> getResources(String name) {
+    final List<URL> resources = new ArrayList<URL>();
+    for (int entry = find(name, 0); entry != -1; entry = find(name, entry + 1)) {
+      try {
+        resources.add(getURL(entry, name));
+      } catch (IOException e) {
+        ; // Leave it out
+      }
+    }
+    return Collections.enumeration(resources);
+  }
+
+  /**
+   * Opens a resource.
+   *
+   * @param name name of the resource, separated by '/'.
+   * @return the resource, or null if it is not on the classpath.
+   */
+  public InputStream getResourceAsStream(String name) {
+    final int entry = find(name, 0);
+    try {
+      return entry == -1 ? null : open(entry, name);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A BCEL classpath that reads class files and resources through the
+   * current index of a classpath. Unlike a plain <code>ClassPath</code>
+   * it opens no jars of its own, and it keeps working once the index
+   * has been released. Only reading is supported, it cannot find the
+   * files holding classes.
+   */
+  private static final class IndexedClassPath extends ClassPath {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String mPath;
+
+    IndexedClassPath(String classpath) {
+      super("");
+      mPath = classpath;
+    }
+
+    private ClassPathIndex index() {
+      return getInstance(mPath);
+    }
+
+    public InputStream getInputStream(String name) throws IOException {
+      return new ByteArrayInputStream(getBytes(name));
+    }
+
+    public InputStream getInputStream(String name, String suffix) throws IOException {
+      return new ByteArrayInputStream(getBytes(name, suffix));
+    }
+
+    public byte[] getBytes(String name) throws IOException {
+      return index().getBytes(name.replace('/', '.'));
+    }
+
+    public byte[] getBytes(String name, String suffix) throws IOException {
+      if (!".class".equals(suffix)) {
+        throw new IOException("Couldn't find: " + name + suffix);
+      }
+      return getBytes(name);
+    }
+
+    public URL getResource(String name) {
+      return index().getResource(name);
+    }
+
+    public InputStream getResourceAsStream(String name) {
+      return index().getResourceAsStream(name);
+    }
+
+    public Enumeration<URL> getResources(String name) {
+      return index().getResources(name);
+    }
+
+    public String toString() {
+      return mPath;
+    }
+
+    public int hashCode() {
+      return mPath.hashCode();
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof IndexedClassPath && ((IndexedClassPath) o).mPath.equals(mPath);
+    }
+  }
+}
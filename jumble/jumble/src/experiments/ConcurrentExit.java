@@ -0,0 +1,27 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Negating the
+ * conditional makes the JVM running the tests exit while a mutant of
+ * the slow addition may still be running.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentExit {
+  public int slowAdd(int a, int b) {
+    try {
+      Thread.sleep(1000);
+    } catch (InterruptedException e) {
+      ; // Add anyway
+    }
+    return a + b;
+  }
+
+  public int positive(int x) {
+    if (x > 0) {
+      return x;
+    }
+    System.exit(3);
+    return 0;
+  }
+}
@@ -0,0 +1,26 @@
+package experiments;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the ConcurrentExit class for com.reeltwo.jumble testing.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentExitTest extends TestCase {
+
+  public void testPositive() {
+    assertEquals(2, new ConcurrentExit().positive(2));
+  }
+
+  public void testSlowAdd() {
+    assertEquals(3, new ConcurrentExit().slowAdd(1, 2));
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(ConcurrentExitTest.class);
+    return suite;
+  }
+}
@@ -0,0 +1,52 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Negating the
+ * first conditional makes <code>both</code> take its locks in the
+ * opposite order to another thread, deadlocking the two.
+ * 
+ * @version $Revision$
+ */
+public class Deadlock {
+  private final Object mFirst = new Object();
+
+  private final Object mSecond = new Object();
+
+  /**
+   * Takes both locks while another thread does the same, then returns x.
+   * 
+   * @param x
+   *          the argument, which must be positive
+   * @return x
+   */
+  public int both(int x) throws InterruptedException {
+    final boolean forward = x > 0;
+    final Thread other = new Thread() {
+        public void run() {
+          synchronized (mFirst) {
+            pause();
+            synchronized (mSecond) {
+              mSecond.notifyAll();
+            }
+          }
+        }
+      };
+    other.start();
+    synchronized (forward ? mFirst : mSecond) {
+      pause();
+      synchronized (forward ? mSecond : mFirst) {
+        mFirst.notifyAll();
+      }
+    }
+    other.join();
+    return x;
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(200);
+    } catch (InterruptedException e) {
+      ; // Carry on
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package experiments;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the Deadlock class for com.reeltwo.jumble testing.
+ * 
+ * @version $Revision$
+ */
+public class DeadlockTest extends TestCase {
+    
+  public void testBoth() throws Exception {
+    assertEquals(2, new Deadlock().both(2));
+  }
+    
+  public static Test suite() {
+    TestSuite suite = new TestSuite(DeadlockTest.class);
+    return suite;
+  }
+}
@@ -0,0 +1,15 @@
+package experiments;
+
+/**
+ * Class to demonstrate mutation points giving identical mutants, each
+ * increment by zero is left as it is.
+ *
+ * @version $Revision$
+ */
+public class DuplicateMutants {
+  public int add(int x) {
+    x += 0;
+    x += 0;
+    return x;
+  }
+}
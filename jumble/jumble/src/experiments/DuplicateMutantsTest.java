@@ -0,0 +1,14 @@
+package experiments;
+
+import junit.framework.TestCase;
+
+/**
+ * DuplicateMutants test class.
+ *
+ * @version $Revision$
+ */
+public class DuplicateMutantsTest extends TestCase {
+  public void testAdd() {
+    assertEquals(3, new DuplicateMutants().add(3));
+  }
+}
@@ -0,0 +1,35 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Negating the
+ * conditional makes <code>positive</code> loop for ever, ignoring
+ * interrupts.
+ * 
+ * @version $Revision$
+ */
+public class InfiniteLoop {
+  /**
+   * Returns x, waiting for it to be positive.
+   * 
+   * @param x
+   *          the argument
+   * @return x
+   */
+  public int positive(int x) {
+    while (x <= 0) {
+      Thread.yield();
+    }
+    return x;
+  }
+
+  /**
+   * Doubles x.
+   * 
+   * @param x
+   *          the argument
+   * @return twice x
+   */
+  public int twice(int x) {
+    return x + x;
+  }
+}
@@ -0,0 +1,26 @@
+package experiments;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the InfiniteLoop class for com.reeltwo.jumble testing.
+ * 
+ * @version $Revision$
+ */
+public class InfiniteLoopTest extends TestCase {
+    
+  public void testPositive() {
+    assertEquals(2, new InfiniteLoop().positive(2));
+  }
+    
+  public void testTwice() {
+    assertEquals(6, new InfiniteLoop().twice(3));
+  }
+    
+  public static Test suite() {
+    TestSuite suite = new TestSuite(InfiniteLoopTest.class);
+    return suite;
+  }
+}
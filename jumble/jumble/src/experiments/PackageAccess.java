@@ -0,0 +1,13 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Uses a package
+ * private method of a class that never refers back to it.
+ *
+ * @version $Revision$
+ */
+public class PackageAccess {
+  public int scaled(int x) {
+    return PackageHelper.scale(x) + 1;
+  }
+}
@@ -0,0 +1,13 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Only reachable
+ * by package access from <code>PackageAccess</code>.
+ *
+ * @version $Revision$
+ */
+public class PackageHelper {
+  static int scale(int x) {
+    return 2 * x;
+  }
+}
@@ -0,0 +1,24 @@
+package experiments;
+
+/**
+ * A class used for the testing of com.reeltwo.jumble. Negating the
+ * conditional makes the JVM running the tests exit.
+ * 
+ * @version $Revision$
+ */
+public class SystemExit {
+  /**
+   * Returns x, which must be positive.
+   * 
+   * @param x
+   *          the argument
+   * @return x
+   */
+  public int positive(int x) {
+    if (x > 0) {
+      return x;
+    }
+    System.exit(3);
+    return 0;
+  }
+}
@@ -0,0 +1,22 @@
+package experiments;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the SystemExit class for com.reeltwo.jumble testing.
+ * 
+ * @version $Revision$
+ */
+public class SystemExitTest extends TestCase {
+    
+  public void testPositive() {
+    assertEquals(2, new SystemExit().positive(2));
+  }
+    
+  public static Test suite() {
+    TestSuite suite = new TestSuite(SystemExitTest.class);
+    return suite;
+  }
+}
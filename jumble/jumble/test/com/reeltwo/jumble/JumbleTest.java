@@ -154,6 +154,52 @@ public class JumbleTest extends TestCase {
 
   }
 
+  public void testWorkers() throws Exception {
+    // Results must come out in mutation point order regardless of which
+    // worker JVM ran them
+    String expected = getExpectedOutput("experiments.JumblerExperiment");
+    JavaRunner runner = new JavaRunner("com.reeltwo.jumble.Jumble", new String[] {"experiments.JumblerExperiment", "-n", "3"});
+    String got = readAll(runner.start().getInputStream());
+
+    StringTokenizer tokens1 = new StringTokenizer(expected, "\n");
+    StringTokenizer tokens2 = new StringTokenizer(got, "\n");
+
+    assertEquals(tokens1.countTokens(), tokens2.countTokens());
+
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    // Skip next line, as it contains timing information
+    tokens1.nextToken();
+    tokens2.nextToken();
+
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+  }
+
+  public void testThreads() throws Exception {
+    // Mutants finish out of order when run concurrently in the one JVM,
+    // and the JVM is restarted part way through
+    String expected = getExpectedOutput("experiments.JumblerExperiment");
+    JavaRunner runner = new JavaRunner("com.reeltwo.jumble.Jumble", new String[] {"experiments.JumblerExperiment", "-t", "3", "-m", "4"});
+    String got = readAll(runner.start().getInputStream());
+
+    StringTokenizer tokens1 = new StringTokenizer(expected, "\n");
+    StringTokenizer tokens2 = new StringTokenizer(got, "\n");
+
+    assertEquals(tokens1.countTokens(), tokens2.countTokens());
+
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    // Skip next line, as it contains timing information
+    tokens1.nextToken();
+    tokens2.nextToken();
+
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+    assertEquals(tokens1.nextToken(), tokens2.nextToken());
+  }
+
   public static Test suite() {
     return new TestSuite(JumbleTest.class);
   }
@@ -13,9 +13,11 @@ import junit.textui.TestRunner;
 public class AllTests extends TestSuite {
   public static Test suite() {
     TestSuite suite = new TestSuite();
+    suite.addTest(ControlChannelTest.suite());
     suite.addTest(FastJumblerTest.suite());
     suite.addTest(FastRunnerTest.suite());
     suite.addTest(FlatTestSuiteTest.suite());
+    suite.addTest(MutantStoreTest.suite());
     suite.addTest(JumbleTestSuiteTest.suite());
     suite.addTest(TestOrderTest.suite());
     suite.addTest(TimingTestSuiteTest.suite());
@@ -0,0 +1,68 @@
+package com.reeltwo.jumble.fast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class ControlChannelTest extends TestCase {
+
+  public void testFrames() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ControlChannel channel = new ControlChannel(bos);
+    channel.send(ControlChannel.START, -1, 0, null);
+    channel.send(ControlChannel.INIT, 3, 0, "experiments.JumblerExperiment:21: negated conditional");
+    channel.send(ControlChannel.PASS, 3, 42, "experiments.JumblerExperiment:add(II)I:0:testAdd");
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    ControlChannel.Message m = ControlChannel.read(in);
+    assertEquals(ControlChannel.START, m.getType());
+    assertEquals(-1, m.getPoint());
+    assertEquals("", m.getText());
+    m = ControlChannel.read(in);
+    assertEquals(ControlChannel.INIT, m.getType());
+    assertEquals(3, m.getPoint());
+    assertEquals("experiments.JumblerExperiment:21: negated conditional", m.getText());
+    m = ControlChannel.read(in);
+    assertEquals(ControlChannel.PASS, m.getType());
+    assertEquals(3, m.getPoint());
+    assertEquals(42, m.getMillis());
+    assertEquals("experiments.JumblerExperiment:add(II)I:0:testAdd", m.getText());
+    assertNull(ControlChannel.read(in));
+  }
+
+  public void testLoopback() throws Exception {
+    ServerSocket server = ControlChannel.listen();
+    ControlChannel.Reader reader = new ControlChannel.Reader(server);
+    reader.start();
+    ControlChannel channel = ControlChannel.connect(server.getLocalPort());
+    channel.send(ControlChannel.FAIL, 7, 5, "\u00e9t\u00e9");
+    ControlChannel.Message m;
+    while ((m = reader.getNext()) == null) {
+      Thread.sleep(10);
+    }
+    assertEquals(ControlChannel.FAIL, m.getType());
+    assertEquals(7, m.getPoint());
+    assertEquals("\u00e9t\u00e9", m.getText());
+    reader.close();
+    reader.join();
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(ControlChannelTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -8,7 +8,10 @@ import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.reeltwo.jumble.util.JavaRunner;
 
@@ -78,6 +81,115 @@ public class FastJumblerTest extends TestCase {
     assertEquals(FastJumbler.SIGNAL_MAX_REACHED, line);
   }
 
+  public void testThreads() throws Exception {
+    JavaRunner runner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler", new String[] {"experiments.JumblerExperiment", "-c",
+        System.getProperty("java.class.path"), "-s", "0", "-t", "2", "-r", "-k", "-i", mFileName, });
+    Process p = runner.start();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+
+    assertEquals("START", reader.readLine());
+    // Every line about a mutant is tagged with its mutation point
+    final Set<Integer> finished = new HashSet<Integer>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      assertTrue("Unexpected output: " + line, line.startsWith(FastJumbler.POINT_PREFIX));
+      final int space = line.indexOf(' ');
+      final int point = Integer.parseInt(line.substring(1, space));
+      line = line.substring(space + 1);
+      if (line.startsWith(FastJumbler.PASS_PREFIX) || line.startsWith(FastJumbler.FAIL_PREFIX)) {
+        assertTrue("Repeated result for " + point, finished.add(point));
+      } else {
+        assertTrue("Unexpected output: " + line, line.startsWith(FastJumbler.INIT_PREFIX));
+      }
+    }
+    assertTrue(finished.size() > 1);
+    for (int i = 0; i < finished.size(); i++) {
+      assertTrue("No result for " + i, finished.contains(i));
+    }
+    assertEquals(0, p.waitFor());
+  }
+
+  public void testSession() throws Exception {
+    JavaRunner runner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler", new String[] {"--session", "-c",
+        System.getProperty("java.class.path"), "-r", "-k", "-i", });
+    Process p = runner.start();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    OutputStream jobs = p.getOutputStream();
+
+    jobs.write((FastJumbler.createJob("experiments.JumblerExperiment", mFileName, null, 0, 1, 0) + "\n").getBytes());
+    jobs.flush();
+    assertEquals("START", reader.readLine());
+    assertEquals("INIT: experiments.JumblerExperiment:21: negated conditional", reader.readLine());
+    assertEquals("PASS: experiments.JumblerExperiment:add(II)I:0:testAdd", reader.readLine());
+
+    // The same JVM carries on with the next job
+    jobs.write((FastJumbler.createJob("experiments.JumblerExperiment", mFileName, null, 1, -1, 0) + "\n").getBytes());
+    jobs.flush();
+    assertEquals("START", reader.readLine());
+    String line = reader.readLine();
+    assertTrue("Unexpected output: " + line, line.startsWith(FastJumbler.INIT_PREFIX));
+
+    jobs.close();
+    assertEquals(0, p.waitFor());
+  }
+
+  private String writeOrder(String testClassName) throws Exception {
+    final String fileName = "tmpTestOrder" + System.currentTimeMillis() + ".dat";
+    TimingTestSuite suite = new TimingTestSuite(getClass().getClassLoader(), new String[] {testClassName });
+    suite.run(new TestResult());
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fileName));
+    out.writeObject(suite.getOrder(true));
+    out.close();
+    return fileName;
+  }
+
+  public void testWatchdog() throws Exception {
+    final String fileName = writeOrder("experiments.InfiniteLoopTest");
+    try {
+      JavaRunner runner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler", new String[] {"experiments.InfiniteLoop", "-c",
+          System.getProperty("java.class.path"), "-s", "0", "--timeout", "500", fileName, });
+      Process p = runner.start();
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+      assertEquals("START", reader.readLine());
+      assertEquals("INIT: experiments.InfiniteLoop:19: negated conditional", reader.readLine());
+      assertEquals("TIMEOUT: Timed out after 500ms", reader.readLine());
+      // The same JVM carries on with the next mutant
+      assertEquals("INIT: experiments.InfiniteLoop:33: + -> -", reader.readLine());
+      assertEquals("PASS: experiments.InfiniteLoop:twice(I)I:0:testTwice", reader.readLine());
+      assertNull(reader.readLine());
+      assertEquals(0, p.waitFor());
+    } finally {
+      assertTrue(new File(fileName).delete());
+    }
+  }
+
+  public void testDeadlock() throws Exception {
+    final String fileName = writeOrder("experiments.DeadlockTest");
+    try {
+      JavaRunner runner = new JavaRunner("com.reeltwo.jumble.fast.FastJumbler", new String[] {"experiments.Deadlock", "-c",
+          System.getProperty("java.class.path"), "-s", "0", "-l", "1", "--timeout", "60000", fileName, });
+      final long start = System.currentTimeMillis();
+      Process p = runner.start();
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+      assertEquals("START", reader.readLine());
+      assertEquals("INIT: experiments.Deadlock:23: negated conditional", reader.readLine());
+      final String line = reader.readLine();
+      assertTrue("Unexpected output: " + line, line.startsWith(FastJumbler.TIMEOUT_PREFIX + "Deadlocked threads: Jumble test runner"));
+      // Found long before the timeout
+      assertTrue(System.currentTimeMillis() - start < 30000);
+      // Not left to carry on next to the deadlocked threads
+      assertEquals(FastJumbler.SIGNAL_MAX_REACHED + "  Abandoned deadlocked test threads", reader.readLine());
+      assertNull(reader.readLine());
+      p.destroy();
+    } finally {
+      assertTrue(new File(fileName).delete());
+    }
+  }
+
   public final void testSaveCache() throws Exception {
     File f = new File(System.getProperty("user.home"), ".com.reeltwo.jumble-cache.dat");
     assertTrue(!f.exists() || f.delete());
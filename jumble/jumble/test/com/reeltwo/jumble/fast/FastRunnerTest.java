@@ -1,5 +1,9 @@
 package com.reeltwo.jumble.fast;
 
+import com.reeltwo.jumble.ui.JumbleListener;
+import com.reeltwo.jumble.ui.NullListener;
+import java.io.File;
+import java.util.ArrayList;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -16,6 +20,276 @@ public class FastRunnerTest extends TestCase {
     assertEquals(12000, FastRunner.computeTimeout(1000));
   }
 
+  public void testChildExit() throws Exception {
+    final ArrayList<MutationResult> results = new ArrayList<MutationResult>();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.add(res);
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.SystemExitTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setInlineConstants(false);
+    runner.runJumble("experiments.SystemExit", tests, listener);
+    assertEquals(1, results.size());
+    MutationResult res = results.get(0);
+    assertTrue(res.isTimedOut());
+    assertEquals("Child JVM exited with code 3", res.getTestDescription());
+  }
+
+  public void testChildExitConcurrent() throws Exception {
+    final ArrayList<MutationResult> results = new ArrayList<MutationResult>();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.add(res);
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.ConcurrentExitTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setInlineConstants(false);
+    runner.setCPool(false);
+    runner.setThreadCount(2);
+    runner.runJumble("experiments.ConcurrentExit", tests, listener);
+    assertEquals(2, results.size());
+    // The slow mutant was running when the other made the child exit
+    assertEquals(0, results.get(0).getMutationPoint());
+    assertTrue(results.get(0).isPassed());
+    assertEquals(1, results.get(1).getMutationPoint());
+    assertTrue(results.get(1).isTimedOut());
+    assertEquals("Child JVM exited with code 3", results.get(1).getTestDescription());
+  }
+
+  private String runInfiniteLoop(int maxAbandoned) throws Exception {
+    final StringBuffer results = new StringBuffer();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.append(res.getMutationPoint()).append(res.isFailed() ? " F" : res.isPassed() ? " P" : " T").append('\n');
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.InfiniteLoopTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setInlineConstants(false);
+    runner.setMaxAbandoned(maxAbandoned);
+    runner.runJumble("experiments.InfiniteLoop", tests, listener);
+    return results.toString();
+  }
+
+  public void testWatchdog() throws Exception {
+    assertEquals("0 T\n1 P\n", runInfiniteLoop(3));
+    // Replaced straight after abandoning the mutant
+    assertEquals("0 T\n1 P\n", runInfiniteLoop(1));
+    // Killed by the parent
+    assertEquals("0 T\n1 P\n", runInfiniteLoop(0));
+  }
+
+  public void testLoopBudget() throws Exception {
+    final ArrayList<MutationResult> results = new ArrayList<MutationResult>();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.add(res);
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.InfiniteLoopTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setInlineConstants(false);
+    runner.setMaxAbandoned(0);
+    runner.setLoopBudget(10);
+    runner.runJumble("experiments.InfiniteLoop", tests, listener);
+    assertEquals(2, results.size());
+    MutationResult res = results.get(0);
+    assertTrue(res.isTimedOut());
+    assertEquals("testPositive exceeded its budget of 10000 loop iterations", res.getTestDescription());
+    assertTrue(results.get(1).isPassed());
+  }
+
+  private String runJumblerExperiment(boolean schemata) throws Exception {
+    return runJumblerExperiment(schemata, false);
+  }
+
+  private String runJumblerExperiment(boolean schemata, boolean pregenerate) throws Exception {
+    return runJumblerExperiment(schemata, pregenerate, null);
+  }
+
+  private String runJumblerExperiment(boolean schemata, boolean pregenerate, File mutantCache) throws Exception {
+    FastRunner runner = new FastRunner();
+    runner.setSchemata(schemata);
+    runner.setPregenerate(pregenerate);
+    runner.setMutantCacheDir(mutantCache);
+    return runJumblerExperiment(runner);
+  }
+
+  private String runJumblerExperiment(FastRunner runner) throws Exception {
+    final StringBuffer results = new StringBuffer();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.append(res.getMutationPoint()).append(res.isFailed() ? " F " : res.isPassed() ? " P " : " T ")
+            .append(res.getDescription()).append('\n');
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.JumblerExperimentTest");
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.runJumble("experiments.JumblerExperiment", tests, listener);
+    return results.toString();
+  }
+
+  public void testSchemata() throws Exception {
+    final String expected = runJumblerExperiment(false);
+    assertTrue(expected.length() > 0);
+    assertEquals(expected, runJumblerExperiment(true));
+  }
+
+  public void testPregenerate() throws Exception {
+    final String expected = runJumblerExperiment(false);
+    assertEquals(expected, runJumblerExperiment(false, true));
+  }
+
+  public void testShareClasses() throws Exception {
+    final String expected = runJumblerExperiment(false);
+    FastRunner runner = new FastRunner();
+    runner.setShareClasses(true);
+    assertEquals(expected, runJumblerExperiment(runner));
+  }
+
+  public void testMutantCache() throws Exception {
+    final File dir = File.createTempFile("mutants", "");
+    dir.delete();
+    try {
+      final String expected = runJumblerExperiment(false);
+      assertEquals(expected, runJumblerExperiment(false, false, dir));
+      assertTrue(dir.list().length > 0);
+      assertEquals(expected, runJumblerExperiment(false, true, dir));
+    } finally {
+      final File[] files = dir.listFiles();
+      for (int i = 0; files != null && i < files.length; i++) {
+        files[i].delete();
+      }
+      dir.delete();
+    }
+  }
+
+  public void testDuplicates() throws Exception {
+    final ArrayList<MutationResult> results = new ArrayList<MutationResult>();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.add(res);
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.DuplicateMutantsTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.runJumble("experiments.DuplicateMutants", tests, listener);
+    assertEquals(2, results.size());
+    assertFalse(results.get(0).isDuplicate());
+    assertTrue(results.get(0).isFailed());
+    assertTrue(results.get(1).isDuplicate());
+    assertEquals(0, results.get(1).getDuplicateOf());
+    assertTrue(results.get(1).isFailed());
+  }
+
+  public void testSkipEquivalent() throws Exception {
+    final ArrayList<MutationResult> results = new ArrayList<MutationResult>();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.add(res);
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.DuplicateMutantsTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setSkipEquivalent(true);
+    runner.runJumble("experiments.DuplicateMutants", tests, listener);
+    assertEquals(2, results.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(i, results.get(i).getMutationPoint());
+      assertTrue(results.get(i).isEquivalent());
+    }
+  }
+
+  private String runWithMax1(boolean standby) throws Exception {
+    final StringBuffer results = new StringBuffer();
+    final JumbleListener listener = new NullListener() {
+        public void finishedMutation(MutationResult res) {
+          results.append(res.getMutationPoint()).append(res.isFailed() ? " F" : res.isPassed() ? " P" : " T").append('\n');
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.JumblerExperimentTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    runner.setReturnVals(false);
+    runner.setInlineConstants(false);
+    runner.setIncrements(false);
+    runner.setMaxExternalMutations(1);
+    runner.setUseStandby(standby);
+    runner.runJumble("experiments.JumblerExperiment", tests, listener);
+    return results.toString();
+  }
+
+  public void testStandby() throws Exception {
+    assertFalse(new FastRunner().isUseStandby());
+    final String expected = runWithMax1(false);
+    assertTrue(expected.length() > 0);
+    assertEquals(expected, runWithMax1(true));
+  }
+
+  private static int countPointsFiles() {
+    int count = 0;
+    final String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].startsWith("testSuite") && names[i].endsWith(".points")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public void testPointsFileDeleted() throws Exception {
+    final int before = countPointsFiles();
+    final JumbleListener listener = new NullListener() {
+        public void performedInitialTest(JumbleResult result, int mutationCount) {
+          throw new IllegalStateException("stop");
+        }
+      };
+    ArrayList<String> tests = new ArrayList<String>();
+    tests.add("experiments.JumblerExperimentTest");
+    FastRunner runner = new FastRunner();
+    runner.setLoadCache(false);
+    runner.setSaveCache(false);
+    try {
+      runner.runJumble("experiments.JumblerExperiment", tests, listener);
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("stop", e.getMessage());
+    }
+    assertEquals(before, countPointsFiles());
+  }
+
   public static Test suite() {
     TestSuite suite = new TestSuite(FastRunnerTest.class);
     return suite;
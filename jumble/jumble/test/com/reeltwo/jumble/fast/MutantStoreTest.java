@@ -0,0 +1,79 @@
+package com.reeltwo.jumble.fast;
+
+import com.reeltwo.jumble.mutation.MutationPlan;
+import com.reeltwo.jumble.mutation.Mutater;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.bcel.util.ClassPath;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class MutantStoreTest extends TestCase {
+
+  private static MutationPlan createPlan(String className) throws Exception {
+    Mutater m = new Mutater(-1);
+    m.setMutateInlineConstants(true);
+    m.setMutateReturnValues(true);
+    return m.createPlan(new ClassPath(System.getProperty("java.class.path")).getBytes(className));
+  }
+
+  public void testTakeInOrder() throws Exception {
+    MutationPlan plan = createPlan("experiments.JumblerExperiment");
+    MutantStore store = new MutantStore(plan, -1, plan.size(), 3, null, null);
+    try {
+      for (int i = -1; i < plan.size(); i++) {
+        MutationPlan.Mutant mutant = store.take(i);
+        assertEquals(i, mutant.getPoint());
+        MutationPlan.Mutant expected = plan.createMutant(i);
+        assertEquals(expected.getModification(), mutant.getModification());
+        assertTrue("point " + i, Arrays.equals(expected.getBytes(), mutant.getBytes()));
+      }
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testNotMadeAhead() throws Exception {
+    MutationPlan plan = createPlan("experiments.JumblerExperiment");
+    MutantStore store = new MutantStore(plan, 2, 4, 1, null, null);
+    try {
+      // Outside the range, made on demand
+      assertEquals(0, store.take(0).getPoint());
+      assertEquals(2, store.take(2).getPoint());
+      assertEquals(3, store.take(3).getPoint());
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testSkipped() throws Exception {
+    MutationPlan plan = createPlan("experiments.JumblerExperiment");
+    boolean[] skipped = new boolean[plan.size()];
+    skipped[1] = true;
+    MutantStore store = new MutantStore(plan, 0, 3, 2, null, skipped);
+    try {
+      assertEquals(2, store.countMade());
+      assertEquals(0, store.take(0).getPoint());
+      assertEquals(2, store.take(2).getPoint());
+      assertEquals(0, store.countMade());
+    } finally {
+      store.close();
+    }
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(MutantStoreTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
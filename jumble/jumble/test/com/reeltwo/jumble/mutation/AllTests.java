@@ -16,6 +16,10 @@ public class AllTests extends TestSuite {
 
     suite.addTest(MutaterTest.suite());
     suite.addTest(MutatingClassLoaderTest.suite());
+    suite.addTest(MutationPlanTest.suite());
+    suite.addTest(MutantCacheTest.suite());
+    suite.addTest(EquivalentMutantsTest.suite());
+    suite.addTest(SharedClassLoaderTest.suite());
 
     return suite;
   }
@@ -0,0 +1,82 @@
+package com.reeltwo.jumble.mutation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class EquivalentMutantsTest extends TestCase {
+
+  /** Finds which points are equivalent, by method name and point within the method */
+  private static Map<String, Boolean> findEquivalent(String className) throws Exception {
+    Mutater m = new Mutater(-1);
+    m.setMutateIncrements(true);
+    m.setMutateNegs(true);
+    m.setMutateInlineConstants(true);
+    m.setMutateReturnValues(true);
+    Map<String, Boolean> equivalent = new HashMap<String, Boolean>();
+    MutationPoint[] points = m.getMutationPoints(className);
+    for (int i = 0; i < points.length; i++) {
+      String method = points[i].getMethod();
+      equivalent.put(method.substring(0, method.indexOf('(')) + ":" + points[i].getKind(), points[i].isEquivalent());
+    }
+    return equivalent;
+  }
+
+  public void testArithmetic() throws Exception {
+    Map<String, Boolean> eq = findEquivalent("jumble.X6");
+    assertEquals(Boolean.TRUE, eq.get("shift:ishl"));
+    assertEquals(Boolean.TRUE, eq.get("add:ladd"));
+    assertEquals(Boolean.TRUE, eq.get("mul:imul"));
+    // a % 1 is always 0 but a * 1 is not
+    assertEquals(Boolean.FALSE, eq.get("rem:irem"));
+    // 0 % 5 and 0 * 5 are both 0
+    assertEquals(Boolean.TRUE, eq.get("zero:irem"));
+    assertEquals(Boolean.TRUE, eq.get("negate:ineg"));
+    assertEquals(Boolean.TRUE, eq.get("increment:iinc"));
+    // Not known once round the loop
+    assertEquals(Boolean.FALSE, eq.get("loop:ishl"));
+    assertEquals(Boolean.FALSE, eq.get("loop:iinc"));
+  }
+
+  public void testStackShuffles() throws Exception {
+    Map<String, Boolean> eq = findEquivalent("jumble.X6");
+    // The value stored is kept under the object by dup_x1
+    assertEquals(Boolean.FALSE, eq.get("assign:imul"));
+    assertEquals(Boolean.FALSE, eq.get("assign:iadd"));
+    // Array loads take the array and index off the stack
+    assertEquals(Boolean.TRUE, eq.get("element:iadd"));
+    assertEquals(Boolean.FALSE, eq.get("length:iadd"));
+    assertEquals(Boolean.FALSE, eq.get("length:imul"));
+  }
+
+  public void testConditionals() throws Exception {
+    Map<String, Boolean> eq = findEquivalent("jumble.X6");
+    assertEquals(Boolean.TRUE, eq.get("same:ifle"));
+    assertEquals(Boolean.FALSE, eq.get("different:ifle"));
+    assertEquals(Boolean.FALSE, eq.get("loop:if_icmpge"));
+  }
+
+  public void testNoneInOtherFixtures() throws Exception {
+    String[] classes = {"jumble.X1", "jumble.X2", "jumble.X3", "jumble.X4", "experiments.JumblerExperiment"};
+    for (int i = 0; i < classes.length; i++) {
+      assertFalse(classes[i], findEquivalent(classes[i]).containsValue(Boolean.TRUE));
+    }
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(EquivalentMutantsTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -0,0 +1,154 @@
+package com.reeltwo.jumble.mutation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.bcel.util.ClassPath;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class MutantCacheTest extends TestCase {
+
+  private File mDir;
+
+  public void setUp() throws IOException {
+    mDir = File.createTempFile("mutants", "");
+    mDir.delete();
+  }
+
+  public void tearDown() {
+    final File[] files = mDir.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        files[i].delete();
+      }
+    }
+    mDir.delete();
+  }
+
+  private static byte[] filled(int size, int value) {
+    byte[] b = new byte[size];
+    Arrays.fill(b, (byte) value);
+    return b;
+  }
+
+  public void testRoundTrip() {
+    String key = MutantCache.digest(new byte[] {1, 2, 3}, "settings");
+    assertEquals(32, key.length());
+    assertFalse(key.equals(MutantCache.digest(new byte[] {1, 2, 3}, "other")));
+    MutantCache cache = new MutantCache(mDir, 1024 * 1024);
+    assertNull(cache.get(key, 0));
+    cache.put(key, new MutationPlan.Mutant(0, filled(10, 7), "X:1: + -> -"));
+    cache.put(key, new MutationPlan.Mutant(-1, filled(5, 3), null));
+    // As seen from another JVM
+    MutantCache other = new MutantCache(mDir, 1024 * 1024);
+    MutationPlan.Mutant m = other.get(key, 0);
+    assertEquals(0, m.getPoint());
+    assertTrue(Arrays.equals(filled(10, 7), m.getBytes()));
+    assertEquals("X:1: + -> -", m.getModification());
+    m = other.get(key, -1);
+    assertTrue(Arrays.equals(filled(5, 3), m.getBytes()));
+    assertNull(m.getModification());
+    assertNull(other.get(key, 1));
+    // Added after the first look
+    cache.put(key, new MutationPlan.Mutant(1, filled(1, 1), "Y"));
+    assertEquals("Y", other.get(key, 1).getModification());
+  }
+
+  public void testEviction() {
+    String key = MutantCache.digest(new byte[0], "");
+    MutantCache cache = new MutantCache(mDir, 8000);
+    for (int i = 0; i < 40; i++) {
+      cache.put(key, new MutationPlan.Mutant(i, filled(1000, i), "m" + i));
+    }
+    long total = 0;
+    File[] files = mDir.listFiles();
+    for (int i = 0; i < files.length; i++) {
+      if (files[i].getName().endsWith(".dat")) {
+        total += files[i].length();
+      }
+    }
+    assertTrue(total <= 8000 + 2100);
+    assertNull(cache.get(key, 0));
+    assertEquals("m39", cache.get(key, 39).getModification());
+    assertNull(new MutantCache(mDir, 8000).get(key, 0));
+  }
+
+  public void testRefreshes() {
+    String key = MutantCache.digest(new byte[] {4}, "");
+    MutantCache cache = new MutantCache(mDir, 1024 * 1024);
+    for (int i = 0; i < 10; i++) {
+      assertNull(cache.get(key, i));
+      cache.put(key, new MutationPlan.Mutant(i, filled(10, i), "m" + i));
+    }
+    // Only the first segment appearing is a reason to read again
+    assertEquals(1, cache.countRefreshes());
+    assertNull(cache.get(key, 10));
+    assertEquals(1, cache.countRefreshes());
+    // Appended by this cache
+    assertEquals("m0", cache.get(key, 0).getModification());
+    assertEquals("m9", cache.get(key, 9).getModification());
+    assertEquals(2, cache.countRefreshes());
+    // Appended by another
+    new MutantCache(mDir, 1024 * 1024).put(key, new MutationPlan.Mutant(10, filled(1, 1), "m10"));
+    assertEquals("m10", cache.get(key, 10).getModification());
+    assertEquals(3, cache.countRefreshes());
+  }
+
+  public void testInstance() {
+    MutantCache cache = MutantCache.getInstance(mDir, 1024);
+    assertSame(cache, MutantCache.getInstance(new File(mDir.getPath()), 1024));
+    try {
+      MutantCache.getInstance(mDir, 2048);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("Mutant cache "));
+    }
+  }
+
+  public void testPlan() throws Exception {
+    Mutater mutater = new Mutater(-1);
+    mutater.setMutateInlineConstants(true);
+    MutationPlan plan = mutater.createPlan(new ClassPath(System.getProperty("java.class.path")).getBytes("experiments.JumblerExperiment"));
+    MutantCache cache = new MutantCache(mDir, 1024 * 1024);
+    for (int i = -1; i < plan.size(); i++) {
+      MutationPlan.Mutant made = plan.createMutant(i, cache);
+      MutationPlan.Mutant cached = new MutantCache(mDir, 1024 * 1024).get(MutantCache.digest(
+        new ClassPath(System.getProperty("java.class.path")).getBytes("experiments.JumblerExperiment"), mutater.describeSettings()), i);
+      assertTrue(Arrays.equals(made.getBytes(), cached.getBytes()));
+      assertEquals(made.getModification(), cached.getModification());
+      assertTrue(Arrays.equals(made.getBytes(), plan.createMutant(i, cache).getBytes()));
+    }
+  }
+
+  public void testLoader() throws Exception {
+    MutantCache cache = new MutantCache(mDir, 1024 * 1024);
+    String cp = System.getProperty("java.class.path");
+    MutatingClassLoader first = new MutatingClassLoader("experiments.JumblerExperiment", new Mutater(2), cp);
+    first.setCache(cache);
+    Object exp = first.loadClass("experiments.JumblerExperiment").newInstance();
+    MutatingClassLoader second = new MutatingClassLoader("experiments.JumblerExperiment", new Mutater(2), cp);
+    second.setCache(new MutantCache(mDir, 1024 * 1024));
+    Object cached = second.loadClass("experiments.JumblerExperiment").newInstance();
+    assertEquals(first.getModification(), second.getModification());
+    assertNotNull(second.getModification());
+    assertEquals(exp.getClass().getName(), cached.getClass().getName());
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(MutantCacheTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
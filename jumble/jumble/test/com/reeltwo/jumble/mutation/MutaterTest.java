@@ -3,9 +3,17 @@ package com.reeltwo.jumble.mutation;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.util.ClassPath;
+import org.apache.bcel.util.SyntheticRepository;
 
 
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -238,6 +246,208 @@ public class MutaterTest extends TestCase {
     }
   }
 
+  private static Mutater createFullMutater(int count) {
+    Mutater m = new Mutater(count);
+    m.setMutateCPool(true);
+    m.setMutateIncrements(true);
+    m.setMutateInlineConstants(true);
+    m.setMutateNegs(true);
+    m.setMutateReturnValues(true);
+    m.setMutateSwitch(true);
+    return m;
+  }
+
+  private void checkMutationPoints(String className) throws ClassNotFoundException {
+    MutationPoint[] points = createFullMutater(-1).getMutationPoints(className);
+    assertEquals(createFullMutater(-1).countMutationPoints(className), points.length);
+    for (int i = 0; i < points.length; i++) {
+      Mutater m = createFullMutater(i);
+      assertEquals(i, points[i].getIndex());
+      assertEquals(className, points[i].getClassName());
+      assertEquals(m.getMutatedMethodName(className), points[i].getMethod());
+      assertEquals(m.getMethodRelativeMutationPoint(className), points[i].getMethodPoint());
+      assertTrue(points[i].getDescription().startsWith(className + ":" + points[i].getLine() + ": "));
+      m.setMutationPoints(points);
+      assertEquals(points[i].getMethod(), m.getMutatedMethodName(className));
+      assertEquals(points[i].getMethodPoint(), m.getMethodRelativeMutationPoint(className));
+    }
+  }
+
+  public void testGetMutationPoints() throws ClassNotFoundException {
+    checkMutationPoints("experiments.JumblerExperiment");
+    checkMutationPoints("jumble.X2");
+    MutationPoint[] points = new Mutater().getMutationPoints("experiments.JumblerExperiment");
+    assertEquals("multiply(II)I", points[3].getMethod());
+    assertEquals(0, points[3].getMethodPoint());
+    assertEquals("if_icmpge", points[3].getKind());
+    assertNull(new Mutater().getMutationPoints("jumble.X0I"));
+    assertEquals(0, new Mutater().getMutationPoints("jumble.X0").length);
+  }
+
+  public void testJumblerTouchesOnlyMutatedMethod() throws ClassNotFoundException {
+    String className = "experiments.JumblerExperiment";
+    JavaClass original = createFullMutater(-1).jumbler(className);
+    MutationPoint[] points = createFullMutater(-1).getMutationPoints(className);
+    for (int i = 0; i < points.length; i++) {
+      JavaClass counted = createFullMutater(i).jumbler(className);
+      Mutater m = createFullMutater(i);
+      m.setMutationPoints(points);
+      JavaClass looked = m.jumbler(className);
+      assertTrue(Arrays.equals(counted.getBytes(), looked.getBytes()));
+      Method[] methods = looked.getMethods();
+      for (int k = 0; k < methods.length; k++) {
+        if (!points[i].getMethod().equals(methods[k].getName() + methods[k].getSignature()) && methods[k].getCode() != null) {
+          assertTrue(Arrays.equals(original.getMethods()[k].getCode().getCode(), methods[k].getCode().getCode()));
+        }
+      }
+    }
+  }
+
+  public void testPatch() throws Exception {
+    String className = "experiments.JumblerExperiment";
+    byte[] original = ClassPath.SYSTEM_CLASS_PATH.getBytes(className);
+    MutationPoint[] points = createFullMutater(-1).getMutationPoints(className);
+    int patched = 0;
+    for (int i = 0; i < points.length; i++) {
+      Mutater m = createFullMutater(i);
+      m.setMutationPoints(points);
+      byte[] bytes = m.patch(className, original);
+      Mutater expected = createFullMutater(i);
+      JavaClass jumbled = expected.jumbler(className);
+      if (points[i].getKind().endsWith("return")) {
+        assertNull(bytes);
+      } else if (bytes != null) {
+        patched++;
+        assertEquals(expected.getModification(), m.getModification());
+        JavaClass clazz = new ClassParser(new ByteArrayInputStream(bytes), className).parse();
+        Method[] methods = clazz.getMethods();
+        for (int k = 0; k < methods.length; k++) {
+          if (methods[k].getCode() != null) {
+            assertTrue(Arrays.equals(jumbled.getMethods()[k].getCode().getCode(), methods[k].getCode().getCode()));
+          }
+        }
+      }
+    }
+    assertTrue(patched > 0);
+    // Without the table there is no patching
+    assertNull(createFullMutater(0).patch(className, original));
+  }
+
+  /** Defines classes straight from BCEL */
+  private static class BytesLoader extends ClassLoader {
+    Class define(JavaClass c) {
+      byte[] b = c.getBytes();
+      return defineClass(c.getClassName(), b, 0, b.length);
+    }
+  }
+
+  private static int add(Class c, int x, int y) throws Exception {
+    return ((Integer) c.getMethod("add", int.class, int.class).invoke(c.newInstance(), x, y)).intValue();
+  }
+
+  public void testSchemata() throws Exception {
+    String className = "experiments.JumblerExperiment";
+    Mutater meta = createFullMutater(-1);
+    meta.setSchemata(true);
+    Class metaClass = new BytesLoader().define(meta.jumbler(className));
+    Field active = metaClass.getField(Mutater.ACTIVE_MUTANT);
+    assertNull(meta.getModification());
+    MutationPoint[] points = createFullMutater(-1).getMutationPoints(className);
+    int[][] args = {{1, 2}, {2, 1}, {3, 3}, {-1, 0}};
+    int guarded = 0;
+    for (int i = 0; i < points.length; i++) {
+      if (meta.getModification(i) == null) {
+        assertEquals(MutationPoint.CPOOL, points[i].getKind());
+        continue;
+      }
+      guarded++;
+      Mutater m = createFullMutater(i);
+      JavaClass mutant = m.jumbler(className);
+      assertEquals(m.getModification(), meta.getModification(i));
+      if (!points[i].getMethod().startsWith("add(")) {
+        continue;
+      }
+      boolean isReturn = points[i].getKind().endsWith("return");
+      // Single return mutants do not verify with the stack maps of newer class files
+      Class mutantClass = isReturn ? null : new BytesLoader().define(mutant);
+      for (int k = 0; k < args.length; k++) {
+        active.setInt(null, 0);
+        int original = add(metaClass, args[k][0], args[k][1]);
+        active.setInt(null, i + 1);
+        int result = add(metaClass, args[k][0], args[k][1]);
+        if (isReturn) {
+          // Either the return is not reached or its value is changed
+          assertTrue(result == original || result == (original == 0 ? 1 : 0));
+        } else {
+          assertEquals(meta.getModification(i) + " " + args[k][0] + "," + args[k][1], add(mutantClass, args[k][0], args[k][1]), result);
+        }
+      }
+    }
+    assertTrue(guarded > 0);
+    active.setInt(null, 0);
+    assertEquals(3, add(metaClass, 2, 1));
+    assertEquals(-1, add(metaClass, 1, 2));
+  }
+
+  private static JavaClass withMajor(String className, int major) throws ClassNotFoundException {
+    JavaClass clazz = SyntheticRepository.getInstance().loadClass(className).copy();
+    clazz.setMajor(major);
+    return clazz;
+  }
+
+  private static boolean sameCode(JavaClass a, JavaClass b) {
+    for (int i = 0; i < a.getMethods().length; i++) {
+      if (!Arrays.equals(a.getMethods()[i].getCode().getCode(), b.getMethods()[i].getCode().getCode())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void testTooNewForLoopProbes() throws ClassNotFoundException {
+    Mutater m = new Mutater(-1);
+    m.setLoopProbes(true);
+    JavaClass old = withMajor("experiments.InfiniteLoop", 49);
+    JavaClass probed = m.jumbler(old);
+    assertFalse(sameCode(old, probed));
+    // Nest mates would be lost by making it a Java 5 class
+    JavaClass java11 = withMajor("experiments.InfiniteLoop", 55);
+    JavaClass left = m.jumbler(java11);
+    assertEquals(55, left.getMajor());
+    assertTrue(sameCode(java11, left));
+  }
+
+  public void testTooNewForSchemata() throws ClassNotFoundException {
+    Mutater meta = createFullMutater(-1);
+    meta.setSchemata(true);
+    JavaClass java11 = withMajor("experiments.JumblerExperiment", 55);
+    JavaClass left = meta.jumbler(java11);
+    assertEquals(55, left.getMajor());
+    assertTrue(sameCode(java11, left));
+    assertEquals(java11.getFields().length, left.getFields().length);
+    assertNull(meta.getModification(0));
+  }
+
+  private static final String[] SCANNED_CLASSES = {
+    "jumble.X0", "jumble.X1", "jumble.X2", "jumble.X3", "jumble.X4", "jumble.X5", "jumble.X5T",
+    "experiments.JumblerExperiment", "experiments.Deadlock", "experiments.FloatReturn", "experiments.InfiniteLoop", "experiments.LVTT",
+    "experiments.StaticClass", "experiments.SystemExit", "com.reeltwo.jumble.mutation.Mutater", "com.reeltwo.jumble.mutation.CodeScanner",
+    "com.reeltwo.jumble.fast.FastRunner", "com.reeltwo.jumble.fast.FastJumbler", "com.reeltwo.util.CLIFlags", "com.reeltwo.jumble.mutation.MutaterTest",
+  };
+
+  public void testScannerMatchesInstructions() throws ClassNotFoundException {
+    for (int s = 0; s < SCANNED_CLASSES.length; s++) {
+      JavaClass clazz = SyntheticRepository.getInstance().loadClass(SCANNED_CLASSES[s]);
+      ConstantPoolGen cp = new ConstantPoolGen(clazz.getConstantPool());
+      Method[] methods = clazz.getMethods();
+      Mutater m = createFullMutater(-1);
+      for (int k = 0; k < methods.length; k++) {
+        assertEquals(SCANNED_CLASSES[s] + "." + methods[k].getName(), m.countInstructionPoints(methods[k], clazz.getClassName(), cp),
+                     m.countMutationPoints(methods[k], clazz.getClassName(), cp));
+      }
+    }
+  }
+
   /** Randomly generated arrays used to compute irvineHash codes */
   private static final long[] HASH_BLOCKS;
   static {
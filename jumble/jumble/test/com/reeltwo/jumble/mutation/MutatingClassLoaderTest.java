@@ -1,5 +1,9 @@
 package com.reeltwo.jumble.mutation;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -27,6 +31,9 @@ import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionComparator;
 import org.apache.bcel.generic.Type;
 import org.apache.bcel.util.ByteSequence;
+import org.apache.bcel.util.SyntheticRepository;
+
+import com.reeltwo.jumble.util.ClassPathIndex;
 
 
 /**
@@ -83,6 +90,85 @@ public class MutatingClassLoaderTest extends TestCase {
     // }
   }
 
+  public void testUnmutatedClassesAsIs() throws Exception {
+    MutatingClassLoader j = new MutatingClassLoader("experiments.JumblerExperiment", new Mutater(0), CLASSPATH);
+    Class clazz = j.loadClass("experiments.StaticClassTest");
+    assertEquals(j, clazz.getClassLoader());
+    assertNotSame(experiments.StaticClassTest.class, clazz);
+    // Defined without being parsed
+    assertNull(SyntheticRepository.getInstance(ClassPathIndex.getInstance(CLASSPATH).getClassPath()).findClass("experiments.StaticClassTest"));
+    // Only the target is parsed
+    j.loadClass("experiments.JumblerExperiment");
+    assertNotNull(SyntheticRepository.getInstance(ClassPathIndex.getInstance(CLASSPATH).getClassPath()).findClass("experiments.JumblerExperiment"));
+    assertNotNull(j.getModification());
+  }
+
+  /** Lists the classes of a package found in directories on the classpath */
+  private static List<String> listClasses(String packageName) {
+    final List<String> names = new ArrayList<String>();
+    final String[] entries = CLASSPATH.split(File.pathSeparator);
+    for (int i = 0; i < entries.length; i++) {
+      final String[] files = new File(entries[i], packageName.replace('.', '/')).list();
+      if (files != null) {
+        for (int j = 0; j < files.length; j++) {
+          if (files[j].endsWith(".class")) {
+            names.add(packageName + "." + files[j].substring(0, files[j].length() - ".class".length()));
+          }
+        }
+      }
+    }
+    return names;
+  }
+
+  public void testConcurrentLoading() throws Exception {
+    final List<String> names = listClasses("experiments");
+    names.addAll(listClasses("jumble"));
+    assertTrue(names.size() > 10);
+    final MutatingClassLoader loader = new MutatingClassLoader("experiments.JumblerExperiment", new Mutater(0), CLASSPATH);
+    final Class[][] loaded = new Class[8][names.size()];
+    final Throwable[] failure = new Throwable[1];
+    final Thread[] threads = new Thread[loaded.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread() {
+          public void run() {
+            try {
+              // Each thread starts somewhere else, so that they meet
+              for (int k = 0; k < names.size(); k++) {
+                final int i = (first * 7 + k) % names.size();
+                loaded[first][i] = loader.loadClass(names.get(i));
+              }
+            } catch (Throwable e) {
+              failure[0] = e;
+            }
+          }
+        };
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertNull(failure[0]);
+    for (int i = 0; i < names.size(); i++) {
+      assertEquals(names.get(i), loaded[0][i].getName());
+      assertEquals(loader, loaded[0][i].getClassLoader());
+      for (int t = 1; t < threads.length; t++) {
+        assertSame(loaded[0][i], loaded[t][i]);
+      }
+    }
+    assertNotNull(loader.getModification());
+    // Locks are only kept while loading
+    assertEquals(0, loader.countLocks());
+    try {
+      final java.lang.reflect.Method registered = ClassLoader.class.getMethod("isRegisteredAsParallelCapable");
+      assertEquals(Boolean.TRUE, registered.invoke(loader));
+    } catch (NoSuchMethodException e) {
+      ; // Cannot tell before Java 9
+    }
+  }
+
   public void testListAllModifications() throws ClassNotFoundException {
     String className = "experiments.JumblerExperiment";
     Mutater mutater = new Mutater(-1);
@@ -0,0 +1,119 @@
+package com.reeltwo.jumble.mutation;
+
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.bcel.util.ClassPath;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class MutationPlanTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(MutationPlanTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+
+  private static Mutater createFullMutater(int count) {
+    Mutater m = new Mutater(count);
+    m.setMutateCPool(true);
+    m.setMutateIncrements(true);
+    m.setMutateInlineConstants(true);
+    m.setMutateNegs(true);
+    m.setMutateReturnValues(true);
+    m.setMutateSwitch(true);
+    return m;
+  }
+
+  private static byte[] getBytes(String className) throws Exception {
+    return new ClassPath(System.getProperty("java.class.path")).getBytes(className);
+  }
+
+  /** Makes a mutant the way <code>MutatingClassLoader</code> does with a <code>Mutater</code> */
+  private static byte[] makeMutant(Mutater m, String className, byte[] original) throws Exception {
+    byte[] bytes = m.patch(className, original);
+    return bytes != null ? bytes : m.jumbler(className).getBytes();
+  }
+
+  public void testMatchesMutater() throws Exception {
+    String className = "experiments.JumblerExperiment";
+    byte[] original = getBytes(className);
+    MutationPlan plan = createFullMutater(-1).createPlan(original);
+    assertEquals(className, plan.getClassName());
+    assertEquals(createFullMutater(-1).countMutationPoints(className), plan.size());
+    for (int i = -1; i < plan.size(); i++) {
+      Mutater m = createFullMutater(i);
+      m.setMutationPoints(plan.getPoints());
+      byte[] expected = makeMutant(m, className, original);
+      MutationPlan.Mutant mutant = plan.createMutant(i);
+      assertEquals(i, mutant.getPoint());
+      assertEquals(m.getModification(), mutant.getModification());
+      assertTrue("point " + i, Arrays.equals(expected, mutant.getBytes()));
+    }
+    try {
+      plan.mutate(plan.size());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testUnaffectedByMutater() throws Exception {
+    byte[] original = getBytes("experiments.JumblerExperiment");
+    Mutater m = createFullMutater(-1);
+    MutationPlan plan = m.createPlan(original);
+    byte[] before = plan.mutate(3);
+    m.setMutateCPool(false);
+    m.setMutateInlineConstants(false);
+    m.setMutationPoint(0);
+    assertTrue(Arrays.equals(before, plan.mutate(3)));
+  }
+
+  public void testInterface() throws Exception {
+    assertNull(new Mutater().createPlan(getBytes("jumble.X0I")));
+  }
+
+  public void testConcurrent() throws Exception {
+    final String className = "com.reeltwo.jumble.mutation.Mutater";
+    final MutationPlan plan = createFullMutater(-1).createPlan(getBytes(className));
+    final byte[][] expected = new byte[plan.size()][];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = plan.mutate(i);
+    }
+    final byte[][] made = new byte[expected.length][];
+    final Throwable[] failure = new Throwable[1];
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread() {
+          public void run() {
+            try {
+              for (int i = first; i < made.length; i += threads.length) {
+                made[i] = plan.mutate(i);
+              }
+            } catch (Throwable e) {
+              failure[0] = e;
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertNull(failure[0]);
+    for (int i = 0; i < expected.length; i++) {
+      assertTrue("point " + i, Arrays.equals(expected[i], made[i]));
+    }
+  }
+}
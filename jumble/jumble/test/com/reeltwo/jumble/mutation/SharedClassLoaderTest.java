@@ -0,0 +1,80 @@
+package com.reeltwo.jumble.mutation;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class SharedClassLoaderTest extends TestCase {
+
+  private static final String TARGET = "experiments.JumblerExperiment";
+
+  public void testReachesTarget() {
+    SharedClassLoader shared = new SharedClassLoader(TARGET, System.getProperty("java.class.path"));
+    assertTrue(shared.reachesTarget(TARGET));
+    assertTrue(shared.reachesTarget("experiments.JumblerExperimentTest"));
+    // Only through JumblerExperimentTest
+    assertTrue(shared.reachesTarget("experiments.JumblerExperimentSillySuiteTest"));
+    // Only through the package of the target
+    assertTrue(shared.reachesTarget("experiments.NoMutationPoints"));
+    assertTrue(shared.reachesTarget("experiments.JumblerExperimentEmptyTest"));
+    assertFalse(shared.reachesTarget("jumble.X2"));
+    assertFalse(shared.reachesTarget("no.such.Class"));
+    // Answers are remembered
+    assertTrue(shared.reachesTarget("experiments.JumblerExperimentSillySuiteTest"));
+    assertFalse(shared.reachesTarget("jumble.X2"));
+  }
+
+  public void testShared() throws Exception {
+    String cp = System.getProperty("java.class.path");
+    SharedClassLoader shared = new SharedClassLoader(TARGET, cp);
+    MutatingClassLoader first = new MutatingClassLoader(TARGET, new Mutater(0), cp);
+    first.setSharedLoader(shared);
+    MutatingClassLoader second = new MutatingClassLoader(TARGET, new Mutater(1), cp);
+    second.setSharedLoader(shared);
+    Class<?> c = first.loadClass("jumble.X2");
+    assertSame(shared, c.getClassLoader());
+    assertSame(c, second.loadClass("jumble.X2"));
+    Class<?> t = first.loadClass("experiments.JumblerExperimentTest");
+    assertSame(first, t.getClassLoader());
+    assertNotSame(t, second.loadClass("experiments.JumblerExperimentTest"));
+    assertNotSame(first.loadClass(TARGET), second.loadClass(TARGET));
+    assertNotNull(first.getModification());
+  }
+
+  public void testPackageAccess() throws Exception {
+    final String target = "experiments.PackageAccess";
+    String cp = System.getProperty("java.class.path");
+    SharedClassLoader shared = new SharedClassLoader(target, cp);
+    // Never refers to the target, but has to be in its runtime package
+    assertTrue(shared.reachesTarget("experiments.PackageHelper"));
+    MutatingClassLoader loader = new MutatingClassLoader(target, new Mutater(-1), cp);
+    loader.setSharedLoader(shared);
+    Class<?> c = loader.loadClass(target);
+    assertSame(loader, loader.loadClass("experiments.PackageHelper").getClassLoader());
+    assertEquals(7, c.getMethod("scaled", int.class).invoke(c.newInstance(), 3));
+  }
+
+  public void testOtherTarget() {
+    MutatingClassLoader loader = new MutatingClassLoader(TARGET, new Mutater(0), System.getProperty("java.class.path"));
+    try {
+      loader.setSharedLoader(new SharedClassLoader("jumble.X2", System.getProperty("java.class.path")));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(SharedClassLoaderTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
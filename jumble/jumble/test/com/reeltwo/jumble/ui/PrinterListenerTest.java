@@ -2,7 +2,9 @@ package com.reeltwo.jumble.ui;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 
+import com.reeltwo.jumble.fast.InitialOKJumbleResult;
 import com.reeltwo.jumble.fast.MutationResult;
 
 import junit.framework.Test;
@@ -34,6 +36,37 @@ public class PrinterListenerTest extends TestCase {
     assertEquals(baos.toString(), expected.toString());
   }
 
+  public void testDuplicates() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrinterListener listener = new PrinterListener(new PrintStream(baos));
+    MutationResult res = new MutationResult(MutationResult.PASS, "dummyClass", 3, "dummy description");
+    res.setDuplicateOf(1);
+    listener.finishedMutation(res);
+    res = new MutationResult(MutationResult.TIMEOUT, "dummyClass", 4, "dummy description");
+    res.setDuplicateOf(2);
+    listener.finishedMutation(res);
+    res = new MutationResult(MutationResult.FAIL, "dummyClass", 5, "dummy description");
+    res.setDuplicateOf(0);
+    listener.finishedMutation(res);
+    assertEquals("dtM FAIL: dummy description (same as mutation point 0)" + System.getProperty("line.separator"), baos.toString());
+  }
+
+  public void testEquivalentNotScored() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrinterListener listener = new PrinterListener(new PrintStream(baos));
+    listener.jumbleRunStarted("dummyClass", new ArrayList<String>());
+    listener.performedInitialTest(new InitialOKJumbleResult("dummyClass", new ArrayList<String>(), 1000), 4);
+    listener.finishedMutation(new MutationResult(MutationResult.PASS, "dummyClass", 0, "dummy description"));
+    listener.finishedMutation(new MutationResult(MutationResult.EQUIVALENT, "dummyClass", 1, "dummy description"));
+    listener.finishedMutation(new MutationResult(MutationResult.EQUIVALENT, "dummyClass", 2, "dummy description"));
+    listener.finishedMutation(new MutationResult(MutationResult.FAIL, "dummyClass", 3, "dummy description"));
+    listener.jumbleRunEnded();
+    final String out = baos.toString();
+    assertTrue(out, out.indexOf(".ee") != -1);
+    assertTrue(out, out.indexOf("Score: 50%") != -1);
+    assertTrue(out, out.indexOf("Equivalent mutations skipped = 2") != -1);
+  }
+
   public static Test suite() {
     return new TestSuite(PrinterListenerTest.class);
   }
@@ -14,6 +14,7 @@ public class AllTests extends TestSuite {
   public static Test suite() {
     TestSuite suite = new TestSuite();
     suite.addTest(BCELRTSITest.suite());
+    suite.addTest(ClassPathIndexTest.suite());
     suite.addTest(IOThreadTest.suite());
     suite.addTest(JavaRunnerTest.suite());
     suite.addTest(RTSITest.suite());
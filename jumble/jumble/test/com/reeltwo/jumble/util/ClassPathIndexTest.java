@@ -0,0 +1,188 @@
+package com.reeltwo.jumble.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.bcel.util.ClassPath;
+import org.apache.bcel.util.SyntheticRepository;
+
+/**
+ * Tests the corresponding class.
+ *
+ * @version $Revision$
+ */
+public class ClassPathIndexTest extends TestCase {
+
+  private File mDir;
+
+  private File mJar;
+
+  public void setUp() throws IOException {
+    mDir = File.createTempFile("classpath", "");
+    mDir.delete();
+    new File(mDir, "a").mkdirs();
+    write(new File(mDir, "a/B.txt"), "dir");
+    mJar = File.createTempFile("classpath", ".jar");
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mJar));
+    try {
+      out.putNextEntry(new ZipEntry("a/B.txt"));
+      out.write("jar".getBytes());
+      out.putNextEntry(new ZipEntry("a/C.class"));
+      out.write(new byte[] {1, 2, 3});
+    } finally {
+      out.close();
+    }
+  }
+
+  public void tearDown() {
+    new File(mDir, "a/B.txt").delete();
+    new File(mDir, "a/D.txt").delete();
+    new File(mDir, "a/D.class").delete();
+    new File(mDir, "a").delete();
+    mDir.delete();
+    mJar.delete();
+  }
+
+  private static void write(File f, String s) throws IOException {
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(s.getBytes());
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    try {
+      int c;
+      while ((c = in.read()) != -1) {
+        sb.append((char) c);
+      }
+    } finally {
+      in.close();
+    }
+    return sb.toString();
+  }
+
+  public void testClassPathOrder() throws IOException {
+    ClassPathIndex index = new ClassPathIndex(mDir + File.pathSeparator + mJar);
+    assertEquals("dir", read(index.getResourceAsStream("a/B.txt")));
+    assertEquals("dir", read(index.getResource("a/B.txt").openStream()));
+    index = new ClassPathIndex(mJar + File.pathSeparator + mDir);
+    assertEquals("jar", read(index.getResourceAsStream("a/B.txt")));
+    assertEquals("jar", read(index.getResource("a/B.txt").openStream()));
+    Enumeration<URL> all = index.getResources("a/B.txt");
+    assertEquals("jar", read(all.nextElement().openStream()));
+    assertEquals("dir", read(all.nextElement().openStream()));
+    assertFalse(all.hasMoreElements());
+  }
+
+  public void testMissing() {
+    ClassPathIndex index = new ClassPathIndex(mJar + File.pathSeparator + "no-such-file.jar" + File.pathSeparator + File.pathSeparator + mDir);
+    assertNull(index.getResource("a/X.txt"));
+    assertNull(index.getResourceAsStream("a/X.txt"));
+    assertFalse(index.getResources("a/X.txt").hasMoreElements());
+    try {
+      index.getBytes("a.X");
+      fail("Expected IOException");
+    } catch (IOException e) {
+      ; // Expected
+    }
+  }
+
+  public void testDirectoryChanges() throws IOException {
+    ClassPathIndex index = new ClassPathIndex(mJar + File.pathSeparator + mDir);
+    assertNull(index.getResource("a/D.txt"));
+    write(new File(mDir, "a/D.txt"), "new");
+    assertEquals("new", read(index.getResourceAsStream("a/D.txt")));
+  }
+
+  public void testPackageClasses() throws IOException {
+    ClassPathIndex index = new ClassPathIndex(mDir + File.pathSeparator + mJar);
+    assertEquals(new TreeSet<String>(Arrays.asList("a.C")), new TreeSet<String>(index.getPackageClasses("a")));
+    write(new File(mDir, "a/D.class"), "new");
+    assertEquals(new TreeSet<String>(Arrays.asList("a.C", "a.D")), new TreeSet<String>(index.getPackageClasses("a")));
+    assertTrue(index.getPackageClasses("b").isEmpty());
+  }
+
+  public void testGetBytes() throws IOException {
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3}, new ClassPathIndex(mDir + File.pathSeparator + mJar).getBytes("a.C")));
+    String cp = System.getProperty("java.class.path");
+    ClassPathIndex index = ClassPathIndex.getInstance(cp);
+    assertSame(index, ClassPathIndex.getInstance(cp));
+    assertTrue(Arrays.equals(new ClassPath(cp).getBytes("experiments.JumblerExperiment"), index.getBytes("experiments.JumblerExperiment")));
+    assertTrue(Arrays.equals(new ClassPath(cp).getBytes("junit.framework.TestCase"), index.getBytes("junit.framework.TestCase")));
+  }
+
+  public void testClassFileCache() throws IOException {
+    ClassPathIndex index = new ClassPathIndex(System.getProperty("java.class.path"));
+    assertNotSame(index.getBytes("experiments.JumblerExperiment"), index.getBytes("experiments.JumblerExperiment"));
+    assertEquals(0, index.getHits());
+    assertEquals(2, index.getMisses());
+    index = new ClassPathIndex(System.getProperty("java.class.path"));
+    index.setCacheClasses(true);
+    byte[] first = index.getBytes("experiments.JumblerExperiment");
+    assertEquals(0, index.getHits());
+    assertEquals(1, index.getMisses());
+    assertSame(first, index.getBytes("experiments.JumblerExperiment"));
+    assertEquals(1, index.getHits());
+    assertEquals(1, index.getMisses());
+    try {
+      index.getBytes("experiments.NoSuchClass");
+      fail("Expected IOException");
+    } catch (IOException e) {
+      ; // Expected
+    }
+    assertEquals(2, index.getMisses());
+  }
+
+  public void testRepository() throws Exception {
+    final String cp = mJar + File.pathSeparator + System.getProperty("java.class.path");
+    final ClassPath bcel = ClassPathIndex.getInstance(cp).getClassPath();
+    assertEquals(bcel, ClassPathIndex.getInstance(cp).getClassPath());
+    assertEquals("experiments.JumblerExperiment", SyntheticRepository.getInstance(bcel).loadClass("experiments.JumblerExperiment").getClassName());
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3}, bcel.getBytes("a.C")));
+    ClassPathIndex.release(cp);
+    // Carries on with a fresh index
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3}, bcel.getBytes("a/C")));
+    assertEquals("jar", read(bcel.getResourceAsStream("a/B.txt")));
+    ClassPathIndex.release(cp);
+  }
+
+  public void testRelease() throws IOException {
+    final String cp = mJar.toString();
+    final ClassPathIndex index = ClassPathIndex.getInstance(cp);
+    ClassPathIndex.release(cp);
+    try {
+      index.getBytes("a.C");
+      fail("Expected the jar to be closed");
+    } catch (IllegalStateException e) {
+      ; // Expected
+    }
+    assertNotSame(index, ClassPathIndex.getInstance(cp));
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3}, ClassPathIndex.getInstance(cp).getBytes("a.C")));
+    ClassPathIndex.release(cp);
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(ClassPathIndexTest.class);
+    return suite;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -0,0 +1,84 @@
+package jumble;
+
+class X6 {
+
+  int mField;
+
+  static int shift(int a) {
+    int s = 0;
+    return a << s;
+  }
+
+  static long add(long a) {
+    long z = 0;
+    return a + z;
+  }
+
+  static int mul(int a) {
+    int one = 1;
+    return a * one;
+  }
+
+  static int rem(int a) {
+    int one = 1;
+    return a % one;
+  }
+
+  static int zero() {
+    int z = 0;
+    int five = 5;
+    return z % five;
+  }
+
+  static int same(int a) {
+    int b;
+    if (a > 0) {
+      b = 1;
+    } else {
+      b = 1;
+    }
+    return b;
+  }
+
+  static int different(int a) {
+    int b;
+    if (a > 0) {
+      b = 1;
+    } else {
+      b = 2;
+    }
+    return b;
+  }
+
+  static int increment(int a) {
+    a += 0;
+    return a;
+  }
+
+  static int negate() {
+    int z = 0;
+    return -z;
+  }
+
+  static int assign(X6 o, int v) {
+    return 0 + ((o.mField = v) * 5);
+  }
+
+  static int element(int[] a) {
+    int z = 0;
+    return a[z] + z;
+  }
+
+  static int length(int[] a, int v) {
+    return v * (a.length + 5);
+  }
+
+  static int loop(int a, int n) {
+    int s = 0;
+    for (int i = 0; i < n; i++) {
+      a = a << s;
+      s++;
+    }
+    return a;
+  }
+}